@@ -0,0 +1,104 @@
+// MicroJava Benchmark
+// -------------------
+// Syntax: java ssw.mj.Benchmark fileName [-input text] [-runs n]
+//         [engine ...]
+// ===========================================================================
+package ssw.mj;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ssw.mj.vm.Engine;
+
+/**
+ * Measures how long execution engines take to run a program. Every engine
+ * runs the program with the same input, first a few times to warm up the JVM
+ * and then as often as requested; the median of the measured runs is
+ * reported. Loading and decoding the program is not measured. A runtime
+ * error ends a run like a normal return, so that programs such as Trap can be
+ * measured as well.
+ */
+public class Benchmark {
+
+	private static final int WARMUP_RUNS = 20;
+
+	/** Median time of a run in nanoseconds. */
+	static long measure(String fileName, Engine engine, String input,
+			int runs) throws IOException {
+		long[] times = new long[runs];
+		for (int i = -WARMUP_RUNS; i < runs; i++) {
+			Interpreter r = Run.load(fileName, false, engine,
+					new Interpreter.BufferIO(input));
+			long start = System.nanoTime();
+			try {
+				r.run();
+			} catch (IllegalStateException e) {
+				// measured up to the error
+			}
+			if (i >= 0) {
+				times[i] = System.nanoTime() - start;
+			}
+		}
+		Arrays.sort(times);
+		return times[runs / 2];
+	}
+
+	public static void main(String[] arg) {
+		String fileName = null, input = "";
+		int runs = 100;
+		List<Engine> engines = new ArrayList<Engine>();
+		for (int i = 0; i < arg.length; i++) {
+			if (arg[i].equals("-input") && i + 1 < arg.length) {
+				input = arg[++i];
+			} else if (arg[i].equals("-runs") && i + 1 < arg.length) {
+				try {
+					runs = Integer.parseInt(arg[++i]);
+				} catch (NumberFormatException e) {
+					runs = 0;
+				}
+				if (runs <= 0) {
+					System.out.println("-- invalid number of runs " + arg[i]);
+					return;
+				}
+			} else if (fileName == null) {
+				fileName = arg[i];
+			} else {
+				try {
+					engines.add(Engine.valueOf(arg[i]));
+				} catch (IllegalArgumentException e) {
+					System.out.println("-- unknown engine " + arg[i]);
+					return;
+				}
+			}
+		}
+		if (fileName == null) {
+			System.out.println("Syntax: java ssw.mj.Benchmark filename"
+					+ " [-input text] [-runs n] [engine ...]");
+			return;
+		}
+		if (engines.isEmpty()) {
+			engines.addAll(Arrays.asList(Engine.values()));
+		}
+		try {
+			long base = 0;
+			for (Engine engine : engines) {
+				long t = measure(fileName, engine, input, runs);
+				if (base == 0) {
+					base = Math.max(t, 1);
+				}
+				System.out.printf("%-12s %10.1f us %7.2fx%n", engine,
+						t / 1000.0, (double) base / Math.max(t, 1));
+			}
+		} catch (FileNotFoundException e) {
+			System.out.println("-- file " + fileName + " not found");
+		} catch (FormatException e) {
+			System.out.println("-- corrupted object file " + fileName + ": "
+					+ e.getMessage());
+		} catch (IOException e) {
+			System.out.println("-- error reading file " + fileName);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered I/O whose input comes from a byte channel or a memory-mapped
+ * file. <code>read</code> parses ints directly from the byte buffer and
+ * <code>bread</code> reads bytes from the same buffer, so both can be mixed.
+ * Output is written to a stream like by {@link Interpreter.StreamIO}.
+ */
+public class ChannelIO extends Interpreter.BufferedIO {
+
+	private static final int SIZE = 65536;
+
+	private final ReadableByteChannel in; // null for a mapped file
+	private final ByteBuffer buf;
+	private int pos, limit;
+	private final Writer out;
+
+	/** Reads the input from channel in blocks. */
+	public ChannelIO(ReadableByteChannel in, OutputStream out) {
+		this(in, ByteBuffer.allocate(SIZE), 0, out);
+	}
+
+	private ChannelIO(ReadableByteChannel in, ByteBuffer buf, int limit,
+			OutputStream out) {
+		this.in = in;
+		this.buf = buf;
+		this.limit = limit;
+		this.out = new OutputStreamWriter(out);
+	}
+
+	/** Maps the input file into memory and reads it from there. */
+	public static ChannelIO map(Path input, OutputStream out)
+			throws IOException {
+		FileChannel ch = FileChannel.open(input, StandardOpenOption.READ);
+		try {
+			if (ch.size() > Integer.MAX_VALUE) {
+				throw new IOException("input file too large");
+			}
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					ch.size());
+			return new ChannelIO(null, buf, buf.limit(), out);
+		} finally {
+			ch.close(); // the mapping stays valid
+		}
+	}
+
+	@Override
+	public char read() {
+		if (pos == limit && !fill()) {
+			return 0;
+		}
+		return (char) (buf.get(pos++) & 0xff);
+	}
+
+	@Override
+	public int readInt() {
+		int prev = ' ';
+		int b = pos < limit ? buf.get(pos++) & 0xff : read();
+		while (b < '0' || b > '9') {
+			prev = b;
+			b = pos < limit ? buf.get(pos++) & 0xff : read();
+		}
+		int val = 0;
+		do {
+			val = 10 * val + b - '0';
+			b = pos < limit ? buf.get(pos++) & 0xff : read();
+		} while (b >= '0' && b <= '9');
+		return prev == '-' ? -val : val;
+	}
+
+	/**
+	 * Reads the next block of input; returns false at the end of the input.
+	 * Pending output is written first, because reading may wait for it.
+	 */
+	private boolean fill() {
+		if (in == null) {
+			return false;
+		}
+		flush();
+		buf.clear();
+		try {
+			int n;
+			do {
+				n = in.read(buf);
+			} while (n == 0);
+		} catch (IOException e) {
+			// like the end of the input
+		}
+		buf.flip();
+		pos = 0;
+		limit = buf.limit();
+		return limit > 0;
+	}
+
+	@Override
+	protected void writeOut(char[] chars, int off, int len) {
+		try {
+			out.write(chars, off, len);
+			out.flush();
+		} catch (IOException ex) {
+			// ignored like by System.out
+		}
+	}
+}
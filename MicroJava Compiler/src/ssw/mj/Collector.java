@@ -0,0 +1,376 @@
+package ssw.mj;
+
+import java.util.Arrays;
+
+/**
+ * Garbage collector for the heap of an {@link Interpreter}.
+ *
+ * Every heap block starts with a header word holding its kind and the number
+ * of words that follow. The reference map of a block is given by the
+ * reference tags of its words, which the interpreter keeps up to date for
+ * every word it writes; the roots are the tagged words of the global data,
+ * the method stack and the expression stack.
+ *
+ * The heap consists of the old space [1, oldTop) and the nursery
+ * [nurseryStart, free) where new blocks are allocated. A full collection
+ * marks all blocks reachable from the roots, slides them towards the start
+ * of the heap and updates all references (Lisp 2 algorithm); everything that
+ * survives becomes old. Without generations the nursery directly follows the
+ * old space, so this is a plain mark-compact collector.
+ *
+ * In generational mode the nursery is a fixed area at the end of the heap. A
+ * minor collection copies the nursery blocks reachable from the roots and
+ * from old blocks to the end of the old space. References from old to young
+ * blocks are found through the card table, whose entries are set by the
+ * write barrier of putfield and astore.
+ */
+final class Collector {
+
+	/** Largest nursery in generational mode (words). */
+	static final int MAX_NURSERY_SIZE = 1 << 20;
+
+	private final Interpreter vm;
+	private final boolean generational;
+	private final int heapSize, nurserySize; // words
+
+	private int oldTop; // end of the old space
+	private int nurseryStart; // start of the nursery
+
+	/**
+	 * New address of every marked or copied block by its header address,
+	 * off the Java heap if the heap is.
+	 */
+	private int[] forward;
+	private OffHeap offHeapForward;
+
+	/** Headers of blocks whose words still have to be scanned. */
+	private int[] work = new int[64];
+	private int nWork;
+
+	// statistics
+	private int minorCollections, fullCollections;
+	private long promoted, reclaimed; // words
+	private long minorNanos, fullNanos;
+
+	Collector(Interpreter vm, boolean generational) {
+		this.vm = vm;
+		this.generational = generational;
+		heapSize = vm.heapWords;
+		nurserySize = Math.min(heapSize / 5, MAX_NURSERY_SIZE);
+		oldTop = 1;
+		nurseryStart = generational ? heapSize - nurserySize : 1;
+		vm.free = nurseryStart;
+		if (generational) {
+			vm.cards = new boolean[(heapSize >> Interpreter.CARD_SHIFT) + 1];
+		}
+	}
+
+	/**
+	 * Collects garbage so that a block of n words can be allocated at free.
+	 * Returns false if the heap is too small for that.
+	 */
+	boolean makeRoom(int n) {
+		if (generational && n <= nurserySize / 2
+				&& oldTop + (vm.free - nurseryStart) <= nurseryStart) {
+			// all survivors fit into the old space
+			minor();
+			if (n <= heapSize - vm.free) {
+				return true;
+			}
+		}
+		full(n);
+		return n <= heapSize - vm.free;
+	}
+
+	/**
+	 * Collects the whole heap, so that only the reachable blocks remain, and
+	 * returns the end of these blocks, which start at address 1.
+	 */
+	int collectAll() {
+		full(0);
+		return oldTop;
+	}
+
+	// ----- heap blocks
+
+	/** Kind of the block with header h. */
+	private int kind(int h) {
+		return vm.heapWord(h) >>> Interpreter.KIND_SHIFT;
+	}
+
+	/** Number of words of the block with header h, including the header. */
+	private int size(int h) {
+		return (vm.heapWord(h) & Interpreter.SIZE_MASK) + 1;
+	}
+
+	/** Header address of the block that adr points into. */
+	private int header(int adr) {
+		return vm.isHeader(adr - 1) ? adr - 1 : adr - 2;
+	}
+
+	/** Index of the first word of block h that can hold a reference. */
+	private int firstField(int h) {
+		return kind(h) == Interpreter.OBJECT ? h + 1 : h + 2;
+	}
+
+	/** Header of the first block at or after h, skipping the free gap. */
+	private int next(int h) {
+		return h == oldTop ? nurseryStart : h;
+	}
+
+	// ----- minor collection
+
+	private void minor() {
+		long start = System.nanoTime();
+		allocateForward();
+		boolean[] cards = vm.cards;
+		int scan = oldTop;
+
+		// roots and old blocks on dirty cards
+		promoteRoots(vm.data, vm.dataRef, vm.data.length);
+		promoteRoots(vm.local, vm.localRef, vm.sp);
+		promoteRoots(vm.stack, vm.stackRef, vm.esp);
+		int end = scan; // old blocks copied now are scanned below
+		for (int c = 0; c < cards.length; c++) {
+			if (cards[c]) {
+				cards[c] = false;
+				int from = Math.max(c << Interpreter.CARD_SHIFT, 1);
+				int to = Math.min((c + 1) << Interpreter.CARD_SHIFT, end);
+				for (int i = from; i < to; i++) {
+					if (vm.isHeapRef(i) && isYoung(vm.heapWord(i))) {
+						vm.setHeapWord(i, promote(vm.heapWord(i)));
+					}
+				}
+			}
+		}
+
+		// promoted blocks
+		while (scan < oldTop) {
+			if (kind(scan) != Interpreter.BYTE_ARRAY) {
+				for (int i = firstField(scan), e = scan + size(scan); i < e; i++) {
+					if (vm.isHeapRef(i) && isYoung(vm.heapWord(i))) {
+						vm.setHeapWord(i, promote(vm.heapWord(i)));
+					}
+				}
+			}
+			scan += size(scan);
+		}
+
+		int survivors = scan - end;
+		int used = vm.free - nurseryStart;
+		clearForward(nurseryStart, vm.free);
+		vm.clearHeap(nurseryStart, vm.free);
+		vm.free = nurseryStart;
+
+		minorCollections++;
+		promoted += survivors;
+		reclaimed += used - survivors;
+		minorNanos += System.nanoTime() - start;
+	}
+
+	private boolean isYoung(int adr) {
+		return adr > nurseryStart && adr <= vm.free;
+	}
+
+	private void promoteRoots(int[] words, boolean[] refs, int n) {
+		for (int i = 0; i < n; i++) {
+			if (refs[i] && isYoung(words[i])) {
+				words[i] = promote(words[i]);
+			}
+		}
+	}
+
+	/** Copies the young block at adr to the old space unless done yet. */
+	private int promote(int adr) {
+		int h = header(adr);
+		if (forward(h) == 0) {
+			int size = size(h);
+			vm.moveHeap(h, oldTop, size);
+			setForward(h, oldTop);
+			oldTop += size;
+		}
+		return forward(h) + (adr - h);
+	}
+
+	// ----- full collection
+
+	/** Collects the whole heap and leaves room for n words if possible. */
+	private void full(int n) {
+		long start = System.nanoTime();
+		allocateForward();
+		int used = oldTop - 1 + vm.free - nurseryStart;
+
+		// mark
+		forRoots(true);
+		while (nWork > 0) {
+			int h = work[--nWork];
+			if (kind(h) == Interpreter.BYTE_ARRAY) {
+				continue;
+			}
+			for (int i = firstField(h), end = h + size(h); i < end; i++) {
+				if (vm.isHeapRef(i)) {
+					mark(vm.heapWord(i));
+				}
+			}
+		}
+
+		// compute new addresses
+		int dest = 1;
+		for (int h = next(1); h < vm.free; h = next(h + size(h))) {
+			if (forward(h) != 0) {
+				setForward(h, dest);
+				dest += size(h);
+			}
+		}
+
+		// update references
+		forRoots(false);
+		for (int h = next(1); h < vm.free; h = next(h + size(h))) {
+			if (forward(h) != 0 && kind(h) != Interpreter.BYTE_ARRAY) {
+				for (int i = firstField(h), end = h + size(h); i < end; i++) {
+					if (vm.isHeapRef(i)) {
+						vm.setHeapWord(i, relocate(vm.heapWord(i)));
+					}
+				}
+			}
+		}
+
+		// move blocks
+		for (int h = next(1); h < vm.free;) {
+			int size = size(h);
+			int to = forward(h);
+			if (to != 0) {
+				setForward(h, 0);
+				vm.moveHeap(h, to, size);
+			}
+			h = next(h + size);
+		}
+		vm.clearHeap(dest, oldTop);
+		vm.clearHeap(Math.max(dest, nurseryStart), vm.free);
+		if (vm.cards != null) {
+			Arrays.fill(vm.cards, false);
+		}
+
+		oldTop = dest;
+		nurseryStart = dest;
+		if (generational && heapSize - nurserySize > dest
+				&& n <= nurserySize) {
+			nurseryStart = heapSize - nurserySize;
+		}
+		vm.free = nurseryStart;
+
+		fullCollections++;
+		reclaimed += used - (dest - 1);
+		fullNanos += System.nanoTime() - start;
+	}
+
+	/** Marks the blocks referenced by the roots or updates the roots. */
+	private void forRoots(boolean mark) {
+		forRoots(vm.data, vm.dataRef, vm.data.length, mark);
+		forRoots(vm.local, vm.localRef, vm.sp, mark);
+		forRoots(vm.stack, vm.stackRef, vm.esp, mark);
+	}
+
+	private void forRoots(int[] words, boolean[] refs, int n, boolean mark) {
+		for (int i = 0; i < n; i++) {
+			if (refs[i]) {
+				if (mark) {
+					mark(words[i]);
+				} else {
+					words[i] = relocate(words[i]);
+				}
+			}
+		}
+	}
+
+	private boolean isHeapAddress(int adr) {
+		return adr > 1 && adr <= oldTop
+				|| adr > nurseryStart && adr <= vm.free;
+	}
+
+	private void mark(int adr) {
+		if (!isHeapAddress(adr)) {
+			return; // null
+		}
+		int h = header(adr);
+		if (forward(h) == 0) {
+			setForward(h, -1);
+			if (nWork == work.length) {
+				work = Arrays.copyOf(work, nWork * 2);
+			}
+			work[nWork++] = h;
+		}
+	}
+
+	private int relocate(int adr) {
+		if (!isHeapAddress(adr)) {
+			return adr;
+		}
+		int h = header(adr);
+		return forward(h) + (adr - h);
+	}
+
+	// ----- forward addresses
+
+	private void allocateForward() {
+		if (forward == null && offHeapForward == null) {
+			if (vm.isOffHeap()) {
+				offHeapForward = new OffHeap(heapSize, false);
+			} else {
+				forward = new int[heapSize];
+			}
+		}
+	}
+
+	/** Bytes of the forward addresses and the work list. */
+	long committedBytes() {
+		long bytes = work.length * 4L;
+		if (forward != null) {
+			bytes += forward.length * 4L;
+		}
+		if (offHeapForward != null) {
+			bytes += offHeapForward.committed();
+		}
+		return bytes;
+	}
+
+	private int forward(int h) {
+		return forward != null ? forward[h] : offHeapForward.get(h);
+	}
+
+	private void setForward(int h, int adr) {
+		if (forward != null) {
+			forward[h] = adr;
+		} else {
+			offHeapForward.set(h, adr);
+		}
+	}
+
+	private void clearForward(int from, int to) {
+		if (forward != null) {
+			Arrays.fill(forward, from, to, 0);
+		} else {
+			offHeapForward.clear(from, to);
+		}
+	}
+
+	String statistics() {
+		if (minorCollections + fullCollections == 0) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		if (generational) {
+			sb.append("gc young: " + minorCollections + " collections, "
+					+ promoted + " words promoted in " + minorNanos / 1000000
+					+ " ms\n");
+			sb.append("gc old: " + fullCollections + " collections in "
+					+ fullNanos / 1000000 + " ms, " + (oldTop - 1)
+					+ " words in use\n");
+		} else {
+			sb.append("gc: " + fullCollections + " collections in "
+					+ fullNanos / 1000000 + " ms\n");
+		}
+		sb.append("gc: " + reclaimed + " words reclaimed");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,155 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * I/O for judging runs: compares the output of a program with the expected
+ * output while it is written, and stops the run with a {@link Mismatch} at
+ * the first character that differs or when the output gets longer than a
+ * limit. The output itself is not kept. After the run, {@link #checkEnd()}
+ * checks that the expected output has been written completely.
+ */
+public class ComparingIO implements Interpreter.IO {
+
+	/** Thrown when the output differs from the expected output. */
+	public static class Mismatch extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		/** Position of the first wrong character, counted from 0. */
+		public final long offset;
+		/** Line and column of the first wrong character, counted from 1. */
+		public final int line, column;
+
+		Mismatch(String message, long offset, int line, int column) {
+			super(message + " at line " + line + ", column " + column
+					+ " (offset " + offset + ")");
+			this.offset = offset;
+			this.line = line;
+			this.column = column;
+		}
+	}
+
+	private final String input;
+	private int inputPos;
+
+	private final Reader expected;
+	private final char[] expBuf = new char[8192];
+	private int expPos, expLen;
+	private boolean expEnd;
+
+	private final long limit;
+	private long offset; // characters compared so far
+	private int line = 1, column = 1;
+
+	private final char[] digits = new char[11]; // of writeInt
+
+	public ComparingIO(String input, Reader expected) {
+		this(input, expected, Long.MAX_VALUE);
+	}
+
+	/** Stops the run when the output exceeds limit characters. */
+	public ComparingIO(String input, Reader expected, long limit) {
+		this.input = input;
+		this.expected = expected;
+		this.limit = limit;
+	}
+
+	@Override
+	public char read() {
+		if (inputPos >= input.length()) {
+			return 0;
+		}
+		return input.charAt(inputPos++);
+	}
+
+	// every write is compared at once, so that a run stops right away
+
+	@Override
+	public void write(char c) {
+		if (offset == limit) {
+			throw new Mismatch("output limit of " + limit
+					+ " characters exceeded", offset, line, column);
+		}
+		int exp = nextExpected();
+		if (exp < 0) {
+			throw new Mismatch("output longer than expected", offset, line,
+					column);
+		}
+		if (c != exp) {
+			throw new Mismatch("expected " + show(exp) + " but was "
+					+ show(c), offset, line, column);
+		}
+		offset++;
+		if (c == '\n') {
+			line++;
+			column = 1;
+		} else {
+			column++;
+		}
+	}
+
+	@Override
+	public void writeInt(int val, int width) {
+		int pos = digits.length;
+		int v = val < 0 ? val : -val; // negated so that MIN_VALUE works
+		do {
+			digits[--pos] = (char) ('0' - v % 10);
+			v /= 10;
+		} while (v != 0);
+		if (val < 0) {
+			digits[--pos] = '-';
+		}
+		for (int n = width - (digits.length - pos); n > 0; n--) {
+			write(' ');
+		}
+		write(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * Checks that the whole expected output has been written; throws a
+	 * {@link Mismatch} if not.
+	 */
+	public void checkEnd() throws Mismatch {
+		if (nextExpected() >= 0) {
+			throw new Mismatch("output shorter than expected", offset, line,
+					column);
+		}
+	}
+
+	/** Number of characters written and compared so far. */
+	public long written() {
+		return offset;
+	}
+
+	/** Returns and consumes the next expected character or -1 at its end. */
+	private int nextExpected() {
+		if (expPos == expLen) {
+			if (expEnd) {
+				return -1;
+			}
+			try {
+				expLen = Math.max(expected.read(expBuf), 0);
+			} catch (IOException e) {
+				throw new IllegalStateException("expected output unreadable",
+						e);
+			}
+			expPos = 0;
+			if (expLen == 0) {
+				expEnd = true;
+				return -1;
+			}
+		}
+		return expBuf[expPos++];
+	}
+
+	private static String show(int c) {
+		if (c == '\n') {
+			return "'\\n'";
+		}
+		if (c == '\r') {
+			return "'\\r'";
+		}
+		return "'" + (char) c + "'";
+	}
+}
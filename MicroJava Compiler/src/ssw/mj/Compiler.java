@@ -1,6 +1,8 @@
 package ssw.mj;
 
 import java.io.*;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 
 import ssw.mj.impl.ParserImpl;
 import ssw.mj.impl.ScannerImpl;
@@ -32,8 +34,8 @@ public class Compiler {
 		String outFilename = objFileName(inFilename);
 
 		try {
-			ScannerImpl scanner = new ScannerImpl(
-					new BufferedReader(new FileReader(inFilename)));
+			// the source is mapped into memory and scanned in bytes
+			ScannerImpl scanner = ScannerImpl.map(Paths.get(inFilename));
 
 			System.out.println("-----------------------------------");
 			System.out.println("Parsing file " + inFilename);
@@ -51,6 +53,9 @@ public class Compiler {
 			} else {
 				System.out.println("No errors.");
 			}
+		} catch (NoSuchFileException ex) {
+			System.out.println("I/O Error: " + inFilename
+					+ " (No such file or directory)");
 		} catch (IOException ex) {
 			System.out.println("I/O Error: " + ex.getMessage());
 		}
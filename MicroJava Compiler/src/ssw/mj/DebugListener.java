@@ -0,0 +1,50 @@
+package ssw.mj;
+
+import java.io.PrintStream;
+
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Prints every executed instruction with its operands and the expression
+ * stack after it. This is the debug output of the interpreter.
+ */
+public class DebugListener extends ExecutionListener.Adapter {
+
+	private final byte[] code;
+	private final PrintStream out;
+	private boolean started;
+
+	public DebugListener(byte[] code, PrintStream out) {
+		this.code = code;
+		this.out = out;
+	}
+
+	@Override
+	public void instruction(int pc, OpCode op, int[] stack, int esp) {
+		if (started) { // the stack after the previous instruction
+			out.println();
+			out.print("     | ");
+			for (int i = 0; i < esp; i++) {
+				out.print(stack[i] + " ");
+			}
+			out.println();
+		} else {
+			out.println();
+			out.println("  pos: instruction operands");
+			out.println("     | expressionstack");
+			out.println("-----------------------------");
+			started = true;
+		}
+		out.printf("%5d: %s ", pc, op.cleanName());
+		int pos = pc + 1;
+		if (op.numOps() == 2) { // two bytes
+			out.print(code[pos] + " " + code[pos + 1] + " ");
+		} else if (op.numOps() == 1) {
+			int val = code[pos];
+			for (int i = 1; i < op.getOpsSize(); i++) {
+				val = (val << 8) | (code[pos + i] & 0xff);
+			}
+			out.print(val + " ");
+		}
+	}
+}
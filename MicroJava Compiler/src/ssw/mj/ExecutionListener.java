@@ -0,0 +1,69 @@
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Receives the events of runs of an {@link Interpreter} that it was attached
+ * to with {@link Interpreter#setListener(ExecutionListener)}. All events are
+ * reported by the thread of the run, pcs are the addresses of instructions.
+ */
+public interface ExecutionListener {
+
+	/**
+	 * Called before the instruction op at pc is executed. The expression
+	 * stack holds stack[0..esp-1]; it must not be changed.
+	 */
+	void instruction(int pc, OpCode op, int[] stack, int esp);
+
+	/** Called after the call at pc has transferred control to entry. */
+	void call(int pc, int entry);
+
+	/**
+	 * Called after the return at pc has transferred control to the caller at
+	 * to, which is -1 if main returned and the run ends.
+	 */
+	void returned(int pc, int to);
+
+	/**
+	 * Called after new or newarray at pc allocated a heap block of words
+	 * words, including its header, for the object or array at adr.
+	 */
+	void alloc(int pc, int adr, int words);
+
+	/** Called after read or bread at pc read val. */
+	void input(int pc, OpCode op, int val);
+
+	/**
+	 * Called before print or bprint at pc writes val in a field of width
+	 * characters.
+	 */
+	void output(int pc, OpCode op, int val, int width);
+
+	/** A listener that ignores all events, for overriding single ones. */
+	public static class Adapter implements ExecutionListener {
+
+		@Override
+		public void instruction(int pc, OpCode op, int[] stack, int esp) {
+		}
+
+		@Override
+		public void call(int pc, int entry) {
+		}
+
+		@Override
+		public void returned(int pc, int to) {
+		}
+
+		@Override
+		public void alloc(int pc, int adr, int words) {
+		}
+
+		@Override
+		public void input(int pc, OpCode op, int val) {
+		}
+
+		@Override
+		public void output(int pc, OpCode op, int val, int width) {
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package ssw.mj;
+
+import java.io.IOException;
+
+/** Thrown when an object file is corrupted. */
+class FormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	FormatException(String s) {
+		super(s);
+	}
+}
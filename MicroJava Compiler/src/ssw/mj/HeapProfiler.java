@@ -0,0 +1,128 @@
+package ssw.mj;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the allocations and allocated words per allocation site, which is
+ * the pc of a <code>new</code> or <code>newarray</code> instruction, and
+ * groups the live heap blocks by site and size. The site of every block is
+ * kept by the interpreter next to its header.
+ */
+public class HeapProfiler {
+
+	private final Interpreter vm;
+	private final long[] allocations, words; // per site
+	private int pendingSite = -1, pendingWords; // allocation in progress
+
+	HeapProfiler(Interpreter vm) {
+		this.vm = vm;
+		allocations = new long[vm.code.length];
+		words = new long[vm.code.length];
+	}
+
+	/** Called before a block of size words is allocated for site. */
+	void allocating(int site, int size) {
+		pendingSite = site;
+		pendingWords = size;
+	}
+
+	/** Called after the block was allocated. */
+	void allocated() {
+		allocations[pendingSite]++;
+		words[pendingSite] += pendingWords;
+		pendingSite = -1;
+	}
+
+	/** Returns the number of blocks allocated at site. */
+	public long allocations(int site) {
+		return allocations[site];
+	}
+
+	/** Returns the number of words allocated at site, including headers. */
+	public long allocatedWords(int site) {
+		return words[site];
+	}
+
+	/**
+	 * Returns the site whose allocation did not complete, because the heap
+	 * overflowed, or -1 if all did.
+	 */
+	public int failedSite() {
+		return pendingSite;
+	}
+
+	/** Returns the n sites that allocated the most words. */
+	public String report(int n) {
+		long blocks = 0, total = 0;
+		for (int site = 0; site < words.length; site++) {
+			blocks += allocations[site];
+			total += words[site];
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("allocations: ").append(blocks).append(" blocks, ")
+				.append(total).append(" words");
+		if (pendingSite >= 0) {
+			sb.append(", heap overflow at ").append(pendingSite)
+					.append(Profiler.line(vm.lines, pendingSite))
+					.append(" allocating ").append(pendingWords)
+					.append(" words");
+		}
+		sb.append("\n  sites (blocks, words):");
+		for (int site : Profiler.hottest(words, n)) {
+			sb.append(String.format("\n  %8d: %10d %12d %s", site,
+					allocations[site], words[site],
+					Profiler.percent(words[site], total)))
+					.append(Profiler.line(vm.lines, site));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Collects garbage and returns the n groups of live blocks of the same
+	 * site and size that take the most words.
+	 */
+	public String dump(int n) {
+		int end = vm.collectAll();
+		// blocks and words of the live blocks per site and size
+		final Map<Long, long[]> groups = new HashMap<Long, long[]>();
+		long blocks = 0, total = 0;
+		for (int h = 1; h < end;) {
+			int size = (vm.heapWord(h) & Interpreter.SIZE_MASK) + 1;
+			Long key = ((long) vm.allocSite[h] << 32) | size;
+			long[] group = groups.get(key);
+			if (group == null) {
+				group = new long[2];
+				groups.put(key, group);
+			}
+			group[0]++;
+			group[1] += size;
+			blocks++;
+			total += size;
+			h += size;
+		}
+		List<Long> keys = new ArrayList<Long>(groups.keySet());
+		Collections.sort(keys, new Comparator<Long>() {
+			@Override
+			public int compare(Long a, Long b) {
+				return Long.compare(groups.get(b)[1], groups.get(a)[1]);
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		sb.append("live heap: ").append(blocks).append(" blocks, ")
+				.append(total).append(" words");
+		sb.append("\n  site, size (blocks, words):");
+		for (Long key : keys.subList(0, Math.min(n, keys.size()))) {
+			long[] group = groups.get(key);
+			sb.append(String.format("\n  %8d, %8d: %10d %12d %s",
+					key >>> 32, key & 0xffffffffL, group[0], group[1],
+					Profiler.percent(group[1], total)))
+					.append(Profiler.line(vm.lines, (int) (key >>> 32)));
+		}
+		return sb.toString();
+	}
+}
@@ -7,45 +7,213 @@
 package ssw.mj;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import ssw.mj.codegen.Code;
 import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.codegen.LineTable;
 
 public class Interpreter {
 
-	private boolean debug; // debug output on or off
-	private byte code[]; // code array
-	private int data[]; // global data
-	private int heap[]; // dynamic heap
-	private int stack[]; // expression stack
-	private int local[]; // method stack
-	private int startPC; // address of main() method
-	private int pc; // program counter
-	private int fp, sp; // frame pointer, stack pointer on method stack
-	private int esp; // expression stack pointer
-	private int free; // next free heap address
-	private static final int heapSize = 100000, // size of the heap in words
+	protected byte code[]; // code array
+	protected int data[]; // global data
+	protected int heap[]; // dynamic heap
+	protected int stack[]; // expression stack
+	protected int local[]; // method stack
+	protected int startPC; // address of main() method
+	protected int pc; // program counter
+	protected int fp, sp; // frame pointer, stack pointer on method stack
+	protected int esp; // expression stack pointer
+	protected int free; // next free heap address
+	protected int heapWords = heapSize; // size of the heap in words
+	private OffHeap offHeap; // heap outside of heap[], null if not used
+	private ExecutionListener listener; // null if runs are not observed
+	private Sampler sampler; // null if runs are not sampled
+	private HeapProfiler heapProfiler; // null if allocations are not profiled
+	int allocSite[]; // pc of the allocation per header, while profiling
+	LineTable lines; // source positions of the code, null if unknown
+	private int failedPC = -1; // instruction that stopped the last run
+	protected static final int heapSize = 100000, // size of the heap in words
 			mStackSize = 4000, // size of the method stack in words
 			eStackSize = 30; // size of the expression stack in words
+	// words of heap and method stack that are committed first
+	private static final int heapChunk = 1024, mStackChunk = 256;
 
-	private void write(String s, int len) {
-		for (int i = 0; i < len; i++) {
-			io.write(' ');
+	// reference tags: true if the word holds a heap address
+	protected boolean stackRef[], localRef[], dataRef[], heapRef[];
+	protected boolean isHeader[]; // true for the header word of every block
+	private Collector collector; // null while garbage collection is off
+	private boolean generational; // young and old generation
+	protected boolean cards[]; // dirty cards of the generational collector
+	protected static final int CARD_SHIFT = 5; // 32 words per card
+
+	// kinds of heap blocks, stored in the upper bits of their header word
+	static final int OBJECT = 0, WORD_ARRAY = 1, BYTE_ARRAY = 2;
+	static final int KIND_SHIFT = 28, SIZE_MASK = (1 << KIND_SHIFT) - 1;
+
+	/** Spaces for padding output fields. */
+	private static final char[] SPACES = new char[64];
+	static {
+		Arrays.fill(SPACES, ' ');
+	}
+
+	/** Writes n spaces, nothing if n <= 0. */
+	private void pad(int n) {
+		while (n > 0) {
+			int len = Math.min(n, SPACES.length);
+			io.write(SPACES, 0, len);
+			n -= len;
+		}
+	}
+
+	public interface IO {
+		char read();
+
+		void write(char c);
+
+		/**
+		 * Reads an int: skips to the next digit, reads all digits and the
+		 * character after them. The int is negative if the character before
+		 * the digits is '-'.
+		 */
+		default int readInt() {
+			int val = 0;
+			int prev = ' ';
+			int b = read();
+			while (b < '0' || b > '9') {
+				prev = b;
+				b = read();
+			}
+			while (b >= '0' && b <= '9') {
+				val = 10 * val + b - '0';
+				b = read();
+			}
+			if (prev == '-') {
+				val = -val;
+			}
+			return val;
+		}
+
+		/** Writes len characters of buf starting at off. */
+		default void write(char[] buf, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				write(buf[i]);
+			}
+		}
+
+		/** Writes val right-aligned in a field of width characters. */
+		default void writeInt(int val, int width) {
+			String s = Integer.toString(val);
+			for (int i = s.length(); i < width; i++) {
+				write(' ');
+			}
+			for (int i = 0; i < s.length(); i++) {
+				write(s.charAt(i));
+			}
+		}
+
+		/** Passes buffered output on to its destination. */
+		default void flush() {
+		}
+	}
+
+	/**
+	 * Base class of buffered I/O. Output is collected in a character buffer,
+	 * which is passed to {@link #writeOut} when it is full and on
+	 * {@link #flush()}. Integers are formatted directly into the buffer, so
+	 * writing does not allocate.
+	 */
+	public abstract static class BufferedIO implements IO {
+
+		private static final int SIZE = 8192;
+
+		private final char[] out = new char[SIZE];
+		private int outLen;
+
+		/** Writes len characters of buf starting at off to the destination. */
+		protected abstract void writeOut(char[] buf, int off, int len);
+
+		@Override
+		public void write(char c) {
+			if (outLen == SIZE) {
+				flush();
+			}
+			out[outLen++] = c;
+		}
+
+		@Override
+		public void write(char[] buf, int off, int len) {
+			if (len > SIZE - outLen) {
+				flush();
+				if (len > SIZE) {
+					writeOut(buf, off, len);
+					return;
+				}
+			}
+			System.arraycopy(buf, off, out, outLen, len);
+			outLen += len;
+		}
+
+		@Override
+		public void writeInt(int val, int width) {
+			int len = val < 0 ? 2 : 1; // characters of val
+			for (int v = val / 10; v != 0; v /= 10) {
+				len++;
+			}
+			for (int n = width - len; n > 0;) { // padding
+				if (outLen == SIZE) {
+					flush();
+				}
+				int k = Math.min(n, SIZE - outLen);
+				Arrays.fill(out, outLen, outLen + k, ' ');
+				outLen += k;
+				n -= k;
+			}
+			if (len > SIZE - outLen) {
+				flush();
+			}
+			// digits from the right, negated so that MIN_VALUE works
+			int pos = outLen + len;
+			int v = val < 0 ? val : -val;
+			do {
+				out[--pos] = (char) ('0' - v % 10);
+				v /= 10;
+			} while (v != 0);
+			if (val < 0) {
+				out[--pos] = '-';
+			}
+			outLen += len;
 		}
-		for (int i = 0; i < s.length(); i++) {
-			io.write(s.charAt(i));
+
+		@Override
+		public void flush() {
+			if (outLen > 0) {
+				int len = outLen;
+				outLen = 0; // not written again if writeOut throws
+				writeOut(out, 0, len);
+			}
 		}
 	}
 
-	public static class BufferIO implements IO {
+	public static class BufferIO extends BufferedIO {
 
-		private StringBuffer output;
-		private String input;
+		private final StringBuilder output;
+		private final String input;
 
 		private int inputPos;
 
 		public BufferIO(String input) {
-			output = new StringBuffer();
+			output = new StringBuilder();
 			this.input = input;
 		}
 
@@ -59,55 +227,83 @@ public class Interpreter {
 		}
 
 		@Override
-		public void write(char c) {
-			output.append(c);
+		protected void writeOut(char[] buf, int off, int len) {
+			output.append(buf, off, len);
 		}
 
 		public String getOutput() {
+			flush();
 			return output.toString();
 		}
 	}
 
-	public static final IO ConsoleIO = new IO() {
+	/**
+	 * Buffered I/O on byte streams. Input is read in blocks; pending output is
+	 * flushed before blocking on input, so that prompts appear.
+	 */
+	public static class StreamIO extends BufferedIO {
+
+		private final InputStream in;
+		private final Writer out;
+		private final byte[] inBuf = new byte[8192];
+		private int inPos, inLen;
+
+		public StreamIO(InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = new OutputStreamWriter(out);
+		}
 
 		@Override
 		public char read() {
-			try {
-				int i = System.in.read();
-				if (i == -1) {
+			if (inPos == inLen) {
+				flush();
+				inPos = 0;
+				try {
+					inLen = Math.max(in.read(inBuf), 0);
+				} catch (IOException ex) {
+					inLen = 0;
+				}
+				if (inLen == 0) {
 					return 0;
 				}
-				return (char) i;
-			} catch (IOException ex) {
-				return 0;
 			}
+			return (char) (inBuf[inPos++] & 0xff);
 		}
 
 		@Override
-		public void write(char c) {
-			System.out.print(c);
+		protected void writeOut(char[] buf, int off, int len) {
+			try {
+				out.write(buf, off, len);
+				out.flush();
+			} catch (IOException ex) {
+				// ignored like by System.out
+			}
 		}
-	};
-
-	public interface IO {
-		char read();
-
-		void write(char c);
 	}
 
-	private IO io;
+	public static final IO ConsoleIO = new ChannelIO(
+			Channels.newChannel(System.in), System.out);
+
+	protected IO io;
 
 	public Interpreter(byte[] code, int startPC, int dataSize, IO io,
 			boolean debug) {
 		this.code = code;
 		this.startPC = startPC;
 		this.io = io;
-		this.debug = debug;
-		heap = new int[heapSize]; // fixed sized heap
+		if (debug) {
+			listener = new DebugListener(code, System.out);
+		}
+		heap = new int[heapChunk]; // grows up to heapSize
 		data = new int[dataSize]; // global data as specified in
 		// classfile
 		stack = new int[eStackSize]; // expression stack
-		local = new int[mStackSize]; // method stack
+		local = new int[mStackChunk]; // method stack, grows up to mStackSize
+		stackRef = new boolean[eStackSize];
+		localRef = new boolean[mStackChunk];
+		dataRef = new boolean[dataSize];
+		heapRef = new boolean[heapChunk];
+		isHeader = new boolean[heapChunk];
 		fp = 0;
 		sp = 0;
 		esp = 0;
@@ -115,14 +311,15 @@ public class Interpreter {
 	}
 
 	// ----- expression stack
-	private void push(int val) throws IllegalStateException {
+	protected void push(int val) throws IllegalStateException {
 		if (esp == eStackSize) {
 			throw new IllegalStateException("expression stack overflow");
 		}
+		stackRef[esp] = false;
 		stack[esp++] = val;
 	}
 
-	private int pop() throws IllegalStateException {
+	protected int pop() throws IllegalStateException {
 		if (esp == 0) {
 			throw new IllegalStateException("expression stack underflow");
 		}
@@ -130,14 +327,29 @@ public class Interpreter {
 	}
 
 	// ----- method stack
-	private void PUSH(int val) throws IllegalStateException {
+	protected void PUSH(int val) throws IllegalStateException {
 		if (sp == mStackSize) {
 			throw new IllegalStateException("method stack overflow");
 		}
+		if (sp == local.length) {
+			growLocal(sp + 1);
+		}
+		localRef[sp] = false;
 		local[sp++] = val;
 	}
 
-	private int POP() throws IllegalStateException {
+	/**
+	 * Commits at least n words of the method stack, doubling its size, and
+	 * returns the new stack.
+	 */
+	protected final int[] growLocal(int n) {
+		int len = Math.min(mStackSize, Math.max(n, 2 * local.length));
+		local = Arrays.copyOf(local, len);
+		localRef = Arrays.copyOf(localRef, len);
+		return local;
+	}
+
+	protected int POP() throws IllegalStateException {
 		if (sp == 0) {
 			throw new IllegalStateException("method stack underflow");
 		}
@@ -145,53 +357,191 @@ public class Interpreter {
 	}
 
 	// ----- instruction fetch
-	private byte next(boolean dbgPrint) {
-		byte b = code[pc++];
-		if (debug && dbgPrint) {
-			System.out.print(b + " ");
+	private byte next() {
+		return code[pc++];
+	}
+
+	private short next2() {
+		return (short) (((next() << 8) + (next() & 0xff)) << 16 >> 16);
+	}
+
+	private int next4() {
+		return (next2() << 16) + (next2() & 0xffff);
+	}
+
+	// ----- heap words and their tags, in heap[] or off the Java heap
+
+	final int heapWord(int adr) {
+		return offHeap == null ? heap[adr] : offHeap.get(adr);
+	}
+
+	final void setHeapWord(int adr, int val) {
+		if (offHeap == null) {
+			heap[adr] = val;
+		} else {
+			offHeap.set(adr, val);
 		}
-		return b;
 	}
 
-	private short next2(boolean dbgPrint) {
-		short s = (short) (((next(false) << 8)
-				+ (next(false) & 0xff)) << 16 >> 16);
-		if (debug && dbgPrint) {
-			System.out.print(s + " ");
+	final boolean isHeapRef(int adr) {
+		return offHeap == null ? heapRef[adr] : offHeap.isRef(adr);
+	}
+
+	final void setHeapRef(int adr, boolean ref) {
+		if (offHeap == null) {
+			heapRef[adr] = ref;
+		} else {
+			offHeap.setRef(adr, ref);
 		}
-		return s;
 	}
 
-	private int next4() {
-		return next4(true);
+	final boolean isHeader(int adr) {
+		return offHeap == null ? isHeader[adr] : offHeap.isHeader(adr);
 	}
 
-	private int next4(boolean dbgPrint) {
-		int n = (next2(false) << 16) + (next2(false) & 0xffff);
-		if (debug && dbgPrint) {
-			System.out.print(n + " ");
+	final void setHeader(int adr, boolean header) {
+		if (offHeap == null) {
+			isHeader[adr] = header;
+		} else {
+			offHeap.setHeader(adr, header);
 		}
-		return n;
 	}
 
-	/** Allocate heap block of size bytes */
-	private int alloc(int size) throws IllegalStateException {
-		int adr = free;
-		free += ((size + 3) >> 2); // skip to next free adr
-		// (>> 2 to convert byte to word)
-		if (free > heapSize) {
+	/** Moves n heap words with their tags from from to to (to below from). */
+	final void moveHeap(int from, int to, int n) {
+		if (offHeap == null) {
+			System.arraycopy(heap, from, heap, to, n);
+			System.arraycopy(heapRef, from, heapRef, to, n);
+			System.arraycopy(isHeader, from, isHeader, to, n);
+			if (allocSite != null) {
+				System.arraycopy(allocSite, from, allocSite, to, n);
+			}
+		} else {
+			offHeap.copy(from, to, n);
+		}
+	}
+
+	/** Clears the heap words from..to-1 and their tags. */
+	final void clearHeap(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		if (offHeap == null) {
+			Arrays.fill(heap, from, to, 0);
+			Arrays.fill(heapRef, from, to, false);
+			Arrays.fill(isHeader, from, to, false);
+			if (allocSite != null) {
+				Arrays.fill(allocSite, from, to, 0);
+			}
+		} else {
+			offHeap.clear(from, to);
+		}
+	}
+
+	/** Returns true if the heap is outside of heap[]. */
+	protected final boolean isOffHeap() {
+		return offHeap != null;
+	}
+
+	/**
+	 * Allocate a heap block with a header and size words after it. Collects
+	 * garbage first if the heap is full. Returns the address of the header.
+	 */
+	protected int alloc(int kind, int size) throws IllegalStateException {
+		if (size < 0 || size > SIZE_MASK) {
 			throw new IllegalStateException("heap overflow");
 		}
+		if (size >= heapWords - free) {
+			if (collector == null || !collector.makeRoom(size + 1)) {
+				throw new IllegalStateException("heap overflow");
+			}
+		}
+		int adr = free;
+		free += size + 1;
+		if (offHeap == null && free > heap.length) {
+			growHeap(free);
+		}
+		setHeapWord(adr, (kind << KIND_SHIFT) | size);
+		setHeader(adr, true);
 		return adr;
 	}
 
+	/** Commits at least n heap words, doubling the size of the heap. */
+	private void growHeap(int n) {
+		int len = Math.min(heapWords, Math.max(n, 2 * heap.length));
+		heap = Arrays.copyOf(heap, len);
+		heapRef = Arrays.copyOf(heapRef, len);
+		isHeader = Arrays.copyOf(isHeader, len);
+		if (allocSite != null) {
+			allocSite = Arrays.copyOf(allocSite, len);
+		}
+	}
+
+	/**
+	 * Returns the bytes committed for the heap, the method stack and the
+	 * tables kept beside the heap by the collector and the heap profiler. All
+	 * of them only grow during a run, so this is the peak of the run.
+	 */
+	public long committedBytes() {
+		long bytes = local.length * 4L + localRef.length;
+		if (cards != null) {
+			bytes += cards.length;
+		}
+		if (allocSite != null) {
+			bytes += allocSite.length * 4L;
+		}
+		if (collector != null) {
+			bytes += collector.committedBytes();
+		}
+		if (offHeap != null) {
+			return bytes + offHeap.committed();
+		}
+		return bytes + heap.length * 4L + heapRef.length + isHeader.length;
+	}
+
+	/**
+	 * Allocates like alloc(kind, size) and records site as the allocation
+	 * site of the block if allocations are profiled.
+	 */
+	private int alloc(int kind, int size, int site) {
+		if (heapProfiler == null) {
+			return alloc(kind, size);
+		}
+		heapProfiler.allocating(site, size + 1);
+		int adr = alloc(kind, size);
+		allocSite[adr] = site;
+		heapProfiler.allocated();
+		return adr;
+	}
+
+	/** Allocate an object with nFields fields (new) */
+	protected int newObject(int nFields) throws IllegalStateException {
+		return alloc(OBJECT, nFields, pc - 3) + 1; // after new and operand
+	}
+
+	/**
+	 * Allocate an array of len elements (newarray). Byte arrays (elemSize 0)
+	 * pack four elements per word. Returns the address of element 0, the
+	 * length is stored in the word before.
+	 */
+	protected int newArray(int len, int elemSize) throws IllegalStateException {
+		int words = len <= 0 ? 0 : elemSize == 0 ? (len - 1) / 4 + 1 : len;
+		if (words > SIZE_MASK - 1) { // the length field does not fit, too
+			throw new IllegalStateException("heap overflow");
+		}
+		int adr = alloc(elemSize == 0 ? BYTE_ARRAY : WORD_ARRAY, words + 1,
+				pc - 2); // after newarray and operand
+		setHeapWord(adr + 1, len);
+		return adr + 2; // skip header and length field of array
+	}
+
 	/** Retrieve byte n from val. Byte 0 is MSB */
-	private static byte getByte(int val, int n) {
+	protected static byte getByte(int val, int n) {
 		return (byte) (val << (8 * n) >>> 24);
 	}
 
 	/** Replace byte n in val by b */
-	private static int setByte(int val, int n, byte b) {
+	protected static int setByte(int val, int n, byte b) {
 		int delta = (3 - n) * 8;
 		int mask = ~(255 << delta); // mask all 1 except on chosen byte
 		int by = (b & 255) << delta;
@@ -199,91 +549,482 @@ public class Interpreter {
 	}
 
 	/** Read int from standard input stream */
-	private int readInt() {
-		int val = 0;
-		int prev = ' ';
-		int b = io.read();
-		while (b < '0' || b > '9') {
-			prev = b;
-			b = io.read();
+	protected int readInt() {
+		return io.readInt();
+	}
+
+	/** Print val right-aligned in a field of width characters */
+	protected void printInt(int val, int width) {
+		io.writeInt(val, width);
+	}
+
+	/** Print character val right-aligned in a field of width characters */
+	protected void printChar(int val, int width) {
+		pad(width - 1);
+		io.write((char) val);
+	}
+
+	// ----- hooks for other execution tiers
+
+	/**
+	 * Called by {@link #interpret()} after a call has transferred control to
+	 * the method at entry. Returns true if the program was completed by
+	 * another tier; otherwise execution continues at pc.
+	 */
+	protected boolean onCall(int entry) {
+		return false;
+	}
+
+	/**
+	 * Called by {@link #interpret()} after a backward jump to header. Returns
+	 * true if the program was completed by another tier; otherwise execution
+	 * continues at pc.
+	 */
+	protected boolean onBackEdge(int header) {
+		return false;
+	}
+
+	/**
+	 * Returns a summary of what the execution engine did during the last
+	 * run, or null if there is nothing to report.
+	 */
+	public String statistics() {
+		return collector == null ? null : collector.statistics();
+	}
+
+	/**
+	 * Selects the generational garbage collector, which allocates in a
+	 * nursery and promotes surviving blocks to an old space.
+	 */
+	public void setGenerational(boolean generational) {
+		this.generational = generational;
+	}
+
+	/**
+	 * Moves the heap out of the Java heap into direct memory, which is
+	 * allocated in chunks as the heap grows, up to maxBytes. Only the
+	 * standard interpreter supports this, so the other engines use it
+	 * instead.
+	 */
+	public void setHeapLimit(long maxBytes) {
+		if (heapProfiler != null) {
+			throw new IllegalStateException("heap profiling needs heap[]");
+		}
+		if (maxBytes < 64) {
+			throw new IllegalArgumentException("heap limit too small");
+		}
+		heapWords = (int) Math.min(maxBytes / 4, Integer.MAX_VALUE);
+		offHeap = new OffHeap(heapWords, true);
+		heap = null;
+		heapRef = null;
+		isHeader = null;
+	}
+
+	// ----- fuel, time limit and pausing at safepoints
+
+	/** The limits that can end a run before main() returns. */
+	public enum Limit {
+		/** The run passed more safepoints than set by setFuel. */
+		FUEL,
+		/** The run took longer than set by setTimeLimit. */
+		TIME
+	}
+
+	/** Thrown at a safepoint when a run exceeds one of its limits. */
+	public static class LimitExceeded extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		public final Limit limit;
+
+		LimitExceeded(Limit limit, String message) {
+			super(message);
+			this.limit = limit;
+		}
+	}
+
+	/** Ends the time limits of all interpreters. */
+	private static final ScheduledThreadPoolExecutor timer = //
+			new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MicroJava time limits");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	/** Ends the time of a run without keeping its interpreter alive. */
+	private static final class Timeout implements Runnable {
+		private final WeakReference<Interpreter> vm;
+
+		Timeout(Interpreter vm) {
+			this.vm = new WeakReference<Interpreter>(vm);
 		}
-		while (b >= '0' && b <= '9') {
-			val = 10 * val + b - '0';
-			b = io.read();
+
+		@Override
+		public void run() {
+			Interpreter i = vm.get();
+			if (i != null) {
+				synchronized (i) {
+					i.timeUp = true;
+					i.interrupted = true;
+				}
+			}
 		}
-		if (prev == '-') {
-			val = -val;
+	}
+
+	private boolean supervised; // safepoints are checked
+	private long maxFuel = Long.MAX_VALUE; // safepoints the run may pass
+	private long fuel = Long.MAX_VALUE; // safepoints left
+	private long timeLimit; // ms, 0 if there is none
+	private long timeLeft; // ns, while the timer is not started
+	private long deadline; // System.nanoTime() when the time is up
+	private ScheduledFuture<?> timeout; // null while the timer is stopped
+	private boolean timeUp, pauseRequested; // guarded by this
+	private volatile boolean paused;
+	// set when the run has to stop at its next safepoint
+	private volatile boolean interrupted;
+
+	/**
+	 * Called by every engine at a safepoint, i.e. at every taken backward
+	 * jump and every call, so that every endless loop or recursion passes
+	 * safepoints. Counts the fuel of supervised runs; the time limit and pause
+	 * requests are signaled by other threads. The branches are only taken
+	 * when the run has to stop and supervised does not change during a run,
+	 * so that the JVM can compile the checks out of the code of other runs.
+	 */
+	protected final void safepoint() {
+		if (supervised && (--fuel < 0 || interrupted)) {
+			stop();
+		}
+	}
+
+	/** For engines that number their instructions: a jump from from to to. */
+	protected final int jump(int from, int to) {
+		if (supervised && to <= from && (--fuel < 0 || interrupted)) {
+			stop();
+		}
+		return to;
+	}
+
+	/** Ends the run at a safepoint or pauses it. */
+	private synchronized void stop() {
+		if (fuel < 0) {
+			throw new LimitExceeded(Limit.FUEL, "fuel of " + maxFuel
+					+ " safepoints used up");
+		}
+		if (timeLimit > 0 && timeout == null && !timeUp) {
+			startTimer(); // at the first safepoint of the run
+		}
+		if (pauseRequested && !timeUp) {
+			stopTimer();
+			paused = true;
+			try {
+				while (pauseRequested) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				pauseRequested = false; // an interrupt resumes the run
+				Thread.currentThread().interrupt();
+			} finally {
+				paused = false;
+			}
+			startTimer();
+		}
+		if (timeUp) {
+			throw new LimitExceeded(Limit.TIME, "time limit of " + timeLimit
+					+ " ms exceeded");
+		}
+		interrupted = false;
+	}
+
+	private void startTimer() {
+		if (timeLimit > 0) {
+			deadline = System.nanoTime() + timeLeft;
+			timeout = timer.schedule(new Timeout(this), timeLeft,
+					TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/** Stops the timer, so that pauses do not count. */
+	private void stopTimer() {
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+			timeLeft = Math.max(deadline - System.nanoTime(), 0);
+		}
+	}
+
+	/**
+	 * Stops the run with a {@link LimitExceeded} when it passes more than
+	 * fuel safepoints; a negative value removes the limit. A program runs a
+	 * bounded number of instructions between two safepoints. Engines count
+	 * the safepoints of their translated code, so they may differ slightly
+	 * for the same program. Must be called before the run.
+	 */
+	public void setFuel(long fuel) {
+		maxFuel = fuel < 0 ? Long.MAX_VALUE : fuel;
+		this.fuel = maxFuel;
+		supervised |= fuel >= 0;
+	}
+
+	/**
+	 * Stops the run with a {@link LimitExceeded} at the next safepoint after
+	 * it has run for millis milliseconds, not counting pauses; 0 removes the
+	 * limit. The time starts anew at the first safepoint of every run. Must
+	 * be called before the run.
+	 */
+	public synchronized void setTimeLimit(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("negative time limit");
+		}
+		timeLimit = millis;
+		timeLeft = TimeUnit.MILLISECONDS.toNanos(millis);
+		interrupted = millis > 0; // starts the timer
+		supervised |= millis > 0;
+	}
+
+	/**
+	 * Checks the safepoints of the run even if it has no limits, so that it
+	 * can be paused. Must be called before the run.
+	 */
+	public void setPausable(boolean pausable) {
+		supervised |= pausable;
+	}
+
+	/** Number of safepoints a supervised run has passed so far. */
+	public long safepoints() {
+		return maxFuel - fuel;
+	}
+
+	/**
+	 * Asks the running program to pause. A supervised run stops at its next
+	 * safepoint (see {@link #isPaused()}) until {@link #resume()} is called by
+	 * another thread. May be called from any thread.
+	 */
+	public synchronized void pause() {
+		pauseRequested = true;
+		interrupted = true;
+	}
+
+	/** Continues a paused run or cancels a pause request. */
+	public synchronized void resume() {
+		pauseRequested = false;
+		notifyAll();
+	}
+
+	/** Returns true while the run waits at a safepoint to be resumed. */
+	public boolean isPaused() {
+		return paused;
+	}
+
+	// ----- observing runs
+
+	/**
+	 * Reports the events of the following runs to listener, or to nobody if
+	 * it is null. Runs with a listener are executed by a separate loop of
+	 * this interpreter, also by the engines that compile the program, so that
+	 * the loops of other runs do not check for one.
+	 */
+	public void setListener(ExecutionListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Profiles the following runs with a new profiler, which replaces the
+	 * listener, and returns it.
+	 */
+	public Profiler profile() {
+		Profiler p = new Profiler(code, startPC);
+		p.setLineTable(lines);
+		listener = p;
+		return p;
+	}
+
+	/**
+	 * Samples the following runs every interval microseconds with a new
+	 * sampler and returns it. Sampled runs are executed by the fast loop of
+	 * this interpreter, also by the engines that compile the program.
+	 */
+	public Sampler sample(int interval) {
+		sampler = new Sampler(this, interval);
+		return sampler;
+	}
+
+	/**
+	 * Profiles the allocations of the following runs with a new heap profiler
+	 * and returns it. Like sampled runs, these runs are executed by this
+	 * interpreter, which knows the pc of every allocation. The heap must not
+	 * be off the Java heap.
+	 */
+	public HeapProfiler profileHeap() {
+		if (offHeap != null) {
+			throw new IllegalStateException("heap profiling needs heap[]");
 		}
-		return val;
+		heapProfiler = new HeapProfiler(this);
+		allocSite = new int[heap.length];
+		return heapProfiler;
+	}
+
+	/**
+	 * Collects garbage and returns the end of the remaining blocks, which
+	 * start at address 1.
+	 */
+	int collectAll() {
+		return collector == null ? free : collector.collectAll();
+	}
+
+	/**
+	 * Returns true if the runs are reported to a listener, sampled or their
+	 * allocations profiled, which only this interpreter supports.
+	 */
+	protected final boolean isObserved() {
+		return listener != null || sampler != null || heapProfiler != null;
 	}
 
-	private void printInstr() {
-		int op = code[pc - 1];
-		OpCode opCode = Code.OpCode.get(op);
-		String instr = (opCode != null) ? opCode.cleanName() : "???";
-		System.out.printf("%5d: %s ", pc - 1, instr);
+	/**
+	 * Sets the source positions of the code, which the reports of the
+	 * profilers and runtime errors refer to.
+	 */
+	public void setLineTable(LineTable lines) {
+		this.lines = lines;
 	}
 
-	private void printStack() {
-		for (int i = 0; i < esp; i++) {
-			System.out.print(stack[i] + " ");
+	/** Returns the source positions of the code, null if unknown. */
+	public LineTable lineTable() {
+		return lines;
+	}
+
+	/**
+	 * Returns the pc of the instruction at which the last run failed with a
+	 * runtime error, or -1 if it did not fail or the engine does not know
+	 * the pc, because it executed compiled code.
+	 */
+	public int failedPC() {
+		return failedPC;
+	}
+
+	/** Returns the pc of the instruction that contains adr. */
+	private int instructionAt(int adr) {
+		int start = 0;
+		for (int i = 0; i <= adr && i < code.length;) {
+			OpCode op = OpCode.get(code[i]);
+			if (op == null) {
+				break;
+			}
+			start = i;
+			i += 1 + op.getOpsSize();
 		}
-		System.out.println();
+		return start;
 	}
 
 	// ----- actual interpretation
 	public void run() throws IllegalStateException {
-		Code.OpCode op;
-		int adr, val, val2, off, idx, len, i;
+		beginRun();
 		pc = startPC;
+		failedPC = -1;
+		// only this interpreter keeps the reference tags up to date
+		collector = new Collector(this, generational);
+		if (sampler != null) {
+			sampler.start();
+		}
+		try {
+			if (listener != null) {
+				interpretListened();
+			} else {
+				interpret();
+			}
+		} catch (RuntimeException e) {
+			// pc is behind the opcode or an operand of the failed instruction
+			if (!(e instanceof LimitExceeded)) {
+				failedPC = instructionAt(pc - 1);
+			}
+			throw e;
+		} finally {
+			if (sampler != null) {
+				sampler.stop();
+			}
+			endRun();
+		}
+	}
+
+	/**
+	 * Starts the time limit of a run anew. Engines that execute the program
+	 * without {@link #run()} of this class call it before the run.
+	 */
+	protected final synchronized void beginRun() {
+		stopTimer();
+		timeUp = false;
+		timeLeft = TimeUnit.MILLISECONDS.toNanos(timeLimit);
+		interrupted = timeLimit > 0 || pauseRequested; // starts the timer
+	}
 
-		if (debug) { // header for debug output
-			System.out.println();
-			System.out.println("  pos: instruction operands");
-			System.out.println("     | expressionstack");
-			System.out.println("-----------------------------");
+	/**
+	 * Stops the timer and passes the buffered output on at the end of a run.
+	 * Engines that execute the program without {@link #run()} of this class
+	 * call it when the run ends, also if it fails.
+	 */
+	protected final void endRun() {
+		synchronized (this) {
+			stopTimer();
 		}
+		io.flush();
+	}
+
+	/** Interprets the program from pc until main() returns */
+	protected final void interpret() throws IllegalStateException {
+		Code.OpCode op;
+		int adr, val, val2, off, idx, len, i;
+		boolean ref, ref2; // reference tags of val and val2
 
 		for (;;) { // terminated by return instruction
-			op = Code.OpCode.get(next(false));
-			if (debug) {
-				printInstr();
-			}
+			op = Code.OpCode.get(next());
 
 			switch (op) {
 
 			// load/store local variables
 			case load:
-				push(local[fp + next(true)]);
+				off = fp + next();
+				push(local[off]);
+				stackRef[esp - 1] = localRef[off];
 				break;
 			case load_0:
 			case load_1:
 			case load_2:
 			case load_3:
-				push(local[fp + op.code() - Code.OpCode.load_0.code()]); // mapping
-																			// on
-																			// range
-																			// 0..3
+				off = fp + op.code() - Code.OpCode.load_0.code(); // mapping on
+																	// range 0..3
+				push(local[off]);
+				stackRef[esp - 1] = localRef[off];
 				break;
 			case store:
-				local[fp + next(true)] = pop();
+				off = fp + next();
+				local[off] = pop();
+				localRef[off] = stackRef[esp];
 				break;
 			case store_0:
 			case store_1:
 			case store_2:
 			case store_3:
-				local[fp + op.code() - Code.OpCode.store_0.code()] = pop(); // mapping
-																			// on
-																			// range
-																			// 0..3
+				off = fp + op.code() - Code.OpCode.store_0.code(); // mapping on
+																	// range 0..3
+				local[off] = pop();
+				localRef[off] = stackRef[esp];
 				break;
 
 			// load/store global variables
 			case getstatic:
-				push(data[next2(true)]);
+				off = next2();
+				push(data[off]);
+				stackRef[esp - 1] = dataRef[off];
 				break;
 			case putstatic:
-				data[next2(true)] = pop();
+				off = next2();
+				data[off] = pop();
+				dataRef[off] = stackRef[esp];
 				break;
 
 			// load/store object fields
@@ -292,15 +1033,23 @@ public class Interpreter {
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				push(heap[adr + next2(true)]);
+				off = adr + next2();
+				push(heapWord(off));
+				stackRef[esp - 1] = isHeapRef(off);
 				break;
 			case putfield:
 				val = pop();
+				ref = stackRef[esp];
 				adr = pop();
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				heap[adr + next2(true)] = val;
+				off = adr + next2();
+				setHeapWord(off, val);
+				setHeapRef(off, ref);
+				if (ref && cards != null) { // write barrier
+					cards[off >> CARD_SHIFT] = true;
+				}
 				break;
 
 			// load constants
@@ -356,24 +1105,393 @@ public class Interpreter {
 				push(pop() >> val);
 				break;
 			case inc:
-				off = fp + next(true);
-				local[off] += next(true);
+				off = fp + next();
+				local[off] += next();
 				break;
 
 			// object creation
 			case new_:
-				push(alloc(next2(true) * 4));
+				push(newObject(next2()));
+				stackRef[esp - 1] = true;
 				break;
 			case newarray:
-				val = next(true);
+				val = next();
+				len = pop();
+				push(newArray(len, val));
+				stackRef[esp - 1] = true;
+				break;
+
+			// array access
+			case aload:
+				idx = pop();
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				len = heapWord(adr - 1);
+				if (idx < 0 || idx >= len) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				push(heapWord(adr + idx));
+				stackRef[esp - 1] = isHeapRef(adr + idx);
+				break;
+			case astore:
+				val = pop();
+				ref = stackRef[esp];
+				idx = pop();
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				len = heapWord(adr - 1);
+				if (idx < 0 || idx >= len) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				setHeapWord(adr + idx, val);
+				setHeapRef(adr + idx, ref);
+				if (ref && cards != null) { // write barrier
+					cards[(adr + idx) >> CARD_SHIFT] = true;
+				}
+				break;
+			case baload:
+				idx = pop();
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				len = heapWord(adr - 1);
+				if (idx < 0 || idx >= len) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				push(getByte(heapWord(adr + idx / 4), idx % 4));
+				break;
+			case bastore:
+				val = pop();
+				idx = pop();
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				len = heapWord(adr - 1);
+				if (idx < 0 || idx >= len) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				setHeapWord(adr + idx / 4,
+						setByte(heapWord(adr + idx / 4), idx % 4, (byte) val));
+				break;
+			case arraylength:
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				push(heapWord(adr - 1));
+				break;
+
+			// stack manipulation
+			case pop:
+				pop();
+				break;
+			case dup:
+				val = pop();
+				ref = stackRef[esp];
+				push(val);
+				push(val);
+				stackRef[esp - 2] = stackRef[esp - 1] = ref;
+				break;
+			case dup2:
+				val = pop();
+				ref = stackRef[esp];
+				val2 = pop();
+				ref2 = stackRef[esp];
+				push(val2);
+				push(val);
+				push(val2);
+				push(val);
+				stackRef[esp - 4] = stackRef[esp - 2] = ref2;
+				stackRef[esp - 3] = stackRef[esp - 1] = ref;
+				break;
+
+			// jumps
+			case jmp:
+				off = next2();
+				pc += off - 3;
+				if (off < 0) {
+					safepoint();
+					if (onBackEdge(pc)) {
+						return;
+					}
+				}
+				break;
+
+			case jeq:
+			case jne:
+			case jlt:
+			case jle:
+			case jgt:
+			case jge:
+				off = next2();
+				val2 = pop();
+				val = pop();
+				boolean cond = false;
+				switch (op) {
+				case jeq:
+					cond = val == val2;
+					break;
+				case jne:
+					cond = val != val2;
+					break;
+				case jlt:
+					cond = val < val2;
+					break;
+				case jle:
+					cond = val <= val2;
+					break;
+				case jgt:
+					cond = val > val2;
+					break;
+				case jge:
+					cond = val >= val2;
+					break;
+				default:
+					assert false;
+				}
+				if (cond) {
+					pc += off - 3;
+					if (off < 0) {
+						safepoint();
+						if (onBackEdge(pc)) {
+							return;
+						}
+					}
+				}
+				break;
+
+			// method calls
+			case call:
+				off = next2();
+				PUSH(pc);
+				pc += off - 3;
+				safepoint();
+				if (onCall(pc)) {
+					return;
+				}
+				break;
+
+			case return_:
+				if (sp == 0) {
+					return;
+				}
+				pc = POP();
+				break;
+			case enter:
+				int psize = next();
+				int lsize = next();
+				PUSH(fp);
+				fp = sp;
+				for (i = 0; i < lsize; i++) {
+					PUSH(0);
+				}
+				assert sp == (fp + lsize);
+				for (i = psize - 1; i >= 0; i--) {
+					local[fp + i] = pop();
+					localRef[fp + i] = stackRef[esp];
+				}
+				break;
+			case exit:
+				sp = fp;
+				fp = POP();
+				break;
+
+			// I/O
+			case read:
+				push(readInt());
+				break;
+
+			case print:
 				len = pop();
+				val = pop();
+				printInt(val, len);
+				break;
+			case bread:
+				push(io.read());
+				break;
+			case bprint:
+				len = pop();
+				val = pop();
+				printChar(val, len);
+				break;
+			case nop:
+				// nothing to do
+				break;
+			case trap:
+				throw new IllegalStateException("trap(" + next() + ")");
+			default:
+				throw new IllegalStateException("wrong opcode " + op);
+			}
+		}
+	}
+
+	// ----- instrumented interpretation
+
+	/**
+	 * Interprets the program like {@link #interpret()} and reports every
+	 * instruction, call, return, allocation and I/O to the listener. Other
+	 * tiers are not entered.
+	 */
+	private void interpretListened() throws IllegalStateException {
+		ExecutionListener l = listener;
+		Code.OpCode op;
+		int at, adr, val, val2, off, idx, len, i;
+		boolean ref, ref2; // reference tags of val and val2
+
+		for (;;) { // terminated by return instruction
+			at = pc;
+			op = Code.OpCode.get(next());
+			if (op == null) {
+				throw new IllegalStateException("wrong opcode " + code[at]);
+			}
+			l.instruction(at, op, stack, esp);
+
+			switch (op) {
+
+			// load/store local variables
+			case load:
+				off = fp + next();
+				push(local[off]);
+				stackRef[esp - 1] = localRef[off];
+				break;
+			case load_0:
+			case load_1:
+			case load_2:
+			case load_3:
+				off = fp + op.code() - Code.OpCode.load_0.code(); // mapping on
+																	// range 0..3
+				push(local[off]);
+				stackRef[esp - 1] = localRef[off];
+				break;
+			case store:
+				off = fp + next();
+				local[off] = pop();
+				localRef[off] = stackRef[esp];
+				break;
+			case store_0:
+			case store_1:
+			case store_2:
+			case store_3:
+				off = fp + op.code() - Code.OpCode.store_0.code(); // mapping on
+																	// range 0..3
+				local[off] = pop();
+				localRef[off] = stackRef[esp];
+				break;
+
+			// load/store global variables
+			case getstatic:
+				off = next2();
+				push(data[off]);
+				stackRef[esp - 1] = dataRef[off];
+				break;
+			case putstatic:
+				off = next2();
+				data[off] = pop();
+				dataRef[off] = stackRef[esp];
+				break;
+
+			// load/store object fields
+			case getfield:
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				off = adr + next2();
+				push(heapWord(off));
+				stackRef[esp - 1] = isHeapRef(off);
+				break;
+			case putfield:
+				val = pop();
+				ref = stackRef[esp];
+				adr = pop();
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				off = adr + next2();
+				setHeapWord(off, val);
+				setHeapRef(off, ref);
+				if (ref && cards != null) { // write barrier
+					cards[off >> CARD_SHIFT] = true;
+				}
+				break;
+
+			// load constants
+			case const_0:
+			case const_1:
+			case const_2:
+			case const_3:
+			case const_4:
+			case const_5:
+				push(op.code() - Code.OpCode.const_0.code()); // map opcode to
+																// 0..5
+				break;
+			case const_m1:
+				push(-1);
+				break;
+			case const_:
+				push(next4());
+				break;
+
+			// arithmetic operations
+			case add:
+				push(pop() + pop());
+				break;
+			case sub:
+				push(-pop() + pop());
+				break;
+			case mul:
+				push(pop() * pop());
+				break;
+			case div:
+				val = pop();
 				if (val == 0) {
-					adr = alloc(len + 4);
-				} else {
-					adr = alloc(len * 4 + 4);
+					throw new IllegalStateException("division by zero");
 				}
-				heap[adr] = len;
-				push(adr + 1); // skip length field of array
+				push(pop() / val);
+				break;
+			case rem:
+				val = pop();
+				if (val == 0) {
+					throw new IllegalStateException("division by zero");
+				}
+				push(pop() % val);
+				break;
+			case neg:
+				push(-pop());
+				break;
+			case shl:
+				val = pop();
+				push(pop() << val);
+				break;
+			case shr:
+				val = pop();
+				push(pop() >> val);
+				break;
+			case inc:
+				off = fp + next();
+				local[off] += next();
+				break;
+
+			// object creation
+			case new_:
+				val = next2();
+				push(newObject(val));
+				stackRef[esp - 1] = true;
+				l.alloc(at, stack[esp - 1], val + 1);
+				break;
+			case newarray:
+				val = next();
+				len = pop();
+				push(newArray(len, val));
+				stackRef[esp - 1] = true;
+				l.alloc(at, stack[esp - 1],
+						(heapWord(stack[esp - 1] - 2) & SIZE_MASK) + 1);
 				break;
 
 			// array access
@@ -383,30 +1501,30 @@ public class Interpreter {
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				len = heap[adr - 1];
+				len = heapWord(adr - 1);
 				if (idx < 0 || idx >= len) {
 					throw new IllegalStateException("index out of bounds");
 				}
-				push(heap[adr + idx]);
+				push(heapWord(adr + idx));
+				stackRef[esp - 1] = isHeapRef(adr + idx);
 				break;
 			case astore:
 				val = pop();
+				ref = stackRef[esp];
 				idx = pop();
 				adr = pop();
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				len = heap[adr - 1];
-				if (debug) {
-					System.out.println("\nArraylength = " + len);
-					System.out.println("Address = " + adr);
-					System.out.println("Index = " + idx);
-					System.out.println("Value = " + val);
-				}
+				len = heapWord(adr - 1);
 				if (idx < 0 || idx >= len) {
 					throw new IllegalStateException("index out of bounds");
 				}
-				heap[adr + idx] = val;
+				setHeapWord(adr + idx, val);
+				setHeapRef(adr + idx, ref);
+				if (ref && cards != null) { // write barrier
+					cards[(adr + idx) >> CARD_SHIFT] = true;
+				}
 				break;
 			case baload:
 				idx = pop();
@@ -414,11 +1532,11 @@ public class Interpreter {
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				len = heap[adr - 1];
+				len = heapWord(adr - 1);
 				if (idx < 0 || idx >= len) {
 					throw new IllegalStateException("index out of bounds");
 				}
-				push(getByte(heap[adr + idx / 4], idx % 4));
+				push(getByte(heapWord(adr + idx / 4), idx % 4));
 				break;
 			case bastore:
 				val = pop();
@@ -427,19 +1545,19 @@ public class Interpreter {
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				len = heap[adr - 1];
+				len = heapWord(adr - 1);
 				if (idx < 0 || idx >= len) {
 					throw new IllegalStateException("index out of bounds");
 				}
-				heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
-						(byte) val);
+				setHeapWord(adr + idx / 4,
+						setByte(heapWord(adr + idx / 4), idx % 4, (byte) val));
 				break;
 			case arraylength:
 				adr = pop();
 				if (adr == 0) {
 					throw new IllegalStateException("null reference used");
 				}
-				push(heap[adr - 1]);
+				push(heapWord(adr - 1));
 				break;
 
 			// stack manipulation
@@ -448,22 +1566,31 @@ public class Interpreter {
 				break;
 			case dup:
 				val = pop();
+				ref = stackRef[esp];
 				push(val);
 				push(val);
+				stackRef[esp - 2] = stackRef[esp - 1] = ref;
 				break;
 			case dup2:
 				val = pop();
+				ref = stackRef[esp];
 				val2 = pop();
+				ref2 = stackRef[esp];
 				push(val2);
 				push(val);
 				push(val2);
 				push(val);
+				stackRef[esp - 4] = stackRef[esp - 2] = ref2;
+				stackRef[esp - 3] = stackRef[esp - 1] = ref;
 				break;
 
 			// jumps
 			case jmp:
-				off = next2(true);
+				off = next2();
 				pc += off - 3;
+				if (off < 0) {
+					safepoint();
+				}
 				break;
 
 			case jeq:
@@ -472,7 +1599,7 @@ public class Interpreter {
 			case jle:
 			case jgt:
 			case jge:
-				off = next2(true);
+				off = next2();
 				val2 = pop();
 				val = pop();
 				boolean cond = false;
@@ -500,25 +1627,32 @@ public class Interpreter {
 				}
 				if (cond) {
 					pc += off - 3;
+					if (off < 0) {
+						safepoint();
+					}
 				}
 				break;
 
 			// method calls
 			case call:
-				off = next2(true);
+				off = next2();
 				PUSH(pc);
 				pc += off - 3;
+				safepoint();
+				l.call(at, pc);
 				break;
 
 			case return_:
 				if (sp == 0) {
+					l.returned(at, -1);
 					return;
 				}
 				pc = POP();
+				l.returned(at, pc);
 				break;
 			case enter:
-				int psize = next(true);
-				int lsize = next(true);
+				int psize = next();
+				int lsize = next();
 				PUSH(fp);
 				fp = sp;
 				for (i = 0; i < lsize; i++) {
@@ -527,6 +1661,7 @@ public class Interpreter {
 				assert sp == (fp + lsize);
 				for (i = psize - 1; i >= 0; i--) {
 					local[fp + i] = pop();
+					localRef[fp + i] = stackRef[esp];
 				}
 				break;
 			case exit:
@@ -537,36 +1672,35 @@ public class Interpreter {
 			// I/O
 			case read:
 				push(readInt());
+				l.input(at, op, stack[esp - 1]);
 				break;
 
 			case print:
 				len = pop();
 				val = pop();
-				String s = new Integer(val).toString();
-				len = len - s.length();
-				write(s, len);
+				l.output(at, op, val, len);
+				printInt(val, len);
+				io.flush(); // keeps the order with the output of the listener
 				break;
 			case bread:
 				push(io.read());
+				l.input(at, op, stack[esp - 1]);
 				break;
 			case bprint:
-				len = pop() - 1;
+				len = pop();
 				val = pop();
-				write(Character.toString((char) val), len);
+				l.output(at, op, val, len);
+				printChar(val, len);
+				io.flush();
 				break;
 			case nop:
 				// nothing to do
 				break;
 			case trap:
-				throw new IllegalStateException("trap(" + next(true) + ")");
+				throw new IllegalStateException("trap(" + next() + ")");
 			default:
 				throw new IllegalStateException("wrong opcode " + op);
 			}
-			if (debug) {
-				System.out.println();
-				System.out.print("     | ");
-				printStack();
-			}
 		}
 	}
 }
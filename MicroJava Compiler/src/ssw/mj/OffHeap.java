@@ -0,0 +1,158 @@
+package ssw.mj;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Word memory outside of the Java heap, used by an {@link Interpreter} as
+ * its heap when a heap limit is set. The memory consists of direct buffers
+ * of {@link #CHUNK_WORDS} words each, which are allocated when a word in
+ * them is written first; unwritten words read as 0. Words are accessed
+ * through a {@link VarHandle} on the buffers.
+ *
+ * With tags, every word also has a tag byte that holds its reference tag
+ * and whether it is the header of a heap block.
+ */
+final class OffHeap {
+
+	static final int CHUNK_SHIFT = 16, CHUNK_WORDS = 1 << CHUNK_SHIFT,
+			CHUNK_MASK = CHUNK_WORDS - 1;
+
+	private static final int REF = 1, HEADER = 2; // tag bits
+
+	private static final VarHandle INT = MethodHandles
+			.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private static final byte[] ZEROS = new byte[CHUNK_WORDS * 4];
+
+	private final ByteBuffer[] words;
+	private final ByteBuffer[] tags; // null without tags
+	private long committed; // bytes
+
+	OffHeap(int size, boolean tagged) {
+		int chunks = (int) (((long) size + CHUNK_MASK) >> CHUNK_SHIFT);
+		words = new ByteBuffer[chunks];
+		tags = tagged ? new ByteBuffer[chunks] : null;
+	}
+
+	/** Bytes of direct memory allocated so far. */
+	long committed() {
+		return committed;
+	}
+
+	private ByteBuffer commit(int c) {
+		try {
+			words[c] = ByteBuffer.allocateDirect(CHUNK_WORDS * 4);
+			committed += CHUNK_WORDS * 4;
+			if (tags != null) {
+				tags[c] = ByteBuffer.allocateDirect(CHUNK_WORDS);
+				committed += CHUNK_WORDS;
+			}
+		} catch (OutOfMemoryError e) {
+			throw new IllegalStateException("heap overflow");
+		}
+		return words[c];
+	}
+
+	// ----- words
+
+	int get(int adr) {
+		ByteBuffer b = words[adr >>> CHUNK_SHIFT];
+		return b == null ? 0 : (int) INT.get(b, (adr & CHUNK_MASK) << 2);
+	}
+
+	void set(int adr, int val) {
+		ByteBuffer b = words[adr >>> CHUNK_SHIFT];
+		if (b == null) {
+			if (val == 0) {
+				return;
+			}
+			b = commit(adr >>> CHUNK_SHIFT);
+		}
+		INT.set(b, (adr & CHUNK_MASK) << 2, val);
+	}
+
+	// ----- tags
+
+	private boolean tag(int adr, int bit) {
+		ByteBuffer t = tags[adr >>> CHUNK_SHIFT];
+		return t != null && (t.get(adr & CHUNK_MASK) & bit) != 0;
+	}
+
+	private void setTag(int adr, int bit, boolean on) {
+		ByteBuffer t = tags[adr >>> CHUNK_SHIFT];
+		if (t == null) {
+			if (!on) {
+				return;
+			}
+			commit(adr >>> CHUNK_SHIFT);
+			t = tags[adr >>> CHUNK_SHIFT];
+		}
+		int i = adr & CHUNK_MASK;
+		t.put(i, (byte) (on ? t.get(i) | bit : t.get(i) & ~bit));
+	}
+
+	boolean isRef(int adr) {
+		return tag(adr, REF);
+	}
+
+	void setRef(int adr, boolean ref) {
+		setTag(adr, REF, ref);
+	}
+
+	boolean isHeader(int adr) {
+		return tag(adr, HEADER);
+	}
+
+	void setHeader(int adr, boolean header) {
+		setTag(adr, HEADER, header);
+	}
+
+	// ----- ranges
+
+	/**
+	 * Copies n words with their tags from from to to. The ranges must not
+	 * overlap unless to is below from.
+	 */
+	void copy(int from, int to, int n) {
+		while (n > 0) {
+			int len = Math.min(n, CHUNK_WORDS - Math.max(from & CHUNK_MASK,
+					to & CHUNK_MASK));
+			ByteBuffer src = words[from >>> CHUNK_SHIFT];
+			if (src == null) {
+				clear(to, to + len);
+			} else {
+				ByteBuffer dst = words[to >>> CHUNK_SHIFT];
+				if (dst == null) {
+					dst = commit(to >>> CHUNK_SHIFT);
+				}
+				dst.put((to & CHUNK_MASK) << 2, src, (from & CHUNK_MASK) << 2,
+						len << 2);
+				if (tags != null) {
+					tags[to >>> CHUNK_SHIFT].put(to & CHUNK_MASK,
+							tags[from >>> CHUNK_SHIFT], from & CHUNK_MASK, len);
+				}
+			}
+			from += len;
+			to += len;
+			n -= len;
+		}
+	}
+
+	/** Clears the words from..to-1 and their tags. */
+	void clear(int from, int to) {
+		while (from < to) {
+			int len = Math.min(to - from, CHUNK_WORDS - (from & CHUNK_MASK));
+			int c = from >>> CHUNK_SHIFT;
+			if (words[c] != null) {
+				words[c].put((from & CHUNK_MASK) << 2, ZEROS, 0, len << 2);
+				if (tags != null) {
+					tags[c].put(from & CHUNK_MASK, ZEROS, 0, len);
+				}
+			}
+			from += len;
+		}
+	}
+}
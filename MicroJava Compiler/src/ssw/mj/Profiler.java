@@ -0,0 +1,279 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.codegen.LineTable;
+
+/**
+ * Profiles runs as their listener. Counts the executed instructions per
+ * opcode and per basic block, the calls per method and measures the
+ * inclusive and exclusive time of every method, which is identified by the
+ * pc of its <code>enter</code> instruction. Methods are named "main" and
+ * "m" followed by that pc.
+ *
+ * The times include the cost of profiling, which is the same for every
+ * executed instruction, so they are only comparable with each other.
+ * Recursive calls do not add to the inclusive time of a method again.
+ */
+public class Profiler extends ExecutionListener.Adapter {
+
+	/** Number of blocks in the report. */
+	private static final int HOT_BLOCKS = 20;
+
+	/** Calls and times of a method. */
+	private static final class Method {
+		final int entry;
+		final String name;
+		long calls, instructions, inclusive, exclusive;
+		int active; // frames on the stack
+
+		Method(int entry, String name) {
+			this.entry = entry;
+			this.name = name;
+		}
+	}
+
+	private final int startPC;
+	private final long[] opcodes = new long[OpCode.values().length];
+	private final boolean[] leader; // true at the first pc of every block
+	private final long[] blocks; // executions per first pc of a block
+	private final Method[] methods; // per entry, null if never called
+	private LineTable lines; // null if the source positions are unknown
+
+	// shadow stack of the run: method, start time, time in callees and path
+	private Method[] frames = new Method[64];
+	private long[] start = new long[64], inCallees = new long[64];
+	private String[] paths = new String[64];
+	private int depth;
+	private long last; // time of the last call or return
+
+	/** Exclusive nanoseconds per stack of method names. */
+	private final Map<String, long[]> stacks = new TreeMap<String, long[]>();
+
+	public Profiler(byte[] code, int startPC) {
+		this.startPC = startPC;
+		leader = new boolean[code.length + 1];
+		blocks = new long[code.length];
+		methods = new Method[code.length];
+		for (int pc = 0; pc < code.length;) {
+			OpCode op = OpCode.get(code[pc]);
+			if (op == null) {
+				break;
+			}
+			int next = pc + 1 + op.getOpsSize();
+			if (next > code.length) {
+				break;
+			}
+			if (op.code() >= OpCode.jmp.code() && op.code() <= OpCode.call.code()) {
+				int off = (code[pc + 1] << 8) | (code[pc + 2] & 0xff);
+				if (pc + off >= 0 && pc + off < code.length) {
+					leader[pc + off] = true;
+				}
+				leader[next] = true;
+			} else if (op == OpCode.enter) {
+				leader[pc] = true;
+			} else if (op == OpCode.return_ || op == OpCode.trap) {
+				leader[next] = true;
+			}
+			pc = next;
+		}
+	}
+
+	// ----- events
+
+	@Override
+	public void instruction(int pc, OpCode op, int[] stack, int esp) {
+		if (depth == 0) { // main is entered
+			push(startPC);
+		}
+		opcodes[op.ordinal()]++;
+		frames[depth - 1].instructions++;
+		if (leader[pc]) {
+			blocks[pc]++;
+		}
+	}
+
+	@Override
+	public void call(int pc, int entry) {
+		push(entry);
+	}
+
+	@Override
+	public void returned(int pc, int to) {
+		pop(System.nanoTime());
+	}
+
+	private void push(int entry) {
+		long now = System.nanoTime();
+		if (depth > 0) {
+			addStack(paths[depth - 1], now - last);
+		}
+		if (depth == frames.length) {
+			frames = Arrays.copyOf(frames, 2 * depth);
+			start = Arrays.copyOf(start, 2 * depth);
+			inCallees = Arrays.copyOf(inCallees, 2 * depth);
+			paths = Arrays.copyOf(paths, 2 * depth);
+		}
+		Method m = methods[entry];
+		if (m == null) {
+			m = new Method(entry, entry == startPC ? "main" : "m" + entry);
+			methods[entry] = m;
+		}
+		m.calls++;
+		m.active++;
+		frames[depth] = m;
+		start[depth] = now;
+		inCallees[depth] = 0;
+		paths[depth] = depth == 0 ? m.name
+				: paths[depth - 1] + ";" + m.name;
+		depth++;
+		last = now;
+	}
+
+	private void pop(long now) {
+		depth--;
+		addStack(paths[depth], now - last);
+		Method m = frames[depth];
+		long inclusive = now - start[depth];
+		m.exclusive += inclusive - inCallees[depth];
+		if (--m.active == 0) {
+			m.inclusive += inclusive;
+		}
+		if (depth > 0) {
+			inCallees[depth - 1] += inclusive;
+		}
+		frames[depth] = null;
+		last = now;
+	}
+
+	private void addStack(String path, long nanos) {
+		long[] sum = stacks.get(path);
+		if (sum == null) {
+			sum = new long[1];
+			stacks.put(path, sum);
+		}
+		sum[0] += nanos;
+	}
+
+	/** Ends the methods of a run that was stopped by an error or a limit. */
+	private void unwind() {
+		long now = System.nanoTime();
+		while (depth > 0) {
+			pop(now);
+		}
+	}
+
+	// ----- results
+
+	/** Returns the number of executions of opcode op. */
+	public long executed(OpCode op) {
+		return opcodes[op.ordinal()];
+	}
+
+	/** Sets the source positions of the code for the report. */
+	public void setLineTable(LineTable lines) {
+		this.lines = lines;
+	}
+
+	/** Returns the number of calls of the method at entry. */
+	public long calls(int entry) {
+		return methods[entry] == null ? 0 : methods[entry].calls;
+	}
+
+	/** Returns the number of executions of the block that starts at pc. */
+	public long blockCount(int pc) {
+		return blocks[pc];
+	}
+
+	/**
+	 * Writes the exclusive time of every stack of methods in nanoseconds in
+	 * the collapsed format of flame graph tools, one stack per line.
+	 */
+	public void writeStacks(Writer out) throws IOException {
+		unwind();
+		for (Map.Entry<String, long[]> e : stacks.entrySet()) {
+			out.write(e.getKey() + " " + e.getValue()[0] + "\n");
+		}
+		out.flush();
+	}
+
+	/** Returns a report of the counts and times, hottest first. */
+	public String report() {
+		unwind();
+		long total = 0;
+		for (long n : opcodes) {
+			total += n;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("profile: ").append(total).append(" instructions");
+
+		List<Method> ms = new ArrayList<Method>();
+		for (Method m : methods) {
+			if (m != null) {
+				ms.add(m);
+			}
+		}
+		Collections.sort(ms, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				return Long.compare(b.exclusive, a.exclusive);
+			}
+		});
+		sb.append("\n  methods (calls, instructions, inclusive, exclusive):");
+		for (Method m : ms) {
+			sb.append(String.format("\n  %8s: %10d %12d %10.3f ms %10.3f ms",
+					m.name, m.calls, m.instructions, m.inclusive / 1e6,
+					m.exclusive / 1e6)).append(line(lines, m.entry));
+		}
+
+		OpCode[] ops = OpCode.values();
+		sb.append("\n  opcodes:");
+		for (int i : hottest(opcodes, ops.length)) {
+			sb.append(String.format("\n  %12s: %12d %s", ops[i].cleanName(),
+					opcodes[i], percent(opcodes[i], total)));
+		}
+		sb.append("\n  hottest blocks (pc, executions):");
+		for (int pc : hottest(blocks, HOT_BLOCKS)) {
+			sb.append(String.format("\n  %12d: %12d", pc, blocks[pc]))
+					.append(line(lines, pc));
+		}
+		return sb.toString();
+	}
+
+	/** Returns the indexes of the n largest counts, largest first. */
+	static List<Integer> hottest(final long[] counts, int n) {
+		List<Integer> hot = new ArrayList<Integer>();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				hot.add(i);
+			}
+		}
+		Collections.sort(hot, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(counts[b], counts[a]);
+			}
+		});
+		return hot.subList(0, Math.min(n, hot.size()));
+	}
+
+	/** Returns the source line of pc for reports, "" if it is unknown. */
+	static String line(LineTable lines, int pc) {
+		return lines == null || lines.line(pc) == 0 ? ""
+				: " line " + lines.line(pc);
+	}
+
+	static String percent(long n, long total) {
+		return total == 0 ? "0%"
+				: String.format("%.1f%%", 100.0 * n / total);
+	}
+}
@@ -1,6 +1,9 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-engine name]
+//         [-callThreshold n] [-loopThreshold n] [-generational]
+//         [-heap size[k|m|g]] [-input file] [-fuel n] [-timeLimit ms]
+//         [-profile file] [-sample file] [-heapProfile]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
@@ -9,13 +12,30 @@ package ssw.mj;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Paths;
+
+import ssw.mj.codegen.LineTable;
+import ssw.mj.vm.Engine;
+import ssw.mj.vm.TieredInterpreter;
+import ssw.mj.vm.TracingInterpreter;
+import ssw.mj.vm.Verifier;
 
 public class Run {
 
+	/** Number of methods and pcs in the report of the sampler. */
+	private static final int HOTTEST = 10;
+
 	// ----- VM internals
-	static Interpreter load(String name, boolean debug) throws IOException,
-			FormatException {
+	static Interpreter load(String name, boolean debug, Engine engine)
+			throws IOException, FormatException {
+		return load(name, debug, engine, Interpreter.ConsoleIO);
+	}
+
+	static Interpreter load(String name, boolean debug, Engine engine,
+			Interpreter.IO io) throws IOException, FormatException {
 		int codeSize;
 		byte[] sig = new byte[2];
 		DataInputStream in = new DataInputStream(new FileInputStream(name));
@@ -41,34 +61,250 @@ public class Run {
 		}
 		byte[] code = new byte[codeSize];
 		in.read(code, 0, codeSize);
-		in.close();
+		// optional line section, missing in files of older compilers
+		LineTable lines = null;
+		try {
+			int b = in.read();
+			if (b != -1) {
+				if (b != 'L' || in.read() != 'T') {
+					throw new FormatException("wrong section marker");
+				}
+				lines = LineTable.read(in, codeSize);
+			}
+		} catch (FormatException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new FormatException("line table: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+		Verifier verifier;
+		try {
+			verifier = new Verifier(code, startPC, dataSize);
+		} catch (IllegalArgumentException e) {
+			throw new FormatException("unverifiable code: " + e.getMessage());
+		}
 
-		return new Interpreter(code, startPC, dataSize, Interpreter.ConsoleIO,
-				debug);
+		Interpreter r = engine.create(code, startPC, dataSize, io, debug,
+				verifier);
+		r.setLineTable(lines);
+		return r;
+	}
+
+	/** Parses a size in bytes with an optional unit; returns -1 if invalid. */
+	static long parseSize(String s) {
+		int shift = "kmg".indexOf(Character.toLowerCase(
+				s.isEmpty() ? ' ' : s.charAt(s.length() - 1))) * 10 + 10;
+		if (shift > 0) {
+			s = s.substring(0, s.length() - 1);
+		}
+		try {
+			long n = Long.parseLong(s);
+			if (n <= 0 || n > Long.MAX_VALUE >> shift || n << shift < 64) {
+				return -1;
+			}
+			return n << shift;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Prints the reports of the profilers and the sampler that are used and
+	 * writes their stacks to profileFile and sampleFile.
+	 */
+	private static void writeProfiles(Profiler profiler, String profileFile,
+			Sampler sampler, String sampleFile, HeapProfiler heapProfiler) {
+		if (heapProfiler != null) {
+			System.out.print("\n" + heapProfiler.report(HOTTEST) + "\n"
+					+ heapProfiler.dump(HOTTEST));
+		}
+		String file = null;
+		try {
+			if (profiler != null) {
+				System.out.print("\n" + profiler.report());
+				file = profileFile;
+				Writer out = new FileWriter(file);
+				try {
+					profiler.writeStacks(out);
+				} finally {
+					out.close();
+				}
+			}
+			if (sampler != null) {
+				System.out.print("\n" + sampler.report(HOTTEST));
+				file = sampleFile;
+				Writer out = new FileWriter(file);
+				try {
+					sampler.writeStacks(out);
+				} finally {
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("\n-- profile " + file + " not writable");
+		}
 	}
 
 	public static void main(String[] arg) {
 		String fileName = null;
 		boolean debug = false;
+		boolean generational = false;
+		long heapLimit = 0; // bytes, 0 for the fixed heap
+		String inputFile = null; // null for the console
+		String profileFile = null; // collapsed stacks, null for no profile
+		String sampleFile = null; // sampled stacks, null for no sampling
+		boolean heapProfile = false;
+		Engine engine = Engine.verified; // load verifies the code
+		int callThreshold = TieredInterpreter.DEFAULT_CALL_THRESHOLD;
+		int loopThreshold = -1; // default of the engine
+		long fuel = -1; // safepoints, -1 for no limit
+		long timeLimit = 0; // ms, 0 for no limit
 		for (int i = 0; i < arg.length; i++) {
 			if (arg[i].equals("-debug")) {
 				debug = true;
+			} else if (arg[i].equals("-generational")) {
+				generational = true;
+			} else if (arg[i].equals("-heap") && i + 1 < arg.length) {
+				heapLimit = parseSize(arg[++i]);
+				if (heapLimit <= 0) {
+					System.out.println("-- invalid heap size " + arg[i]);
+					return;
+				}
+			} else if ((arg[i].equals("-fuel") || arg[i].equals("-timeLimit"))
+					&& i + 1 < arg.length) {
+				long n;
+				try {
+					n = Long.parseLong(arg[i + 1]);
+				} catch (NumberFormatException e) {
+					n = -1;
+				}
+				if (n < 0) {
+					System.out.println("-- invalid limit " + arg[i + 1]);
+					return;
+				}
+				if (arg[i].equals("-fuel")) {
+					fuel = n;
+				} else {
+					timeLimit = n;
+				}
+				i++;
+			} else if (arg[i].equals("-profile") && i + 1 < arg.length) {
+				profileFile = arg[++i];
+			} else if (arg[i].equals("-sample") && i + 1 < arg.length) {
+				sampleFile = arg[++i];
+			} else if (arg[i].equals("-heapProfile")) {
+				heapProfile = true;
+			} else if (arg[i].equals("-input") && i + 1 < arg.length) {
+				inputFile = arg[++i];
+			} else if (arg[i].equals("-engine") && i + 1 < arg.length) {
+				try {
+					engine = Engine.valueOf(arg[++i]);
+				} catch (IllegalArgumentException e) {
+					System.out.println("-- unknown engine " + arg[i]);
+					return;
+				}
+			} else if ((arg[i].equals("-callThreshold")
+					|| arg[i].equals("-loopThreshold")) && i + 1 < arg.length) {
+				int n;
+				try {
+					n = Integer.parseInt(arg[i + 1]);
+				} catch (NumberFormatException e) {
+					n = -1;
+				}
+				if (n < 0) {
+					System.out.println("-- invalid threshold " + arg[i + 1]);
+					return;
+				}
+				if (arg[i].equals("-callThreshold")) {
+					callThreshold = n;
+				} else {
+					loopThreshold = n;
+				}
+				i++;
 			} else {
 				fileName = arg[i];
 			}
 		}
 		if (fileName == null) {
-			System.out.println("Syntax: java ssw.mj.Run filename [-debug]");
+			System.out.println(
+					"Syntax: java ssw.mj.Run filename [-debug] [-engine name]"
+							+ " [-callThreshold n] [-loopThreshold n]"
+							+ " [-generational] [-heap size[k|m|g]]"
+							+ " [-input file] [-fuel n] [-timeLimit ms]"
+							+ " [-profile file] [-sample file] [-heapProfile]");
+			return;
+		}
+		if (heapProfile && heapLimit > 0) {
+			System.out.println("-- -heapProfile cannot be used with -heap");
 			return;
 		}
 		try {
-			Interpreter r = load(fileName, debug);
+			// input from a file is mapped into memory instead of piped
+			Interpreter.IO io = Interpreter.ConsoleIO;
+			if (inputFile != null) {
+				try {
+					io = ChannelIO.map(Paths.get(inputFile), System.out);
+				} catch (IOException e) {
+					System.out.println("-- input file " + inputFile
+							+ " not readable");
+					return;
+				}
+			}
+			Interpreter r = load(fileName, debug, engine, io);
+			if (r instanceof TieredInterpreter) {
+				((TieredInterpreter) r).setThresholds(callThreshold,
+						loopThreshold >= 0 ? loopThreshold
+								: TieredInterpreter.DEFAULT_LOOP_THRESHOLD);
+			} else if (r instanceof TracingInterpreter && loopThreshold >= 0) {
+				((TracingInterpreter) r).setThreshold(loopThreshold);
+			}
+			r.setGenerational(generational);
+			if (heapLimit > 0) {
+				r.setHeapLimit(heapLimit);
+			}
+			r.setFuel(fuel);
+			Profiler profiler = profileFile != null ? r.profile() : null;
+			Sampler sampler = sampleFile != null ? r
+					.sample(Sampler.DEFAULT_INTERVAL) : null;
+			HeapProfiler heapProfiler = heapProfile ? r.profileHeap() : null;
 
 			long startTime = System.currentTimeMillis();
-			r.run();
+			r.setTimeLimit(timeLimit);
+			try {
+				r.run();
+			} catch (Interpreter.LimitExceeded e) {
+				io.flush();
+				System.out.println("\n-- " + e.getMessage());
+				writeProfiles(profiler, profileFile, sampler, sampleFile,
+						heapProfiler);
+				return;
+			} catch (IllegalStateException e) { // e.g. heap overflow
+				io.flush();
+				int pc = r.failedPC();
+				if (pc >= 0) {
+					System.out.println("\n-- " + e.getMessage() + " at pc " + pc
+							+ (r.lineTable() == null ? ""
+									: " (line " + r.lineTable().line(pc)
+											+ ", col " + r.lineTable().col(pc)
+											+ ")"));
+				}
+				writeProfiles(profiler, profileFile, sampler, sampleFile,
+						heapProfiler);
+				throw e;
+			} finally {
+				io.flush();
+			}
 
 			System.out.print("\nCompletion took "
 					+ (System.currentTimeMillis() - startTime) + " ms");
+			if (r.statistics() != null) {
+				System.out.print("\n" + r.statistics());
+			}
+			System.out.print("\nPeak committed memory: "
+					+ (r.committedBytes() + 1023) / 1024 + " KB");
+			writeProfiles(profiler, profileFile, sampler, sampleFile,
+					heapProfiler);
 		} catch (FileNotFoundException e) {
 			System.out.println("-- file " + fileName + " not found");
 		} catch (FormatException e) {
@@ -79,12 +315,3 @@ public class Run {
 		}
 	}
 }
-
-class FormatException extends IOException {
-
-	private static final long serialVersionUID = 1L;
-
-	FormatException(String s) {
-		super(s);
-	}
-}
\ No newline at end of file
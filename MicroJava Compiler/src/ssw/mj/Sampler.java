@@ -0,0 +1,211 @@
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Profiles runs of the standard interpreter by sampling them from a daemon
+ * thread. Every sample reads the pc and walks the frames on the method
+ * stack, where every call left its return address and every enter the frame
+ * pointer of the caller, so the interpreter pays nothing for keeping a call
+ * stack. The method of a frame is the target of the call before its return
+ * address. Methods are named like by the {@link Profiler}.
+ *
+ * The interpreter does not publish its state for the sampler, so a sample
+ * may see a frame that is being built or removed; such samples are dropped.
+ */
+public class Sampler implements Runnable {
+
+	/** Default time between samples in microseconds (1 kHz). */
+	public static final int DEFAULT_INTERVAL = 1000;
+
+	private final Interpreter vm;
+	private final byte[] code;
+	private final long interval; // ns
+	private Thread thread;
+	private volatile boolean running;
+
+	private long samples, dropped;
+	private final long[] pcs; // samples per pc
+	private final long[] self, total; // samples per method entry
+	private final long[] counted; // sample in which total was counted
+	private final Frame stacks; // tree of the sampled stacks, main at its root
+	private int[] entries = new int[64]; // entries of the sampled frames
+
+	/** A method called by the method of the parent frame. */
+	private static final class Frame {
+		final int entry;
+		long samples; // samples in which this frame was the innermost
+		Frame[] callees = new Frame[0];
+
+		Frame(int entry) {
+			this.entry = entry;
+		}
+
+		Frame callee(int entry) {
+			for (Frame f : callees) {
+				if (f.entry == entry) {
+					return f;
+				}
+			}
+			Frame f = new Frame(entry);
+			callees = Arrays.copyOf(callees, callees.length + 1);
+			callees[callees.length - 1] = f;
+			return f;
+		}
+	}
+
+	/** Samples vm every interval microseconds while it runs. */
+	Sampler(Interpreter vm, int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		this.vm = vm;
+		this.code = vm.code;
+		this.interval = interval * 1000L;
+		pcs = new long[code.length];
+		self = new long[code.length];
+		total = new long[code.length];
+		counted = new long[code.length];
+		stacks = new Frame(vm.startPC);
+	}
+
+	/** Starts sampling; called when the run starts. */
+	synchronized void start() {
+		running = true;
+		thread = new Thread(this, "MicroJava sampler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Stops sampling and waits for the last sample; called after the run. */
+	synchronized void stop() {
+		running = false;
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			LockSupport.parkNanos(interval);
+			sample();
+		}
+	}
+
+	private void sample() {
+		int pc = vm.pc, fp = vm.fp;
+		int[] local = vm.local;
+		int n = 0;
+		while (fp > 1) { // main's frame starts at 1
+			if (fp >= local.length) {
+				dropped++;
+				return;
+			}
+			int call = local[fp - 2] - 3; // return address - size of call
+			if (call < 0 || call + 3 > code.length
+					|| code[call] != OpCode.call.code()
+					|| local[fp - 1] >= fp) {
+				dropped++;
+				return;
+			}
+			if (n == entries.length) {
+				entries = Arrays.copyOf(entries, 2 * n);
+			}
+			entries[n++] = call + ((code[call + 1] << 8)
+					| (code[call + 2] & 0xff));
+			fp = local[fp - 1];
+		}
+		if (pc < 0 || pc >= code.length) {
+			dropped++;
+			return;
+		}
+		samples++;
+		pcs[pc]++;
+		self[n == 0 ? vm.startPC : entries[0]]++;
+		Frame f = stacks;
+		total[vm.startPC]++;
+		counted[vm.startPC] = samples;
+		for (int i = n - 1; i >= 0; i--) {
+			int e = entries[i];
+			f = f.callee(e);
+			if (counted[e] != samples) { // recursive calls are counted once
+				total[e]++;
+				counted[e] = samples;
+			}
+		}
+		f.samples++;
+	}
+
+	private String name(int entry) {
+		return entry == vm.startPC ? "main" : "m" + entry;
+	}
+
+	// ----- results; only valid after the run
+
+	/** Returns the number of samples taken. */
+	public long samples() {
+		return samples;
+	}
+
+	/**
+	 * Writes the number of samples of every stack of methods in the
+	 * collapsed format of flame graph tools, one stack per line.
+	 */
+	public void writeStacks(Writer out) throws IOException {
+		Map<String, Long> lines = new TreeMap<String, Long>();
+		collect(stacks, name(stacks.entry), lines);
+		for (Map.Entry<String, Long> e : lines.entrySet()) {
+			out.write(e.getKey() + " " + e.getValue() + "\n");
+		}
+		out.flush();
+	}
+
+	private void collect(Frame f, String path, Map<String, Long> lines) {
+		if (f.samples > 0) {
+			lines.put(path, f.samples);
+		}
+		for (Frame callee : f.callees) {
+			collect(callee, path + ";" + name(callee.entry), lines);
+		}
+	}
+
+	/** Returns the n hottest methods and pcs. */
+	public String report(int n) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("sampling: ").append(samples).append(" samples every ")
+				.append(interval / 1000).append(" us, ").append(dropped)
+				.append(" dropped");
+		sb.append("\n  hottest methods (self, total):");
+		for (int e : Profiler.hottest(self, n)) {
+			sb.append(String.format("\n  %8s: %8d %6s %8d %6s", name(e),
+					self[e], percent(self[e]), total[e], percent(total[e])))
+					.append(Profiler.line(vm.lines, e));
+		}
+		sb.append("\n  hottest pcs:");
+		for (int pc : Profiler.hottest(pcs, n)) {
+			sb.append(String.format("\n  %8d: %8d %6s", pc, pcs[pc],
+					percent(pcs[pc]))).append(Profiler.line(vm.lines, pc));
+		}
+		return sb.toString();
+	}
+
+	private String percent(long n) {
+		return Profiler.percent(n, samples);
+	}
+}
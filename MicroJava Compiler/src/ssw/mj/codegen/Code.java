@@ -92,6 +92,9 @@ public abstract class Code {
 		trap(B), //
 		nop;
 
+		/** Cached copy of values(), which clones the array on every call. */
+		private static final OpCode[] VALUES = values();
+
 		private final Operands[] ops;
 
 		private OpCode(Operands... operands) {
@@ -127,10 +130,10 @@ public abstract class Code {
 		}
 
 		public static OpCode get(int code) {
-			if (code < 1 || code > values().length) {
+			if (code < 1 || code > VALUES.length) {
 				return null;
 			}
-			return values()[code - 1];
+			return VALUES[code - 1];
 		}
 	}
 
@@ -172,6 +175,10 @@ public abstract class Code {
 	/** According parser. */
 	protected Parser parser;
 
+	/** Source positions of the code (see {@link #setPosition}). */
+	public final LineTable lines = new LineTable();
+	private int line, col; // position of the code that is emitted
+
 	// ----- initialization
 
 	public Code(Parser p) {
@@ -184,7 +191,17 @@ public abstract class Code {
 
 	// ----- code storage management
 
+	/**
+	 * Sets the source position of the instructions that are emitted next;
+	 * called by the parser for every recognized token.
+	 */
+	public void setPosition(int line, int col) {
+		this.line = line;
+		this.col = col;
+	}
+
 	public void put(OpCode code) {
+		lines.add(pc, line, col);
 		put(code.code());
 	}
 
@@ -240,6 +257,11 @@ public abstract class Code {
 		os.write(header.toByteArray());
 
 		os.write(buf, 0, codeSize);
+
+		// optional section, ignored by loaders that do not know it
+		DataOutputStream linesWriter = new DataOutputStream(os);
+		lines.write(linesWriter);
+		linesWriter.flush();
 		os.flush();
 		os.close();
 	}
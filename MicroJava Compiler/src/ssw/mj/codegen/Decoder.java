@@ -4,6 +4,12 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import ssw.mj.codegen.Code.OpCode;
 
@@ -138,6 +144,91 @@ public class Decoder {
 		return s;
 	}
 
+	/**
+	 * Counts all sequences of n consecutive instructions in buf[off..len[ and
+	 * adds them to counts. A sequence is keyed by the names of its opcodes
+	 * separated by blanks; only the last instruction of a sequence may be a
+	 * jmp, return or trap.
+	 */
+	public void countNGrams(byte[] buf, int off, int len, int n,
+			Map<String, Integer> counts) {
+		String[] window = new String[n];
+		int filled = 0;
+		int pos = off;
+		while (pos < len) {
+			OpCode opCode = OpCode.get(buf[pos]);
+			if (opCode == null) {
+				return; // not an instruction stream from here on
+			}
+			if (filled == n) {
+				System.arraycopy(window, 1, window, 0, n - 1);
+				filled--;
+			}
+			window[filled++] = opCode.cleanName();
+			if (filled == n) {
+				StringBuilder sb = new StringBuilder(window[0]);
+				for (int i = 1; i < n; i++) {
+					sb.append(' ').append(window[i]);
+				}
+				String key = sb.toString();
+				Integer count = counts.get(key);
+				counts.put(key, count == null ? 1 : count + 1);
+			}
+			if (opCode == OpCode.jmp || opCode == OpCode.return_
+					|| opCode == OpCode.trap) {
+				filled = 0;
+			}
+			pos += 1 + opCode.getOpsSize();
+		}
+	}
+
+	private static byte[] readCode(String filename) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(filename)));
+		try {
+			in.skipBytes(2); // signature
+			int codeSize = in.readInt();
+			in.readInt(); // data size
+			in.readInt(); // startPC
+			byte[] code = new byte[codeSize];
+			in.readFully(code);
+			return code;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Prints the most frequent instruction sequences of length 2..maxLen in
+	 * the given object files.
+	 */
+	public static void printNGrams(String[] files, int maxLen, int top)
+			throws IOException {
+		Decoder dec = new Decoder();
+		for (int n = 2; n <= maxLen; n++) {
+			Map<String, Integer> counts = new HashMap<String, Integer>();
+			for (String file : files) {
+				byte[] code = readCode(file);
+				dec.countNGrams(code, 0, code.length, n, counts);
+			}
+			List<Map.Entry<String, Integer>> list = new ArrayList<Map.Entry<String, Integer>>(
+					counts.entrySet());
+			Collections.sort(list,
+					new Comparator<Map.Entry<String, Integer>>() {
+						@Override
+						public int compare(Map.Entry<String, Integer> a,
+								Map.Entry<String, Integer> b) {
+							return b.getValue() - a.getValue();
+						}
+					});
+			System.out.println("-- " + n + "-grams");
+			for (int i = 0; i < top && i < list.size(); i++) {
+				System.out.println(list.get(i).getValue() + "\t"
+						+ list.get(i).getKey());
+			}
+		}
+	}
+
 	public void decodeFile(String filename) throws IOException {
 		DataInputStream in = new DataInputStream(new BufferedInputStream(
 				new FileInputStream(filename)));
@@ -155,7 +246,11 @@ public class Decoder {
 	}
 
 	public static void main(String[] args) throws IOException {
-		if (args.length > 0) {
+		if (args.length > 2 && args[0].equals("-ngrams")) {
+			String[] files = new String[args.length - 2];
+			System.arraycopy(args, 2, files, 0, files.length);
+			printNGrams(files, Integer.parseInt(args[1]), 25);
+		} else if (args.length > 0) {
 			Decoder dec = new Decoder();
 			dec.decodeFile(args[0]);
 		}
@@ -0,0 +1,134 @@
+package ssw.mj.codegen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps pcs to the source positions they were compiled from. Every entry
+ * holds the pc of the first instruction that was emitted at a new position;
+ * the instructions up to the next entry belong to the same position.
+ */
+public final class LineTable {
+
+	private int[] pcs = new int[64], lines = new int[64], cols = new int[64];
+	private int size;
+
+	/** Adds the position of the code from pc on, if it is a new one. */
+	public void add(int pc, int line, int col) {
+		if (size > 0 && pcs[size - 1] == pc) { // no code at the last position
+			size--;
+		}
+		if (size > 0 && lines[size - 1] == line && cols[size - 1] == col) {
+			return;
+		}
+		if (size == pcs.length) {
+			pcs = Arrays.copyOf(pcs, 2 * size);
+			lines = Arrays.copyOf(lines, 2 * size);
+			cols = Arrays.copyOf(cols, 2 * size);
+		}
+		pcs[size] = pc;
+		lines[size] = line;
+		cols[size] = col;
+		size++;
+	}
+
+	/** Returns the number of entries. */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the entry of pc, -1 if pc is before the first one. */
+	private int find(int pc) {
+		int i = Arrays.binarySearch(pcs, 0, size, pc);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/** Returns the source line of the instruction at pc, 0 if unknown. */
+	public int line(int pc) {
+		int i = find(pc);
+		return i < 0 ? 0 : lines[i];
+	}
+
+	/** Returns the source column of the instruction at pc, 0 if unknown. */
+	public int col(int pc) {
+		int i = find(pc);
+		return i < 0 ? 0 : cols[i];
+	}
+
+	// ----- object file section: 'L', 'T', size, then per entry the
+	// differences of pc, line and col to the previous entry as var ints
+
+	/** Writes the table as the line section of an object file. */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeByte('L');
+		out.writeByte('T');
+		writeVar(out, size);
+		int pc = 0, line = 0, col = 0;
+		for (int i = 0; i < size; i++) {
+			writeVar(out, pcs[i] - pc); // positive after the first entry
+			writeVar(out, zigZag(lines[i] - line));
+			writeVar(out, zigZag(cols[i] - col));
+			pc = pcs[i];
+			line = lines[i];
+			col = cols[i];
+		}
+	}
+
+	/**
+	 * Reads the line section of an object file after its marker, for code
+	 * of codeSize bytes.
+	 */
+	public static LineTable read(DataInputStream in, int codeSize)
+			throws IOException {
+		int n = readVar(in);
+		if (n < 0 || n > codeSize) {
+			throw new IOException("wrong size of the line table");
+		}
+		LineTable t = new LineTable();
+		int pc = 0, line = 0, col = 0;
+		for (int i = 0; i < n; i++) {
+			int d = readVar(in);
+			if (d < 0 || (i > 0 && d == 0) || d >= codeSize - pc) {
+				throw new IOException("wrong pc in the line table");
+			}
+			pc += d;
+			line += unZigZag(readVar(in));
+			col += unZigZag(readVar(in));
+			t.add(pc, line, col);
+		}
+		return t;
+	}
+
+	/** Maps small negative and positive ints to small unsigned ones. */
+	private static int zigZag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unZigZag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/** Writes n unsigned in groups of 7 bits, low bits first. */
+	private static void writeVar(DataOutputStream out, int n)
+			throws IOException {
+		while ((n & ~0x7f) != 0) {
+			out.writeByte((n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	private static int readVar(DataInputStream in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+		throw new IOException("malformed number in the line table");
+	}
+}
@@ -79,6 +79,7 @@ public final class ParserImpl extends Parser {
 		la = scanner.next();
 		sym = la.kind;
 		errorDistance++;
+		code.setPosition(t.line, t.col);
 	}
 
 	private void check(Kind expected) {
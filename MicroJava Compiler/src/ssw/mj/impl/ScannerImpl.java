@@ -2,6 +2,14 @@ package ssw.mj.impl;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 
 import ssw.mj.Errors.Message;
@@ -13,6 +21,14 @@ import static ssw.mj.Token.Kind.*;
 
 public final class ScannerImpl extends Scanner {
 
+	/** Size of the window of input characters. */
+	private static final int WINDOW = 1 << 16;
+
+	private final char[] buf = new char[WINDOW]; // window of the input
+	private int pos, end; // next character and end of the window
+	private ByteBuffer src; // source bytes, null if the source is read from in
+	private CharsetDecoder decoder; // for non-ASCII bytes of src
+
 	private final HashMap<String, Token.Kind> commands = new HashMap<String, Token.Kind>() {
 
 		private static final long serialVersionUID = 6995472587252510079L;
@@ -42,6 +58,32 @@ public final class ScannerImpl extends Scanner {
 		nextCh();
 	}
 
+	/**
+	 * Scans the bytes of a source file from the position to the limit of src.
+	 * The tokens are the same as when the file is read by a FileReader.
+	 */
+	public ScannerImpl(ByteBuffer src) {
+		super(null);
+		this.src = src;
+		line = 1;
+		col = 0;
+		nextCh();
+	}
+
+	/** Maps the source file into memory and scans it from there. */
+	public static ScannerImpl map(Path file) throws IOException {
+		FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if (ch.size() > Integer.MAX_VALUE) {
+				throw new IOException("source file too large");
+			}
+			return new ScannerImpl(ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					ch.size()));
+		} finally {
+			ch.close(); // the mapping stays valid
+		}
+	}
+
 	@Override
 	public Token next() {
 		while (Character.isWhitespace(ch)) {
@@ -279,43 +321,129 @@ public final class ScannerImpl extends Scanner {
 		return t;
 	}
 
-	private void nextCh() {
+	/** Reads the next window of input; returns false at the end. */
+	private boolean fill() {
+		if (src != null) {
+			return fillBytes();
+		}
 		try {
+			int n;
+			do {
+				n = in.read(buf, 0, buf.length);
+			} while (n == 0);
+			if (n < 0) {
+				return false;
+			}
+			pos = 0;
+			end = n;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
 
-			ch = (char) in.read();
+	/**
+	 * Takes the next window from src. ASCII bytes are taken as characters;
+	 * from the first other byte on, the window is decoded with the default
+	 * charset like by a FileReader.
+	 */
+	private boolean fillBytes() {
+		int p = src.position(), n = Math.min(buf.length, src.limit() - p);
+		if (n == 0) {
+			return false;
+		}
+		int i = 0;
+		byte b;
+		while (i < n && (b = src.get(p + i)) >= 0) {
+			buf[i++] = (char) b;
+		}
+		src.position(p + i);
+		if (i < n) {
+			if (decoder == null) {
+				decoder = Charset.defaultCharset().newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			CharBuffer out = CharBuffer.wrap(buf, i, buf.length - i);
+			decoder.decode(src, out, true); // src holds the rest of the file
+			i = out.position();
+		}
+		pos = 0;
+		end = i;
+		return true;
+	}
 
-			if (ch != EOF) {
-				col++;
+	private void nextCh() {
+		for (;;) {
+			if (pos == end && !fill()) {
+				ch = EOF;
+				return;
 			}
+			ch = buf[pos++];
 			if (ch == '\n') {
 				col = 0;
 				line++;
-			}
-			if (ch == '\r') {
+			} else if (ch == '\r') {
+				col += 2; // skipped, but counted twice
+				continue;
+			} else if (ch != EOF) {
 				col++;
-				nextCh();
 			}
-		} catch (IOException e) {
-			ch = EOF;
+			return;
 		}
 	}
 
-	private void readName(Token t) {
-		StringBuilder builder = new StringBuilder();
+	/**
+	 * Returns the end of the characters from pos on in the window that
+	 * satisfy isIdent (digits only if digits is true), or -1 if they reach
+	 * the end of the window.
+	 */
+	private int scanWindow(boolean digits) {
+		for (int i = pos; i < end; i++) {
+			char c = buf[i];
+			boolean more;
+			if (c < 128) {
+				more = c >= '0' && c <= '9' || !digits
+						&& (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+								|| c == '_');
+			} else {
+				more = digits ? Character.isDigit(c)
+						: Character.isDigit(c) || Character.isAlphabetic(c);
+			}
+			if (!more) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the characters from ch on that satisfy isIdent (digits only if
+	 * digits is true) and reads the character after them.
+	 */
+	private String readWhile(boolean digits) {
+		int i = scanWindow(digits);
+		if (i >= 0 && ch != EOF) { // ch is buf[pos - 1]
+			String s = new String(buf, pos - 1, i - pos + 1);
+			col += i - pos;
+			pos = i;
+			nextCh();
+			return s;
+		}
+		StringBuilder builder = new StringBuilder(); // crosses the window
 		builder.append(ch);
 		nextCh();
-		while (ch != EOF && isIdent()) {
+		while (ch != EOF && (digits ? Character.isDigit(ch) : isIdent())) {
 			builder.append(ch);
 			nextCh();
 		}
-		if (commands.containsKey(builder.toString())) {
-			t.str = builder.toString();
-			t.kind = commands.get(builder.toString());
-		} else {
-			t.str = builder.toString();
-			t.kind = Kind.ident;
-		}
+		return builder.toString();
+	}
 
+	private void readName(Token t) {
+		t.str = readWhile(false);
+		Kind kind = commands.get(t.str);
+		t.kind = kind != null ? kind : Kind.ident;
 	}
 
 	private boolean isIdent() {
@@ -324,20 +452,14 @@ public final class ScannerImpl extends Scanner {
 	}
 
 	private void readNumber(Token t) {
-		StringBuilder number = new StringBuilder();
 		t.kind = Kind.number;
-		number.append(ch);
-		nextCh();
-		while (ch != EOF && Character.isDigit(ch)) {
-			number.append(ch);
-			nextCh();
-		}
+		String number = readWhile(true);
 
 		try {
-			t.val = Integer.parseInt(number.toString());
+			t.val = Integer.parseInt(number);
 		} catch (NumberFormatException e) {
 			t.val = 0;
-			error(t, Message.BIG_NUM, number.toString());
+			error(t, Message.BIG_NUM, number);
 		}
 
 	}
@@ -0,0 +1,302 @@
+package ssw.mj.vm;
+
+import java.util.Arrays;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.CodeAnalyzer.Method;
+
+/**
+ * Finds array and field accesses in loops that can never fail, so that the
+ * {@link Predecoder} can translate them without null and index checks.
+ *
+ * Only innermost loops that are entered at their header alone are
+ * considered. The loop condition must start with one of
+ *
+ * <pre>
+ *   load i; load a; arraylength; jge exit    (i &lt; len(a))
+ *   load a; arraylength; load i; jle exit    (len(a) &gt; i)
+ *   load p; const_0; jeq exit                (p != null)
+ * </pre>
+ *
+ * where a may also be a global variable. In the first two forms, i must be
+ * set to a constant &gt;= 0 right before the loop and may only be increased
+ * by small constants in the loop, so that it is never negative. An access
+ * a[i] or p.f in the loop is then safe if neither i nor a (p) can have been
+ * changed since the loop condition was checked. The operands of an access
+ * are traced through a symbolic expression stack.
+ */
+final class CheckElimination {
+
+	/** Largest total increment of an index variable per loop iteration. */
+	private static final int MAX_STEP = 1 << 20;
+
+	// sources of values on the symbolic stack
+	private static final int OTHER = -1; // LOCAL n is n, STATIC g is -2 - g
+
+	private final byte[] code;
+	private final CodeAnalyzer analyzer;
+	private final boolean[] safe;
+	private final boolean[] jumpTarget;
+
+	private CheckElimination(byte[] code, CodeAnalyzer analyzer) {
+		this.code = code;
+		this.analyzer = analyzer;
+		safe = new boolean[code.length];
+		jumpTarget = new boolean[code.length];
+	}
+
+	/**
+	 * Returns for every pc whether the access at this pc cannot fail. Nothing
+	 * is safe if the code cannot be analyzed.
+	 */
+	static boolean[] analyze(byte[] code, int startPC) {
+		CodeAnalyzer analyzer = new CodeAnalyzer(code);
+		try {
+			analyzer.analyze(startPC);
+		} catch (IllegalArgumentException e) {
+			return new boolean[code.length];
+		}
+		CheckElimination ce = new CheckElimination(code, analyzer);
+		for (Method m : analyzer.methods()) {
+			ce.method(m);
+		}
+		return ce.safe;
+	}
+
+	private void method(Method m) {
+		int[] jumps = new int[m.pcs.length];
+		int nJumps = 0;
+		for (int pc : m.pcs) {
+			if (isJump(pc)) {
+				jumps[nJumps++] = pc;
+				jumpTarget[analyzer.targetAt(pc)] = true;
+			}
+		}
+		jumps = Arrays.copyOf(jumps, nJumps);
+		for (int b : jumps) {
+			if (code[b] == OpCode.jmp.code() && analyzer.targetAt(b) < b) {
+				loop(m, jumps, analyzer.targetAt(b), b);
+			}
+		}
+	}
+
+	/** Analyzes the loop from header t to the back edge at b. */
+	private void loop(Method m, int[] jumps, int t, int b) {
+		for (int j : jumps) {
+			int target = analyzer.targetAt(j);
+			boolean inside = j >= t && j <= b;
+			if (inside && j != b && target <= j) {
+				return; // not innermost
+			}
+			if (!inside && target >= t && target <= b) {
+				return; // entered from outside
+			}
+		}
+		int first = Arrays.binarySearch(m.pcs, t);
+		int last = Arrays.binarySearch(m.pcs, b);
+		if (first < 0 || first + 3 > last) {
+			return;
+		}
+
+		// loop condition
+		int index = OTHER, array = OTHER, ref = OTHER, body;
+		int pc1 = m.pcs[first + 1], pc2 = m.pcs[first + 2];
+		if (local(t) >= 0 && code[pc1] == OpCode.const_0.code()
+				&& code[pc2] == OpCode.jeq.code()) {
+			ref = local(t);
+			body = first + 3;
+		} else {
+			int pc3 = m.pcs[first + 3];
+			if (local(t) >= 0 && source(pc1) != OTHER
+					&& code[pc2] == OpCode.arraylength.code()
+					&& code[pc3] == OpCode.jge.code()) {
+				index = local(t);
+				array = source(pc1);
+			} else if (source(t) != OTHER
+					&& code[pc1] == OpCode.arraylength.code()
+					&& local(pc2) >= 0 && code[pc3] == OpCode.jle.code()) {
+				array = source(t);
+				index = local(pc2);
+			} else {
+				return;
+			}
+			if (analyzer.targetAt(pc3) <= b
+					|| !positiveIndex(m, first, last, index)) {
+				return;
+			}
+			body = first + 4;
+		}
+		if (ref != OTHER && analyzer.targetAt(pc2) <= b) {
+			return;
+		}
+
+		// first pc in the loop at which the variables may change
+		int indexChanged = Integer.MAX_VALUE, arrayChanged = indexChanged,
+				refChanged = indexChanged;
+		for (int k = first; k <= last; k++) {
+			int pc = m.pcs[k];
+			int stored = stored(pc);
+			if (stored >= 0 && stored == index) {
+				indexChanged = Math.min(indexChanged, pc);
+			}
+			if (stored >= 0 && stored == array) {
+				arrayChanged = Math.min(arrayChanged, pc);
+			}
+			if (stored >= 0 && stored == ref) {
+				refChanged = Math.min(refChanged, pc);
+			}
+			if (array < OTHER && (code[pc] == OpCode.call.code()
+					|| code[pc] == OpCode.putstatic.code()
+							&& -2 - get2(pc + 1) == array)) {
+				arrayChanged = Math.min(arrayChanged, pc);
+			}
+		}
+
+		// trace the operands of accesses in the loop body; untracked operands
+		// are OTHER like the variables of the form that the loop does not have
+		boolean arrays = array != OTHER && index != OTHER;
+		int[] src = new int[m.maxDepth + 4];
+		Arrays.fill(src, OTHER);
+		for (int k = body; k <= last; k++) {
+			int pc = m.pcs[k];
+			int d = analyzer.depthAt(pc);
+			if (jumpTarget[pc]) {
+				Arrays.fill(src, OTHER);
+			}
+			OpCode op = OpCode.get(code[pc]);
+			switch (op) {
+			case aload:
+			case baload:
+				safe[pc] = arrays && src[d - 2] == array && src[d - 1] == index
+						&& pc < arrayChanged && pc < indexChanged;
+				src[d - 2] = OTHER;
+				break;
+			case astore:
+			case bastore:
+				safe[pc] = arrays && src[d - 3] == array && src[d - 2] == index
+						&& pc < arrayChanged && pc < indexChanged;
+				break;
+			case getfield:
+				safe[pc] = ref != OTHER && src[d - 1] == ref
+						&& pc < refChanged;
+				src[d - 1] = OTHER;
+				break;
+			case dup:
+				src[d] = src[d - 1];
+				break;
+			case dup2:
+				src[d] = src[d - 2];
+				src[d + 1] = src[d - 1];
+				break;
+			default:
+				if (source(pc) != OTHER) {
+					src[d] = source(pc);
+				} else if (op == OpCode.call) {
+					Method callee = analyzer.methodAt(analyzer.targetAt(pc));
+					int from = d - callee.nPars;
+					Arrays.fill(src, from, Math.max(from + callee.returnSize,
+							from), OTHER);
+				} else {
+					int from = d - CodeAnalyzer.pops(op);
+					Arrays.fill(src, from, from + CodeAnalyzer.pushes(op), OTHER);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the index variable is set to a constant &gt;= 0 before the
+	 * loop and only increased by constants &gt;= 0 in the loop.
+	 */
+	private boolean positiveIndex(Method m, int first, int last, int index) {
+		if (first < 2) {
+			return false;
+		}
+		int c = m.pcs[first - 2], s = m.pcs[first - 1];
+		if (constant(c) < 0 || stored(s) != index
+				|| code[s] == OpCode.inc.code() || jumpTarget[s]
+				|| c + analyzer.sizeAt(c) != s
+				|| s + analyzer.sizeAt(s) != m.pcs[first]) {
+			return false;
+		}
+		long step = 0;
+		for (int k = first; k <= last; k++) {
+			int pc = m.pcs[k];
+			if (stored(pc) != index) {
+				continue;
+			}
+			if (code[pc] == OpCode.inc.code()) {
+				if (code[pc + 2] < 0) {
+					return false;
+				}
+				step += code[pc + 2];
+			} else if (k - 3 >= first && local(m.pcs[k - 3]) == index
+					&& constant(m.pcs[k - 2]) >= 0
+					&& code[m.pcs[k - 1]] == OpCode.add.code()
+					&& !jumpTarget[m.pcs[k - 2]] && !jumpTarget[m.pcs[k - 1]]
+					&& !jumpTarget[pc]) {
+				step += constant(m.pcs[k - 2]);
+			} else {
+				return false;
+			}
+		}
+		return step < MAX_STEP;
+	}
+
+	// ----- instructions
+
+	private boolean isJump(int pc) {
+		int op = code[pc];
+		return op >= OpCode.jmp.code() && op <= OpCode.jge.code();
+	}
+
+	/** Local variable loaded at pc or -1. */
+	private int local(int pc) {
+		int op = code[pc];
+		if (op == OpCode.load.code()) {
+			return code[pc + 1];
+		}
+		if (op >= OpCode.load_0.code() && op <= OpCode.load_3.code()) {
+			return op - OpCode.load_0.code();
+		}
+		return -1;
+	}
+
+	/** Source of the value loaded at pc or OTHER. */
+	private int source(int pc) {
+		if (code[pc] == OpCode.getstatic.code()) {
+			return -2 - get2(pc + 1);
+		}
+		int n = local(pc);
+		return n >= 0 ? n : OTHER;
+	}
+
+	/** Local variable written at pc or -1. */
+	private int stored(int pc) {
+		int op = code[pc];
+		if (op == OpCode.store.code() || op == OpCode.inc.code()) {
+			return code[pc + 1];
+		}
+		if (op >= OpCode.store_0.code() && op <= OpCode.store_3.code()) {
+			return op - OpCode.store_0.code();
+		}
+		return -1;
+	}
+
+	/** Value of the constant loaded at pc or -1 if none or negative. */
+	private int constant(int pc) {
+		int op = code[pc];
+		if (op >= OpCode.const_0.code() && op <= OpCode.const_5.code()) {
+			return op - OpCode.const_0.code();
+		}
+		if (op == OpCode.const_.code()) {
+			return Math.max((get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff), -1);
+		}
+		return -1;
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+}
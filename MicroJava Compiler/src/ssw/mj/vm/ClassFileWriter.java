@@ -0,0 +1,290 @@
+package ssw.mj.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal writer for JVM class files as needed by the {@link JitCompiler}:
+ * a constant pool, static fields and methods with a Code attribute.
+ *
+ * Classes are written in version 49 (Java 5), which is still verified by
+ * type inference, so no StackMapTable attributes have to be computed.
+ */
+final class ClassFileWriter {
+
+	// ----- JVM opcodes used by the JIT compiler
+	static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10,
+			SIPUSH = 0x11, LDC_W = 0x13, ILOAD = 0x15, ALOAD = 0x19,
+			IALOAD = 0x2e, ISTORE = 0x36, ASTORE = 0x3a, IASTORE = 0x4f,
+			POP = 0x57, DUP = 0x59, DUP2 = 0x5c, SWAP = 0x5f, IADD = 0x60,
+			ISUB = 0x64, IMUL = 0x68, INEG = 0x74, ISHL = 0x78, ISHR = 0x7a,
+			IINC = 0x84, IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0,
+			IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3,
+			IF_ICMPLE = 0xa4, GOTO = 0xa7, IRETURN = 0xac, RETURN = 0xb1,
+			GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4,
+			PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8,
+			ATHROW = 0xbf, WIDE = 0xc4;
+
+	static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002,
+			ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolSize = 1;
+
+	private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+	private final DataOutputStream fieldsOut = new DataOutputStream(fields);
+	private int nFields, nMethods;
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private final DataOutputStream methodsOut = new DataOutputStream(methods);
+
+	private final int thisClass, superClass;
+
+	ClassFileWriter(String name, String superName) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+	}
+
+	// ----- constant pool
+
+	int utf8(String s) {
+		Integer idx = poolIndex.get("U" + s);
+		if (idx == null) {
+			try {
+				poolOut.writeByte(1);
+				poolOut.writeUTF(s);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			idx = poolSize++;
+			poolIndex.put("U" + s, idx);
+		}
+		return idx;
+	}
+
+	int classRef(String name) {
+		return entry("C" + name, 7, utf8(name), -1);
+	}
+
+	int string(String s) {
+		return entry("S" + s, 8, utf8(s), -1);
+	}
+
+	int integer(int val) {
+		Integer idx = poolIndex.get("I" + val);
+		if (idx == null) {
+			try {
+				poolOut.writeByte(3);
+				poolOut.writeInt(val);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			idx = poolSize++;
+			poolIndex.put("I" + val, idx);
+		}
+		return idx;
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return entry("F" + owner + "." + name + ":" + desc, 9,
+				classRef(owner), nameAndType(name, desc));
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return entry("M" + owner + "." + name + ":" + desc, 10,
+				classRef(owner), nameAndType(name, desc));
+	}
+
+	private int nameAndType(String name, String desc) {
+		return entry("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+	}
+
+	private int entry(String key, int tag, int a, int b) {
+		Integer idx = poolIndex.get(key);
+		if (idx == null) {
+			try {
+				poolOut.writeByte(tag);
+				poolOut.writeShort(a);
+				if (b >= 0) {
+					poolOut.writeShort(b);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			idx = poolSize++;
+			poolIndex.put(key, idx);
+		}
+		return idx;
+	}
+
+	// ----- members
+
+	void addField(int access, String name, String desc) {
+		try {
+			fieldsOut.writeShort(access);
+			fieldsOut.writeShort(utf8(name));
+			fieldsOut.writeShort(utf8(desc));
+			fieldsOut.writeShort(0); // no attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		nFields++;
+	}
+
+	void addMethod(int access, String name, String desc, Bytecode code) {
+		int codeAttr = utf8("Code");
+		try {
+			methodsOut.writeShort(access);
+			methodsOut.writeShort(utf8(name));
+			methodsOut.writeShort(utf8(desc));
+			methodsOut.writeShort(1); // Code attribute
+			byte[] bytes = code.toByteArray();
+			methodsOut.writeShort(codeAttr);
+			methodsOut.writeInt(12 + bytes.length);
+			methodsOut.writeShort(code.maxStack);
+			methodsOut.writeShort(code.maxLocals);
+			methodsOut.writeInt(bytes.length);
+			methodsOut.write(bytes);
+			methodsOut.writeShort(0); // no exception table
+			methodsOut.writeShort(0); // no attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		nMethods++;
+	}
+
+	byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xcafebabe);
+			out.writeShort(0); // minor version
+			out.writeShort(49); // major version
+			out.writeShort(poolSize);
+			out.write(pool.toByteArray());
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // no interfaces
+			out.writeShort(nFields);
+			out.write(fields.toByteArray());
+			out.writeShort(nMethods);
+			out.write(methods.toByteArray());
+			out.writeShort(0); // no attributes
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Code buffer of a single method with forward and backward branches to
+	 * labels.
+	 */
+	static final class Bytecode {
+		private byte[] buf = new byte[256];
+		private int len;
+
+		private int[] labels = new int[16];
+		private int nLabels;
+		private int[] fixups = new int[16]; // pairs of (branch pos, label)
+		private int nFixups;
+
+		int maxStack, maxLocals;
+
+		int newLabel() {
+			if (nLabels == labels.length) {
+				labels = Arrays.copyOf(labels, nLabels * 2);
+			}
+			labels[nLabels] = -1;
+			return nLabels++;
+		}
+
+		void place(int label) {
+			labels[label] = len;
+		}
+
+		int pos() {
+			return len;
+		}
+
+		void op(int opcode) {
+			put(opcode);
+		}
+
+		void op1(int opcode, int operand) {
+			put(opcode);
+			put(operand);
+		}
+
+		void op2(int opcode, int operand) {
+			put(opcode);
+			put2(operand);
+		}
+
+		/** Local variable access, wide if the index needs 16 bits. */
+		void local(int opcode, int n) {
+			if (n > 255) {
+				put(WIDE);
+				op2(opcode, n);
+			} else {
+				op1(opcode, n);
+			}
+		}
+
+		void iinc(int n, int delta) {
+			if (n > 255 || delta < -128 || delta > 127) {
+				put(WIDE);
+				op2(IINC, n);
+				put2(delta);
+			} else {
+				op1(IINC, n);
+				put(delta);
+			}
+		}
+
+		void branch(int opcode, int label) {
+			if (nFixups + 2 > fixups.length) {
+				fixups = Arrays.copyOf(fixups, fixups.length * 2);
+			}
+			fixups[nFixups++] = len;
+			fixups[nFixups++] = label;
+			put(opcode);
+			put2(0);
+		}
+
+		byte[] toByteArray() {
+			for (int i = 0; i < nFixups; i += 2) {
+				int pos = fixups[i];
+				int dist = labels[fixups[i + 1]] - pos;
+				if (dist < Short.MIN_VALUE || dist > Short.MAX_VALUE) {
+					throw new IllegalArgumentException("branch too far");
+				}
+				buf[pos + 1] = (byte) (dist >> 8);
+				buf[pos + 2] = (byte) dist;
+			}
+			if (len >= 65536) {
+				throw new IllegalArgumentException("method too large");
+			}
+			return Arrays.copyOf(buf, len);
+		}
+
+		private void put2(int x) {
+			put(x >> 8);
+			put(x);
+		}
+
+		private void put(int x) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, len * 2);
+			}
+			buf[len++] = (byte) x;
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package ssw.mj.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.ClosureInterpreter.*;
+import ssw.mj.vm.CodeAnalyzer.Method;
+
+/**
+ * Translates every MicroJava method into basic blocks of node trees for the
+ * {@link ClosureInterpreter}.
+ *
+ * The expression stack of a block is simulated with nodes: an instruction
+ * that produces a value pops the nodes of its operands and pushes a node
+ * that computes its result from them. Evaluating a tree left to right
+ * executes its instructions in their original order. An instruction that
+ * only has an effect (a store, print, dup, ...) becomes a statement; values
+ * still on the stack below its operands are computed into their stack slots
+ * before it, so that they are not computed after the statement. At the end
+ * of a block, all values on the stack are stored into their slots, where the
+ * following blocks find them.
+ *
+ * Every method is translated twice: with expression stack checks for
+ * invocations whose part of the stack could exceed its size, and without.
+ */
+final class ClosureCompiler {
+
+	private final ClosureInterpreter vm;
+	private final byte[] code;
+	private final CodeAnalyzer analyzer;
+	private final Map<Method, Function> functions = new HashMap<Method, Function>();
+
+	// state of the method being translated
+	private Method m;
+	private Function fn;
+	private boolean checked;
+	private int[] blockAt; // index of the block starting at pc, -1 if none
+	private Node[] stack;
+	private int depth;
+	private List<Node> statements;
+
+	private ClosureCompiler(ClosureInterpreter vm, byte[] code,
+			CodeAnalyzer analyzer) {
+		this.vm = vm;
+		this.code = code;
+		this.analyzer = analyzer;
+	}
+
+	/**
+	 * Compiles all methods reachable from startPC and returns the compiled
+	 * main method. Throws an IllegalArgumentException if the code cannot be
+	 * compiled.
+	 */
+	static Function compile(ClosureInterpreter vm, byte[] code, int startPC)
+			throws IllegalArgumentException {
+		CodeAnalyzer analyzer = new CodeAnalyzer(code);
+		analyzer.analyze(startPC);
+		Method main = analyzer.methodAt(startPC);
+		if (main.nPars != 0) {
+			throw new IllegalArgumentException("main has parameters");
+		}
+		ClosureCompiler compiler = new ClosureCompiler(vm, code, analyzer);
+		for (Method m : analyzer.methods()) {
+			compiler.functions.put(m,
+					new Function(vm, m.nLocals, m.maxDepth));
+		}
+		for (Method m : analyzer.methods()) {
+			Function fn = compiler.functions.get(m);
+			fn.blocks = compiler.compile(m, false);
+			fn.checkedBlocks = compiler.compile(m, true);
+		}
+		return compiler.functions.get(main);
+	}
+
+	private Block[] compile(Method m, boolean checked) {
+		this.m = m;
+		this.checked = checked;
+		fn = functions.get(m);
+		int[] pcs = m.pcs;
+
+		// block starts: method entry, jump targets and pcs after block ends
+		blockAt = new int[code.length];
+		Arrays.fill(blockAt, -1);
+		boolean[] leader = new boolean[code.length];
+		leader[m.entry] = true;
+		for (int i = 0; i < pcs.length; i++) {
+			int pc = pcs[i];
+			if (endsBlock(pc) && i + 1 < pcs.length) {
+				leader[pcs[i + 1]] = true;
+			}
+			if (code[pc] >= OpCode.jmp.code() && code[pc] <= OpCode.jge.code()) {
+				leader[analyzer.targetAt(pc)] = true;
+			}
+		}
+		int nBlocks = 0;
+		for (int pc : pcs) {
+			if (leader[pc]) {
+				blockAt[pc] = nBlocks++;
+			}
+		}
+
+		Block[] blocks = new Block[nBlocks];
+		stack = new Node[m.maxDepth + 2];
+		for (int i = 0; i < pcs.length;) {
+			int start = pcs[i];
+			if (!leader[start]) {
+				i++; // return fused into the exit before it
+				continue;
+			}
+			depth = analyzer.depthAt(start);
+			for (int j = 0; j < depth; j++) {
+				stack[j] = slot(j);
+			}
+			statements = new ArrayList<Node>();
+			Node end = null;
+			while (end == null) {
+				int pc = pcs[i++];
+				int next = pc + analyzer.sizeAt(pc);
+				end = instruction(pc, next);
+				if (end == null && leader[next]) {
+					spill(depth, true);
+					end = new Goto(blockAt[next]);
+				}
+			}
+			blocks[blockAt[start]] = new Block(
+					statements.toArray(new Node[statements.size()]), end);
+		}
+		return blocks;
+	}
+
+	/** Returns true if no instruction follows the one at pc directly. */
+	private boolean endsBlock(int pc) {
+		int op = code[pc];
+		if (op == OpCode.call.code()) {
+			return analyzer.methodAt(analyzer.targetAt(pc))
+					.returnSize == CodeAnalyzer.NO_RETURN;
+		}
+		return op >= OpCode.jmp.code() && op <= OpCode.jge.code()
+				|| op == OpCode.return_.code() || op == OpCode.trap.code();
+	}
+
+	/**
+	 * Translates the instruction at pc, which falls through to next.
+	 * Returns the end node if the instruction ends the block, else null.
+	 */
+	private Node instruction(int pc, int next) {
+		OpCode op = OpCode.get(code[pc]);
+		Node x, y;
+		switch (op) {
+		case load:
+			grow(new Local(code[pc + 1]));
+			break;
+		case load_0:
+		case load_1:
+		case load_2:
+		case load_3:
+			grow(new Local(op.code() - OpCode.load_0.code()));
+			break;
+		case store:
+			statement(new Store(code[pc + 1], pop()));
+			break;
+		case store_0:
+		case store_1:
+		case store_2:
+		case store_3:
+			statement(new Store(op.code() - OpCode.store_0.code(), pop()));
+			break;
+		case getstatic:
+			grow(new Static(vm.dataArray(), get2(pc + 1)));
+			break;
+		case putstatic:
+			statement(new PutStatic(vm.dataArray(), get2(pc + 1), pop()));
+			break;
+		case getfield:
+			push(new GetField(vm, pop(), get2(pc + 1)));
+			break;
+		case putfield:
+			y = pop();
+			statement(new PutField(vm, pop(), y, get2(pc + 1)));
+			break;
+		case const_0:
+		case const_1:
+		case const_2:
+		case const_3:
+		case const_4:
+		case const_5:
+			grow(new Const(op.code() - OpCode.const_0.code()));
+			break;
+		case const_m1:
+			grow(new Const(-1));
+			break;
+		case const_:
+			grow(new Const((get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff)));
+			break;
+		case add:
+			y = pop();
+			x = pop();
+			if (y instanceof Const) {
+				push(new AddConst(x, ((Const) y).val));
+			} else {
+				push(new Add(x, y));
+			}
+			break;
+		case sub:
+			y = pop();
+			x = pop();
+			if (y instanceof Const) {
+				push(new AddConst(x, -((Const) y).val));
+			} else {
+				push(new Sub(x, y));
+			}
+			break;
+		case mul:
+			y = pop();
+			push(new Mul(pop(), y));
+			break;
+		case div:
+			y = pop();
+			push(new Div(pop(), y));
+			break;
+		case rem:
+			y = pop();
+			push(new Rem(pop(), y));
+			break;
+		case neg:
+			push(new Neg(pop()));
+			break;
+		case shl:
+			y = pop();
+			push(new Shl(pop(), y));
+			break;
+		case shr:
+			y = pop();
+			push(new Shr(pop(), y));
+			break;
+		case inc:
+			statement(new Inc(code[pc + 1], code[pc + 2]));
+			break;
+		case new_:
+			grow(new New(vm, get2(pc + 1)));
+			break;
+		case newarray:
+			push(new NewArray(vm, pop(), code[pc + 1]));
+			break;
+		case aload:
+			y = pop();
+			push(new ALoad(vm, pop(), y));
+			break;
+		case baload:
+			y = pop();
+			push(new BALoad(vm, pop(), y));
+			break;
+		case astore:
+			x = pop();
+			y = pop();
+			statement(new AStore(vm, pop(), y, x));
+			break;
+		case bastore:
+			x = pop();
+			y = pop();
+			statement(new BAStore(vm, pop(), y, x));
+			break;
+		case arraylength:
+			push(new ArrayLength(vm, pop()));
+			break;
+		case pop:
+			x = pop();
+			if (!(x instanceof Const || x instanceof Local)) {
+				statement(new Store(slotIndex(depth), x));
+			}
+			break;
+		case dup:
+			spill(depth, false);
+			check(depth + 1);
+			stack[depth] = slotFor(stack[depth - 1], depth - 1);
+			depth++;
+			break;
+		case dup2:
+			spill(depth, false);
+			check(depth + 2);
+			stack[depth] = slotFor(stack[depth - 2], depth - 2);
+			stack[depth + 1] = slotFor(stack[depth - 1], depth - 1);
+			depth += 2;
+			break;
+		case jmp:
+			spill(depth, true);
+			return new Goto(blockAt[analyzer.targetAt(pc)]);
+		case jeq:
+		case jne:
+		case jlt:
+		case jle:
+		case jgt:
+		case jge:
+			y = pop();
+			x = pop();
+			spill(depth, true);
+			return branch(op, x, y, blockAt[analyzer.targetAt(pc)],
+					blockAt[next]);
+		case call:
+			Method callee = analyzer.methodAt(analyzer.targetAt(pc));
+			Node[] args = new Node[callee.nPars];
+			for (int i = args.length - 1; i >= 0; i--) {
+				args[i] = pop();
+			}
+			Node call = new Call(functions.get(callee), args, fn.base, depth);
+			if (callee.returnSize == 1) {
+				push(call);
+			} else if (callee.returnSize == 0) {
+				statement(call);
+			} else {
+				statement(call);
+				return new Trap(0); // not reached, the callee never returns
+			}
+			break;
+		case return_:
+			return new Return(fn, depth > 0 ? pop() : null, false);
+		case enter:
+			// handled by Function.invoke
+			break;
+		case exit:
+			if (code[next] == OpCode.return_.code()
+					&& blockAt[next] < 0) {
+				// exit; return: release the frame after computing the result
+				return new Return(fn, depth > 0 ? pop() : null, true);
+			}
+			statement(new Exit(fn));
+			break;
+		case read:
+			grow(new Read(vm));
+			break;
+		case print:
+			y = pop();
+			statement(new Print(vm, pop(), y));
+			break;
+		case bread:
+			grow(new BRead(vm));
+			break;
+		case bprint:
+			y = pop();
+			statement(new BPrint(vm, pop(), y));
+			break;
+		case trap:
+			spill(depth, false);
+			return new Trap(code[pc + 1]);
+		case nop:
+			break;
+		}
+		return null;
+	}
+
+	private Node branch(OpCode op, Node x, Node y, int t, int e) {
+		switch (op) {
+		case jeq:
+			return new IfEq(x, y, t, e);
+		case jne:
+			return new IfNe(x, y, t, e);
+		case jlt:
+			return new IfLt(x, y, t, e);
+		case jle:
+			return new IfLe(x, y, t, e);
+		case jgt:
+			return new IfGt(x, y, t, e);
+		default:
+			return new IfGe(x, y, t, e);
+		}
+	}
+
+	// ----- simulated expression stack
+
+	private void push(Node x) {
+		stack[depth++] = x;
+	}
+
+	/**
+	 * Pushes the node of an instruction without operands, which checks that
+	 * the stack does not overflow in checked code.
+	 */
+	private void grow(Node x) {
+		push(checked ? new Checked(x, fn.base, depth + 1) : x);
+	}
+
+	private Node pop() {
+		return stack[--depth];
+	}
+
+	/** Adds a statement after computing the values below into their slots. */
+	private void statement(Node s) {
+		spill(depth, false);
+		statements.add(s);
+	}
+
+	/** Adds a statement that checks a push to the given depth. */
+	private void check(int depth) {
+		if (checked) {
+			statements.add(new Checked(null, fn.base, depth));
+		}
+	}
+
+	/**
+	 * Stores the values stack[0..n-1] that are not in their slots yet into
+	 * their slots. Constants stay on the stack unless all is set.
+	 */
+	private void spill(int n, boolean all) {
+		for (int j = 0; j < n; j++) {
+			Node x = stack[j];
+			if (isSlot(x, j) || x instanceof Const && !all) {
+				continue;
+			}
+			statements.add(new Store(slotIndex(j), x));
+			stack[j] = slot(j);
+		}
+	}
+
+	/** The value x of stack position j for a copy made by dup. */
+	private Node slotFor(Node x, int j) {
+		return x instanceof Const ? x : slot(j);
+	}
+
+	private int slotIndex(int j) {
+		return m.nLocals + j;
+	}
+
+	private Node slot(int j) {
+		return new Local(slotIndex(j));
+	}
+
+	private boolean isSlot(Node x, int j) {
+		return x instanceof Local && ((Local) x).index == slotIndex(j);
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+}
@@ -0,0 +1,759 @@
+package ssw.mj.vm;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Executes MicroJava programs as trees of small node objects built by the
+ * {@link ClosureCompiler}. Every node has its operands, constants and offsets
+ * bound when it is built, so nothing is decoded at run time; a node computes
+ * its value by evaluating its children and returns it as a Java value.
+ *
+ * Every invocation of a method gets a frame array with its local variables,
+ * the slots of values that stay on the expression stack across statements or
+ * basic blocks, the expression stack base and the return value. Like in the
+ * {@link JitInterpreter}, the method stack is not materialized and only its
+ * size is tracked, and every method knows where its part of the expression
+ * stack would start. Nodes that push a value check for "expression stack
+ * overflow" only in invocations that could overflow. If the program cannot
+ * be compiled, runs are observed or the heap is off the Java heap, the
+ * standard interpreter is used.
+ */
+public class ClosureInterpreter extends Interpreter {
+
+	private final Function main; // null if not compiled
+
+	/** Words that the interpreter would use on the method stack. */
+	private int frameWords;
+
+	public ClosureInterpreter(byte[] code, int startPC, int dataSize,
+			IO io, boolean debug) {
+		super(code, startPC, dataSize, io, debug);
+		Function f = null;
+		if (!debug) {
+			try {
+				f = ClosureCompiler.compile(this, code, startPC);
+			} catch (IllegalArgumentException e) {
+				// not compilable, fall back to interpretation
+			}
+		}
+		main = f;
+	}
+
+	/** Returns true if the program is executed as compiled node trees. */
+	public boolean isCompiled() {
+		return main != null;
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		if (main == null || isObserved() || isOffHeap()) {
+			super.run();
+			return;
+		}
+		frameWords = -1; // main has no return address
+		beginRun();
+		try {
+			main.invoke(new int[main.frameLength]);
+		} finally {
+			endRun();
+		}
+	}
+
+	int[] dataArray() {
+		return data;
+	}
+
+	// ----- compiled methods
+
+	/** A compiled method. */
+	static final class Function {
+		final ClosureInterpreter vm;
+		/** Words of the frame array; where the stack base is in it. */
+		final int frameLength, base;
+		/** Words used on the method stack and the expression stack. */
+		final int frameWords, maxDepth;
+		/** Blocks without and with expression stack checks. */
+		Block[] blocks, checkedBlocks;
+
+		Function(ClosureInterpreter vm, int nLocals, int maxDepth) {
+			this.vm = vm;
+			this.maxDepth = maxDepth;
+			base = nLocals + maxDepth;
+			frameLength = base + 2; // base and return value
+			frameWords = 2 + nLocals;
+		}
+
+		/** Executes the method with the arguments and stack base in f. */
+		int invoke(int[] f) {
+			ClosureInterpreter vm = this.vm;
+			vm.frameWords += frameWords;
+			if (vm.frameWords > mStackSize) {
+				throw new IllegalStateException("method stack overflow");
+			}
+			Block[] blocks = f[base] + maxDepth <= eStackSize ? this.blocks
+					: checkedBlocks;
+			int b = 0, next;
+			for (;;) {
+				Block block = blocks[b];
+				for (Node s : block.statements) {
+					s.eval(f);
+				}
+				next = block.end.eval(f);
+				if (next < 0) {
+					break;
+				}
+				b = vm.jump(b, next); // blocks are in the order of the code
+			}
+			return f[base + 1];
+		}
+	}
+
+	/** Statements of a basic block and the node that selects the next one. */
+	static final class Block {
+		final Node[] statements;
+		final Node end; // returns the index of the next block or -1
+
+		Block(Node[] statements, Node end) {
+			this.statements = statements;
+			this.end = end;
+		}
+	}
+
+	/** A node of the tree of a statement or expression. */
+	abstract static class Node {
+		/** Executes the node in frame f and returns its value. */
+		abstract int eval(int[] f);
+	}
+
+	// ----- expressions
+
+	static final class Const extends Node {
+		final int val;
+
+		Const(int val) {
+			this.val = val;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return val;
+		}
+	}
+
+	/** A local variable or a stack slot of the frame. */
+	static final class Local extends Node {
+		final int index;
+
+		Local(int index) {
+			this.index = index;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return f[index];
+		}
+	}
+
+	static final class Static extends Node {
+		final int[] data;
+		final int adr;
+
+		Static(int[] data, int adr) {
+			this.data = data;
+			this.adr = adr;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return data[adr];
+		}
+	}
+
+	static final class GetField extends Node {
+		final ClosureInterpreter vm;
+		final Node obj;
+		final int off;
+
+		GetField(ClosureInterpreter vm, Node obj, int off) {
+			this.vm = vm;
+			this.obj = obj;
+			this.off = off;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return JitInterpreter.getfield(obj.eval(f), off, vm.heap);
+		}
+	}
+
+	static final class Add extends Node {
+		final Node x, y;
+
+		Add(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) + y.eval(f);
+		}
+	}
+
+	static final class AddConst extends Node {
+		final Node x;
+		final int val;
+
+		AddConst(Node x, int val) {
+			this.x = x;
+			this.val = val;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) + val;
+		}
+	}
+
+	static final class Sub extends Node {
+		final Node x, y;
+
+		Sub(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) - y.eval(f);
+		}
+	}
+
+	static final class Mul extends Node {
+		final Node x, y;
+
+		Mul(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) * y.eval(f);
+		}
+	}
+
+	static final class Div extends Node {
+		final Node x, y;
+
+		Div(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int a = x.eval(f);
+			return JitInterpreter.div(a, y.eval(f));
+		}
+	}
+
+	static final class Rem extends Node {
+		final Node x, y;
+
+		Rem(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int a = x.eval(f);
+			return JitInterpreter.rem(a, y.eval(f));
+		}
+	}
+
+	static final class Neg extends Node {
+		final Node x;
+
+		Neg(Node x) {
+			this.x = x;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return -x.eval(f);
+		}
+	}
+
+	static final class Shl extends Node {
+		final Node x, y;
+
+		Shl(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) << y.eval(f);
+		}
+	}
+
+	static final class Shr extends Node {
+		final Node x, y;
+
+		Shr(Node x, Node y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) >> y.eval(f);
+		}
+	}
+
+	static final class New extends Node {
+		final ClosureInterpreter vm;
+		final int nFields;
+
+		New(ClosureInterpreter vm, int nFields) {
+			this.vm = vm;
+			this.nFields = nFields;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return vm.newObject(nFields);
+		}
+	}
+
+	static final class NewArray extends Node {
+		final ClosureInterpreter vm;
+		final Node len;
+		final int elemSize;
+
+		NewArray(ClosureInterpreter vm, Node len, int elemSize) {
+			this.vm = vm;
+			this.len = len;
+			this.elemSize = elemSize;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return vm.newArray(len.eval(f), elemSize);
+		}
+	}
+
+	static final class ALoad extends Node {
+		final ClosureInterpreter vm;
+		final Node arr, idx;
+
+		ALoad(ClosureInterpreter vm, Node arr, Node idx) {
+			this.vm = vm;
+			this.arr = arr;
+			this.idx = idx;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int a = arr.eval(f);
+			return JitInterpreter.aload(a, idx.eval(f), vm.heap);
+		}
+	}
+
+	static final class BALoad extends Node {
+		final ClosureInterpreter vm;
+		final Node arr, idx;
+
+		BALoad(ClosureInterpreter vm, Node arr, Node idx) {
+			this.vm = vm;
+			this.arr = arr;
+			this.idx = idx;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int a = arr.eval(f);
+			return JitInterpreter.baload(a, idx.eval(f), vm.heap);
+		}
+	}
+
+	static final class ArrayLength extends Node {
+		final ClosureInterpreter vm;
+		final Node arr;
+
+		ArrayLength(ClosureInterpreter vm, Node arr) {
+			this.vm = vm;
+			this.arr = arr;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return JitInterpreter.arraylength(arr.eval(f), vm.heap);
+		}
+	}
+
+	static final class Read extends Node {
+		final ClosureInterpreter vm;
+
+		Read(ClosureInterpreter vm) {
+			this.vm = vm;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return vm.readInt();
+		}
+	}
+
+	static final class BRead extends Node {
+		final ClosureInterpreter vm;
+
+		BRead(ClosureInterpreter vm) {
+			this.vm = vm;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return vm.io.read();
+		}
+	}
+
+	/** A call, which returns 0 if the callee returns nothing. */
+	static final class Call extends Node {
+		final Function callee;
+		final Node[] args;
+		final int base, below; // base index in f, stack words below args
+
+		Call(Function callee, Node[] args, int base, int below) {
+			this.callee = callee;
+			this.args = args;
+			this.base = base;
+			this.below = below;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int[] g = new int[callee.frameLength];
+			for (int i = 0; i < args.length; i++) {
+				g[i] = args[i].eval(f);
+			}
+			g[callee.base] = f[base] + below;
+			callee.vm.safepoint();
+			return callee.invoke(g);
+		}
+	}
+
+	/** Checks that a push to the given depth does not overflow the stack. */
+	static final class Checked extends Node {
+		final Node x; // null in statements
+		final int base, depth;
+
+		Checked(Node x, int base, int depth) {
+			this.x = x;
+			this.base = base;
+			this.depth = depth;
+		}
+
+		@Override
+		int eval(int[] f) {
+			if (f[base] + depth > eStackSize) {
+				throw new IllegalStateException("expression stack overflow");
+			}
+			return x == null ? 0 : x.eval(f);
+		}
+	}
+
+	// ----- statements
+
+	static final class Store extends Node {
+		final int index;
+		final Node x;
+
+		Store(int index, Node x) {
+			this.index = index;
+			this.x = x;
+		}
+
+		@Override
+		int eval(int[] f) {
+			f[index] = x.eval(f);
+			return 0;
+		}
+	}
+
+	static final class Inc extends Node {
+		final int index, val;
+
+		Inc(int index, int val) {
+			this.index = index;
+			this.val = val;
+		}
+
+		@Override
+		int eval(int[] f) {
+			f[index] += val;
+			return 0;
+		}
+	}
+
+	static final class PutStatic extends Node {
+		final int[] data;
+		final int adr;
+		final Node x;
+
+		PutStatic(int[] data, int adr, Node x) {
+			this.data = data;
+			this.adr = adr;
+			this.x = x;
+		}
+
+		@Override
+		int eval(int[] f) {
+			data[adr] = x.eval(f);
+			return 0;
+		}
+	}
+
+	static final class PutField extends Node {
+		final ClosureInterpreter vm;
+		final Node obj, x;
+		final int off;
+
+		PutField(ClosureInterpreter vm, Node obj, Node x, int off) {
+			this.vm = vm;
+			this.obj = obj;
+			this.x = x;
+			this.off = off;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int adr = obj.eval(f);
+			JitInterpreter.putfield(adr, x.eval(f), off, vm.heap);
+			return 0;
+		}
+	}
+
+	static final class AStore extends Node {
+		final ClosureInterpreter vm;
+		final Node arr, idx, x;
+
+		AStore(ClosureInterpreter vm, Node arr, Node idx, Node x) {
+			this.vm = vm;
+			this.arr = arr;
+			this.idx = idx;
+			this.x = x;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int a = arr.eval(f), i = idx.eval(f);
+			JitInterpreter.astore(a, i, x.eval(f), vm.heap);
+			return 0;
+		}
+	}
+
+	static final class BAStore extends Node {
+		final ClosureInterpreter vm;
+		final Node arr, idx, x;
+
+		BAStore(ClosureInterpreter vm, Node arr, Node idx, Node x) {
+			this.vm = vm;
+			this.arr = arr;
+			this.idx = idx;
+			this.x = x;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int a = arr.eval(f), i = idx.eval(f);
+			JitInterpreter.bastore(a, i, x.eval(f), vm.heap);
+			return 0;
+		}
+	}
+
+	static final class Print extends Node {
+		final ClosureInterpreter vm;
+		final Node x, width;
+
+		Print(ClosureInterpreter vm, Node x, Node width) {
+			this.vm = vm;
+			this.x = x;
+			this.width = width;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int val = x.eval(f);
+			vm.printInt(val, width.eval(f));
+			return 0;
+		}
+	}
+
+	static final class BPrint extends Node {
+		final ClosureInterpreter vm;
+		final Node x, width;
+
+		BPrint(ClosureInterpreter vm, Node x, Node width) {
+			this.vm = vm;
+			this.x = x;
+			this.width = width;
+		}
+
+		@Override
+		int eval(int[] f) {
+			int val = x.eval(f);
+			vm.printChar(val, width.eval(f));
+			return 0;
+		}
+	}
+
+	/** Releases the frame of the method on the method stack. */
+	static final class Exit extends Node {
+		final Function m;
+
+		Exit(Function m) {
+			this.m = m;
+		}
+
+		@Override
+		int eval(int[] f) {
+			m.vm.frameWords -= m.frameWords;
+			return 0;
+		}
+	}
+
+	// ----- block ends
+
+	static final class Goto extends Node {
+		final int block;
+
+		Goto(int block) {
+			this.block = block;
+		}
+
+		@Override
+		int eval(int[] f) {
+			return block;
+		}
+	}
+
+	/** Base of conditional jumps to block t or else to block e. */
+	abstract static class Branch extends Node {
+		final Node x, y;
+		final int t, e;
+
+		Branch(Node x, Node y, int t, int e) {
+			this.x = x;
+			this.y = y;
+			this.t = t;
+			this.e = e;
+		}
+	}
+
+	static final class IfEq extends Branch {
+		IfEq(Node x, Node y, int t, int e) {
+			super(x, y, t, e);
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) == y.eval(f) ? t : e;
+		}
+	}
+
+	static final class IfNe extends Branch {
+		IfNe(Node x, Node y, int t, int e) {
+			super(x, y, t, e);
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) != y.eval(f) ? t : e;
+		}
+	}
+
+	static final class IfLt extends Branch {
+		IfLt(Node x, Node y, int t, int e) {
+			super(x, y, t, e);
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) < y.eval(f) ? t : e;
+		}
+	}
+
+	static final class IfLe extends Branch {
+		IfLe(Node x, Node y, int t, int e) {
+			super(x, y, t, e);
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) <= y.eval(f) ? t : e;
+		}
+	}
+
+	static final class IfGt extends Branch {
+		IfGt(Node x, Node y, int t, int e) {
+			super(x, y, t, e);
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) > y.eval(f) ? t : e;
+		}
+	}
+
+	static final class IfGe extends Branch {
+		IfGe(Node x, Node y, int t, int e) {
+			super(x, y, t, e);
+		}
+
+		@Override
+		int eval(int[] f) {
+			return x.eval(f) >= y.eval(f) ? t : e;
+		}
+	}
+
+	/** Returns the value of x (if any), releasing the frame if exit is set. */
+	static final class Return extends Node {
+		final Function m;
+		final Node x;
+		final boolean exit;
+
+		Return(Function m, Node x, boolean exit) {
+			this.m = m;
+			this.x = x;
+			this.exit = exit;
+		}
+
+		@Override
+		int eval(int[] f) {
+			if (x != null) {
+				f[m.base + 1] = x.eval(f);
+			}
+			if (exit) {
+				m.vm.frameWords -= m.frameWords;
+			}
+			return -1;
+		}
+	}
+
+	static final class Trap extends Node {
+		final int n;
+
+		Trap(int n) {
+			this.n = n;
+		}
+
+		@Override
+		int eval(int[] f) {
+			throw JitInterpreter.trap(n);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package ssw.mj.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Control flow analysis of MicroJava byte code. Starting at main, every
+ * reachable method is traversed along all paths and the depth of the
+ * expression stack is computed for every instruction. A method is the code
+ * reachable from its <code>enter</code> instruction.
+ *
+ * The analysis fails with an {@link IllegalArgumentException} if the code
+ * uses unknown opcodes, leaves the code area, under-runs its own part of the
+ * expression stack, accesses locals outside its frame or reaches an
+ * instruction with different stack depths.
+ */
+final class CodeAnalyzer {
+
+	/** Return size of methods that never return (e.g. only trap). */
+	static final int NO_RETURN = -1;
+
+	/** Analysis results for a single method. */
+	static final class Method {
+		/** pc of the enter instruction. */
+		final int entry;
+		/** Number of parameters and of all local variables. */
+		int nPars, nLocals;
+		/** Number of words left on the stack by return, or NO_RETURN. */
+		int returnSize = NO_RETURN;
+		/** Maximum depth of the method's part of the expression stack. */
+		int maxDepth;
+		/** Start pcs of all reachable instructions in ascending order. */
+		int[] pcs;
+
+		Method(int entry) {
+			this.entry = entry;
+		}
+	}
+
+	private final byte[] code;
+
+	/** Expression stack depth before the instruction at pc, -1 if none. */
+	private final int[] depth;
+
+	/** Entry of the method that owns the instruction at pc, -1 if none. */
+	private final int[] owner;
+
+	private final Map<Integer, Method> methods = new LinkedHashMap<Integer, Method>();
+
+	CodeAnalyzer(byte[] code) {
+		this.code = code;
+		depth = new int[code.length];
+		owner = new int[code.length];
+		Arrays.fill(depth, -1);
+		Arrays.fill(owner, -1);
+	}
+
+	/**
+	 * Analyzes main and all methods it calls directly or indirectly. Methods
+	 * are analyzed again until the return sizes of all callees are known.
+	 */
+	void analyze(int startPC) throws IllegalArgumentException {
+		method(startPC);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			List<Method> list = new ArrayList<Method>(methods.values());
+			for (Method m : list) {
+				int returnSize = m.returnSize;
+				analyze(m);
+				changed |= m.returnSize != returnSize;
+			}
+			changed |= methods.size() != list.size();
+		}
+	}
+
+	/** All analyzed methods, main first. */
+	List<Method> methods() {
+		return new ArrayList<Method>(methods.values());
+	}
+
+	/** The analyzed method starting at entry or null. */
+	Method methodAt(int entry) {
+		return methods.get(entry);
+	}
+
+	/** Expression stack depth before the instruction at pc, -1 if none. */
+	int depthAt(int pc) {
+		return depth[pc];
+	}
+
+	/** Size of the instruction at pc in bytes. */
+	int sizeAt(int pc) {
+		return 1 + OpCode.get(code[pc]).getOpsSize();
+	}
+
+	/** Absolute target of the jump or call at pc. */
+	int targetAt(int pc) {
+		return pc + get2(pc + 1);
+	}
+
+	private Method method(int entry) {
+		Method m = methods.get(entry);
+		if (m == null) {
+			if (entry < 0 || entry + 2 >= code.length
+					|| code[entry] != OpCode.enter.code()) {
+				throw new IllegalArgumentException(
+						"method at " + entry + " does not start with enter");
+			}
+			m = new Method(entry);
+			m.nPars = code[entry + 1];
+			m.nLocals = code[entry + 2];
+			if (m.nPars < 0 || m.nLocals < m.nPars) {
+				throw new IllegalArgumentException(
+						"invalid frame size of method at " + entry);
+			}
+			methods.put(entry, m);
+		}
+		return m;
+	}
+
+	private void analyze(Method m) {
+		if (m.pcs != null) {
+			for (int pc : m.pcs) {
+				depth[pc] = -1;
+			}
+		}
+		m.maxDepth = 0;
+		int[] work = new int[16]; // pairs of pc and depth
+		int n = 0;
+		work[n++] = m.entry;
+		work[n++] = 0;
+		int nPcs = 0;
+		int[] pcs = new int[16];
+		int returnSize = NO_RETURN;
+		while (n > 0) {
+			int d = work[--n];
+			int pc = work[--n];
+			for (;;) {
+				if (pc < 0 || pc >= code.length) {
+					throw new IllegalArgumentException(
+							"pc " + pc + " out of code area");
+				}
+				if (owner[pc] >= 0 && owner[pc] != m.entry) {
+					throw new IllegalArgumentException(
+							"code at " + pc + " shared by methods");
+				}
+				if (depth[pc] >= 0) {
+					if (depth[pc] != d) {
+						throw new IllegalArgumentException(
+								"inconsistent stack depth at " + pc);
+					}
+					break;
+				}
+				OpCode op = OpCode.get(code[pc]);
+				if (op == null) {
+					throw new IllegalArgumentException(
+							"wrong opcode " + code[pc] + " at " + pc);
+				}
+				int next = pc + 1 + op.getOpsSize();
+				if (next > code.length) {
+					throw new IllegalArgumentException(
+							"instruction at " + pc + " exceeds code area");
+				}
+				owner[pc] = m.entry;
+				depth[pc] = d;
+				if (nPcs == pcs.length) {
+					pcs = Arrays.copyOf(pcs, nPcs * 2);
+				}
+				pcs[nPcs++] = pc;
+
+				int pops = pops(op), pushes = pushes(op);
+				switch (op) {
+				case load:
+				case store:
+				case inc:
+					checkLocal(m, code[pc + 1], pc);
+					break;
+				case load_0:
+				case load_1:
+				case load_2:
+				case load_3:
+					checkLocal(m, op.code() - OpCode.load_0.code(), pc);
+					break;
+				case store_0:
+				case store_1:
+				case store_2:
+				case store_3:
+					checkLocal(m, op.code() - OpCode.store_0.code(), pc);
+					break;
+				case enter:
+					if (pc != m.entry) {
+						throw new IllegalArgumentException(
+								"enter inside method at " + pc);
+					}
+					break;
+				case call:
+					Method callee = method(targetAt(pc));
+					pops = callee.nPars;
+					pushes = callee.returnSize;
+					break;
+				default:
+					break;
+				}
+				if (d < pops) {
+					throw new IllegalArgumentException(
+							"expression stack underflow at " + pc);
+				}
+				if (op == OpCode.return_) {
+					if (returnSize != NO_RETURN && returnSize != d) {
+						throw new IllegalArgumentException(
+								"inconsistent return size at " + pc);
+					}
+					if (d > 1) {
+						throw new IllegalArgumentException(
+								"too many values on return at " + pc);
+					}
+					returnSize = d;
+					break;
+				}
+				if (op == OpCode.trap || pushes == NO_RETURN) {
+					break;
+				}
+				d = d - pops + pushes;
+				m.maxDepth = Math.max(m.maxDepth, d);
+				if (op == OpCode.jmp) {
+					pc = jumpTarget(m, pc);
+					continue;
+				}
+				if (op.ordinal() >= OpCode.jeq.ordinal()
+						&& op.ordinal() <= OpCode.jge.ordinal()) {
+					int target = jumpTarget(m, pc);
+					if (n + 2 > work.length) {
+						work = Arrays.copyOf(work, work.length * 2);
+					}
+					work[n++] = target;
+					work[n++] = d;
+				}
+				pc = next;
+			}
+		}
+		pcs = Arrays.copyOf(pcs, nPcs);
+		Arrays.sort(pcs);
+		m.pcs = pcs;
+		m.returnSize = returnSize;
+	}
+
+	/** Target of a jump, which must not re-enter the method. */
+	private int jumpTarget(Method m, int pc) {
+		int target = targetAt(pc);
+		if (target == m.entry) {
+			throw new IllegalArgumentException(
+					"jump to method entry at " + pc);
+		}
+		return target;
+	}
+
+	private static void checkLocal(Method m, int n, int pc) {
+		if (n < 0 || n >= m.nLocals) {
+			throw new IllegalArgumentException(
+					"local variable " + n + " out of frame at " + pc);
+		}
+	}
+
+	/** Number of words an instruction takes from the expression stack. */
+	static int pops(OpCode op) {
+		switch (op) {
+		case store:
+		case store_0:
+		case store_1:
+		case store_2:
+		case store_3:
+		case putstatic:
+		case getfield:
+		case neg:
+		case newarray:
+		case arraylength:
+		case pop:
+		case dup:
+			return 1;
+		case putfield:
+		case add:
+		case sub:
+		case mul:
+		case div:
+		case rem:
+		case shl:
+		case shr:
+		case aload:
+		case baload:
+		case dup2:
+		case jeq:
+		case jne:
+		case jlt:
+		case jle:
+		case jgt:
+		case jge:
+		case print:
+		case bprint:
+			return 2;
+		case astore:
+		case bastore:
+			return 3;
+		default:
+			return 0;
+		}
+	}
+
+	/** Number of words an instruction leaves on the expression stack. */
+	static int pushes(OpCode op) {
+		switch (op) {
+		case load:
+		case load_0:
+		case load_1:
+		case load_2:
+		case load_3:
+		case getstatic:
+		case getfield:
+		case const_0:
+		case const_1:
+		case const_2:
+		case const_3:
+		case const_4:
+		case const_5:
+		case const_m1:
+		case const_:
+		case add:
+		case sub:
+		case mul:
+		case div:
+		case rem:
+		case neg:
+		case shl:
+		case shr:
+		case new_:
+		case newarray:
+		case aload:
+		case baload:
+		case arraylength:
+		case read:
+		case bread:
+			return 1;
+		case dup:
+			return 2;
+		case dup2:
+			return 4;
+		default:
+			return 0;
+		}
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+}
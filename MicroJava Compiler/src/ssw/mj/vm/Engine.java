@@ -0,0 +1,102 @@
+package ssw.mj.vm;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Interpreter.IO;
+
+/**
+ * The available execution engines of the MicroJava VM. All engines accept the
+ * same object code and produce the same output and runtime errors, except
+ * for garbage collection: only the standard and the verified interpreter
+ * keep the reference tags that the collector needs. The other engines
+ * allocate until the heap is full and then fail with a heap overflow, unless
+ * the run is observed or the heap is off the Java heap, because such runs
+ * are executed by the standard interpreter on every engine.
+ */
+public enum Engine {
+	/** The switch based reference interpreter. */
+	standard {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new Interpreter(code, startPC, dataSize, io, debug);
+		}
+	},
+	/** The standard interpreter without stack checks for verified code. */
+	verified {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new VerifiedInterpreter(code, startPC, dataSize, io, debug);
+		}
+
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug, Verifier verifier) {
+			return new VerifiedInterpreter(code, startPC, dataSize, io, debug,
+					verifier);
+		}
+	},
+	/** Executes a stream that is decoded once at load time. */
+	predecoded {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new PredecodedInterpreter(code, startPC, dataSize, io,
+					debug);
+		}
+	},
+	/** Interprets cold code and decodes methods and loops when they get hot. */
+	tiered {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new TieredInterpreter(code, startPC, dataSize, io, debug);
+		}
+	},
+	/** Interprets the code and compiles the paths through hot loops. */
+	tracing {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new TracingInterpreter(code, startPC, dataSize, io, debug);
+		}
+	},
+	/** Translates the stack code to register code at load time. */
+	register {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new RegisterInterpreter(code, startPC, dataSize, io, debug);
+		}
+	},
+	/** Translates every method to trees of pre-bound node objects. */
+	closure {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new ClosureInterpreter(code, startPC, dataSize, io, debug);
+		}
+	},
+	/** Translates every method to JVM byte code. */
+	jit {
+		@Override
+		public Interpreter create(byte[] code, int startPC, int dataSize,
+				IO io, boolean debug) {
+			return new JitInterpreter(code, startPC, dataSize, io, debug);
+		}
+	};
+
+	/** Creates an interpreter of this kind for the given program. */
+	public abstract Interpreter create(byte[] code, int startPC, int dataSize,
+			IO io, boolean debug);
+
+	/**
+	 * Creates an interpreter of this kind for a program that verifier has
+	 * verified already, so that engines that use the results of the
+	 * verification do not verify the code again.
+	 */
+	public Interpreter create(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug, Verifier verifier) {
+		return create(code, startPC, dataSize, io, debug);
+	}
+}
@@ -0,0 +1,396 @@
+package ssw.mj.vm;
+
+import static ssw.mj.vm.ClassFileWriter.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.ClassFileWriter.Bytecode;
+import ssw.mj.vm.CodeAnalyzer.Method;
+
+/**
+ * Translates every MicroJava method into a static method of a hidden JVM
+ * class, so that HotSpot can compile MicroJava code to machine code.
+ *
+ * Local variables become JVM locals (parameters first), the expression stack
+ * of a method becomes its JVM operand stack and MicroJava calls become
+ * <code>invokestatic</code>s. Heap accesses, allocations, I/O and all runtime
+ * checks are delegated to the static helpers of {@link JitInterpreter}, which
+ * are small enough to be inlined by HotSpot.
+ */
+final class JitCompiler {
+
+	private static final String CLASS = "ssw/mj/vm/JitCode";
+	private static final String VM = "ssw/mj/vm/JitInterpreter";
+	private static final String VM_DESC = "L" + VM + ";";
+
+	private final byte[] code;
+	private final CodeAnalyzer analyzer;
+	private final ClassFileWriter cf;
+
+	/** Label of every jump target in the method being compiled. */
+	private final int[] labels;
+
+	private JitCompiler(byte[] code, CodeAnalyzer analyzer) {
+		this.code = code;
+		this.analyzer = analyzer;
+		cf = new ClassFileWriter(CLASS, "java/lang/Object");
+		labels = new int[code.length];
+	}
+
+	/**
+	 * Compiles all methods reachable from startPC and returns a handle to the
+	 * compiled main method. Throws an IllegalArgumentException if the code
+	 * cannot be compiled.
+	 */
+	static MethodHandle compile(JitInterpreter vm, byte[] code, int startPC)
+			throws IllegalArgumentException {
+		CodeAnalyzer analyzer = new CodeAnalyzer(code);
+		analyzer.analyze(startPC);
+		Method main = analyzer.methodAt(startPC);
+		if (main.nPars != 0) {
+			throw new IllegalArgumentException("main has parameters");
+		}
+		JitCompiler compiler = new JitCompiler(code, analyzer);
+		compiler.cf.addField(ACC_STATIC, "vm", VM_DESC);
+		for (Method m : analyzer.methods()) {
+			compiler.compile(m);
+		}
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClass(compiler.cf.toByteArray(), true);
+			lookup.findStaticSetter(lookup.lookupClass(), "vm",
+					JitInterpreter.class).invoke(vm);
+			return lookup
+					.findStatic(lookup.lookupClass(), name(main),
+							MethodType.fromMethodDescriptorString(
+									descriptor(main), null))
+					.asType(MethodType.methodType(void.class));
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw new IllegalArgumentException(e);
+		} catch (Throwable e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static String name(Method m) {
+		return "m" + m.entry;
+	}
+
+	private static String descriptor(Method m) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < m.nPars; i++) {
+			sb.append('I');
+		}
+		sb.append(m.returnSize == 1 ? ")I" : ")V");
+		return sb.toString();
+	}
+
+	private void compile(Method m) {
+		Bytecode b = new Bytecode();
+		int vm = m.nLocals, heap = vm + 1, data = vm + 2, base = vm + 3;
+		b.maxLocals = m.nLocals + 4;
+		b.maxStack = m.maxDepth + 4;
+		for (int pc : m.pcs) {
+			labels[pc] = b.newLabel();
+		}
+
+		// prologue: cache runtime objects, clear locals, reserve frame
+		b.op2(GETSTATIC, cf.fieldRef(CLASS, "vm", VM_DESC));
+		b.local(ASTORE, vm);
+		loadHeap(b, vm, heap);
+		b.local(ALOAD, vm);
+		b.op2(INVOKEVIRTUAL, cf.methodRef(VM, "dataArray", "()[I"));
+		b.local(ASTORE, data);
+		b.local(ALOAD, vm);
+		b.op2(INVOKEVIRTUAL, cf.methodRef(VM, "stackBase", "()I"));
+		b.local(ISTORE, base);
+		for (int i = m.nPars; i < m.nLocals; i++) {
+			b.op(ICONST_0);
+			b.local(ISTORE, i);
+		}
+		int frameSize = 2 + m.nLocals;
+		constant(b, frameSize);
+		b.local(ALOAD, vm);
+		helper(b, "enter", "(I" + VM_DESC + ")V");
+
+		int[] pcs = m.pcs;
+		for (int i = 0; i < pcs.length; i++) {
+			int pc = pcs[i];
+			b.place(labels[pc]);
+			OpCode op = OpCode.get(code[pc]);
+			boolean fallsThrough = true;
+			int depth = analyzer.depthAt(pc);
+			int after = depth - CodeAnalyzer.pops(op) + CodeAnalyzer.pushes(op);
+			if (after > depth) {
+				// expression stack overflow if base + after > stack size
+				int ok = b.newLabel();
+				b.local(ILOAD, base);
+				constant(b, JitInterpreter.EXPR_STACK_SIZE - after);
+				b.branch(IF_ICMPLE, ok);
+				helper(b, "stackOverflow", "()Ljava/lang/IllegalStateException;");
+				b.op(ATHROW);
+				b.place(ok);
+			}
+			switch (op) {
+			case load:
+				b.local(ILOAD, code[pc + 1]);
+				break;
+			case load_0:
+			case load_1:
+			case load_2:
+			case load_3:
+				b.local(ILOAD, op.code() - OpCode.load_0.code());
+				break;
+			case store:
+				b.local(ISTORE, code[pc + 1]);
+				break;
+			case store_0:
+			case store_1:
+			case store_2:
+			case store_3:
+				b.local(ISTORE, op.code() - OpCode.store_0.code());
+				break;
+			case getstatic:
+				b.local(ALOAD, data);
+				constant(b, get2(pc + 1));
+				b.op(IALOAD);
+				break;
+			case putstatic:
+				b.local(ALOAD, data);
+				b.op(SWAP);
+				constant(b, get2(pc + 1));
+				b.op(SWAP);
+				b.op(IASTORE);
+				break;
+			case getfield:
+				constant(b, get2(pc + 1));
+				b.local(ALOAD, heap);
+				helper(b, "getfield", "(II[I)I");
+				break;
+			case putfield:
+				constant(b, get2(pc + 1));
+				b.local(ALOAD, heap);
+				helper(b, "putfield", "(III[I)V");
+				break;
+			case const_0:
+			case const_1:
+			case const_2:
+			case const_3:
+			case const_4:
+			case const_5:
+				constant(b, op.code() - OpCode.const_0.code());
+				break;
+			case const_m1:
+				constant(b, -1);
+				break;
+			case const_:
+				constant(b, (get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+				break;
+			case add:
+				b.op(IADD);
+				break;
+			case sub:
+				b.op(ISUB);
+				break;
+			case mul:
+				b.op(IMUL);
+				break;
+			case div:
+				helper(b, "div", "(II)I");
+				break;
+			case rem:
+				helper(b, "rem", "(II)I");
+				break;
+			case neg:
+				b.op(INEG);
+				break;
+			case shl:
+				b.op(ISHL);
+				break;
+			case shr:
+				b.op(ISHR);
+				break;
+			case inc:
+				b.iinc(code[pc + 1], code[pc + 2]);
+				break;
+			case new_:
+				constant(b, get2(pc + 1));
+				b.local(ALOAD, vm);
+				helper(b, "newObject", "(I" + VM_DESC + ")I");
+				loadHeap(b, vm, heap);
+				break;
+			case newarray:
+				constant(b, code[pc + 1]);
+				b.local(ALOAD, vm);
+				helper(b, "newArray", "(II" + VM_DESC + ")I");
+				loadHeap(b, vm, heap);
+				break;
+			case aload:
+				b.local(ALOAD, heap);
+				helper(b, "aload", "(II[I)I");
+				break;
+			case astore:
+				b.local(ALOAD, heap);
+				helper(b, "astore", "(III[I)V");
+				break;
+			case baload:
+				b.local(ALOAD, heap);
+				helper(b, "baload", "(II[I)I");
+				break;
+			case bastore:
+				b.local(ALOAD, heap);
+				helper(b, "bastore", "(III[I)V");
+				break;
+			case arraylength:
+				b.local(ALOAD, heap);
+				helper(b, "arraylength", "(I[I)I");
+				break;
+			case pop:
+				b.op(POP);
+				break;
+			case dup:
+				b.op(DUP);
+				break;
+			case dup2:
+				b.op(DUP2);
+				break;
+			case jmp:
+				jump(b, GOTO, pc, vm);
+				fallsThrough = false;
+				break;
+			case jeq:
+				jump(b, IF_ICMPEQ, pc, vm);
+				break;
+			case jne:
+				jump(b, IF_ICMPNE, pc, vm);
+				break;
+			case jlt:
+				jump(b, IF_ICMPLT, pc, vm);
+				break;
+			case jle:
+				jump(b, IF_ICMPLE, pc, vm);
+				break;
+			case jgt:
+				jump(b, IF_ICMPGT, pc, vm);
+				break;
+			case jge:
+				jump(b, IF_ICMPGE, pc, vm);
+				break;
+			case call:
+				Method callee = analyzer.methodAt(analyzer.targetAt(pc));
+				b.local(ILOAD, base);
+				constant(b, depth - callee.nPars);
+				b.op(IADD);
+				b.local(ALOAD, vm);
+				helper(b, "setStackBase", "(I" + VM_DESC + ")V");
+				b.op2(INVOKESTATIC,
+						cf.methodRef(CLASS, name(callee), descriptor(callee)));
+				if (callee.returnSize == CodeAnalyzer.NO_RETURN) {
+					b.op(ACONST_NULL);
+					b.op(ATHROW);
+					fallsThrough = false;
+				} else {
+					loadHeap(b, vm, heap); // the callee may have grown it
+				}
+				break;
+			case return_:
+				b.op(m.returnSize == 1 ? IRETURN : RETURN);
+				fallsThrough = false;
+				break;
+			case enter:
+				// handled by the prologue
+				break;
+			case exit:
+				constant(b, frameSize);
+				b.local(ALOAD, vm);
+				helper(b, "exit", "(I" + VM_DESC + ")V");
+				break;
+			case read:
+				b.local(ALOAD, vm);
+				helper(b, "read", "(" + VM_DESC + ")I");
+				break;
+			case print:
+				b.local(ALOAD, vm);
+				helper(b, "print", "(II" + VM_DESC + ")V");
+				break;
+			case bread:
+				b.local(ALOAD, vm);
+				helper(b, "bread", "(" + VM_DESC + ")I");
+				break;
+			case bprint:
+				b.local(ALOAD, vm);
+				helper(b, "bprint", "(II" + VM_DESC + ")V");
+				break;
+			case trap:
+				constant(b, code[pc + 1]);
+				helper(b, "trap", "(I)Ljava/lang/IllegalStateException;");
+				b.op(ATHROW);
+				fallsThrough = false;
+				break;
+			case nop:
+				break;
+			}
+			int next = pc + analyzer.sizeAt(pc);
+			if (fallsThrough && (i + 1 == pcs.length || pcs[i + 1] != next)) {
+				b.branch(GOTO, labels[next]);
+			}
+		}
+		cf.addMethod(ACC_STATIC, name(m), descriptor(m), b);
+	}
+
+	/**
+	 * Emits the jump at pc with the given opcode. A taken backward jump passes
+	 * a safepoint before it jumps.
+	 */
+	private void jump(Bytecode b, int opcode, int pc, int vm) {
+		int target = analyzer.targetAt(pc);
+		if (target > pc) {
+			b.branch(opcode, labels[target]);
+			return;
+		}
+		int notTaken = -1;
+		if (opcode != GOTO) {
+			// the comparisons come in pairs of opposite conditions
+			notTaken = b.newLabel();
+			b.branch(IF_ICMPEQ + ((opcode - IF_ICMPEQ) ^ 1), notTaken);
+		}
+		b.local(ALOAD, vm);
+		helper(b, "backEdge", "(" + VM_DESC + ")V");
+		b.branch(GOTO, labels[target]);
+		if (notTaken >= 0) {
+			b.place(notTaken);
+		}
+	}
+
+	/** Caches the heap array of vm in a local; allocations may replace it. */
+	private void loadHeap(Bytecode b, int vm, int heap) {
+		b.local(ALOAD, vm);
+		b.op2(INVOKEVIRTUAL, cf.methodRef(VM, "heapArray", "()[I"));
+		b.local(ASTORE, heap);
+	}
+
+	private void helper(Bytecode b, String name, String desc) {
+		b.op2(INVOKESTATIC, cf.methodRef(VM, name, desc));
+	}
+
+	private void constant(Bytecode b, int val) {
+		if (val >= -1 && val <= 5) {
+			b.op(ICONST_0 + val);
+		} else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+			b.op1(BIPUSH, val);
+		} else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+			b.op2(SIPUSH, val);
+		} else {
+			b.op2(LDC_W, cf.integer(val));
+		}
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+}
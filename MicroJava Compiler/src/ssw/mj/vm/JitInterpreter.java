@@ -0,0 +1,216 @@
+package ssw.mj.vm;
+
+import java.lang.invoke.MethodHandle;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Executes MicroJava programs as JVM code generated by the
+ * {@link JitCompiler}. The static methods of this class are the runtime
+ * support called from the generated code; they perform the same checks and
+ * report the same errors as the standard interpreter.
+ *
+ * The method stack is not materialized, only its size is tracked to report
+ * "method stack overflow" at the same depth. Similarly, every method knows
+ * where its part of the expression stack would start and checks for
+ * "expression stack overflow" where the standard interpreter would. If the
+ * program cannot be compiled, runs are observed or the heap is off the Java
+ * heap, the standard interpreter is used.
+ */
+public class JitInterpreter extends Interpreter {
+
+	private final MethodHandle main; // compiled main(), null if not compiled
+
+	static final int EXPR_STACK_SIZE = eStackSize;
+
+	/** Words that the interpreter would use on the method stack. */
+	private int frameWords;
+
+	/** Expression stack base of the method being called. */
+	private int stackBase;
+
+	public JitInterpreter(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug) {
+		super(code, startPC, dataSize, io, debug);
+		MethodHandle mh = null;
+		if (!debug) {
+			try {
+				mh = JitCompiler.compile(this, code, startPC);
+			} catch (IllegalArgumentException e) {
+				// not compilable, fall back to interpretation
+			}
+		}
+		main = mh;
+	}
+
+	/** Returns true if the program is executed as compiled code. */
+	public boolean isCompiled() {
+		return main != null;
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		if (main == null || isObserved() || isOffHeap()) {
+			super.run();
+			return;
+		}
+		frameWords = -1; // main has no return address
+		stackBase = 0;
+		beginRun();
+		try {
+			main.invokeExact();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		} finally {
+			endRun();
+		}
+	}
+
+	// ----- runtime support for compiled code
+
+	int[] heapArray() {
+		return heap;
+	}
+
+	int[] dataArray() {
+		return data;
+	}
+
+	int stackBase() {
+		return stackBase;
+	}
+
+	/** Called before every call, which is a safepoint. */
+	static void setStackBase(int base, JitInterpreter vm) {
+		vm.stackBase = base;
+		vm.safepoint();
+	}
+
+	/** Called at every taken backward jump. */
+	static void backEdge(JitInterpreter vm) {
+		vm.safepoint();
+	}
+
+	static IllegalStateException stackOverflow() {
+		return new IllegalStateException("expression stack overflow");
+	}
+
+	static void enter(int words, JitInterpreter vm) {
+		vm.frameWords += words;
+		if (vm.frameWords > mStackSize) {
+			throw new IllegalStateException("method stack overflow");
+		}
+	}
+
+	static void exit(int words, JitInterpreter vm) {
+		vm.frameWords -= words;
+	}
+
+	static int getfield(int adr, int off, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		return heap[adr + off];
+	}
+
+	static void putfield(int adr, int val, int off, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		heap[adr + off] = val;
+	}
+
+	static int aload(int adr, int idx, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		if (idx < 0 || idx >= heap[adr - 1]) {
+			throw new IllegalStateException("index out of bounds");
+		}
+		return heap[adr + idx];
+	}
+
+	static void astore(int adr, int idx, int val, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		if (idx < 0 || idx >= heap[adr - 1]) {
+			throw new IllegalStateException("index out of bounds");
+		}
+		heap[adr + idx] = val;
+	}
+
+	static int baload(int adr, int idx, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		if (idx < 0 || idx >= heap[adr - 1]) {
+			throw new IllegalStateException("index out of bounds");
+		}
+		return getByte(heap[adr + idx / 4], idx % 4);
+	}
+
+	static void bastore(int adr, int idx, int val, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		if (idx < 0 || idx >= heap[adr - 1]) {
+			throw new IllegalStateException("index out of bounds");
+		}
+		heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
+				(byte) val);
+	}
+
+	static int arraylength(int adr, int[] heap) {
+		if (adr == 0) {
+			throw new IllegalStateException("null reference used");
+		}
+		return heap[adr - 1];
+	}
+
+	static int div(int x, int y) {
+		if (y == 0) {
+			throw new IllegalStateException("division by zero");
+		}
+		return x / y;
+	}
+
+	static int rem(int x, int y) {
+		if (y == 0) {
+			throw new IllegalStateException("division by zero");
+		}
+		return x % y;
+	}
+
+	static int newObject(int nFields, JitInterpreter vm) {
+		return vm.newObject(nFields);
+	}
+
+	static int newArray(int len, int elemSize, JitInterpreter vm) {
+		return vm.newArray(len, elemSize);
+	}
+
+	static int read(JitInterpreter vm) {
+		return vm.readInt();
+	}
+
+	static int bread(JitInterpreter vm) {
+		return vm.io.read();
+	}
+
+	static void print(int val, int width, JitInterpreter vm) {
+		vm.printInt(val, width);
+	}
+
+	static void bprint(int val, int width, JitInterpreter vm) {
+		vm.printChar(val, width);
+	}
+
+	static IllegalStateException trap(int n) {
+		return new IllegalStateException("trap(" + n + ")");
+	}
+}
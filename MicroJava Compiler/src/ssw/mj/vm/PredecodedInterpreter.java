@@ -0,0 +1,720 @@
+package ssw.mj.vm;
+
+import static ssw.mj.vm.Predecoder.*;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Interpreter that decodes the byte code once at load time (see
+ * {@link Predecoder}) and executes the resulting <code>int[]</code>
+ * instruction stream. Operands are read from the stream directly and jumps go
+ * to precomputed indices, so no instruction is decoded more than once.
+ *
+ * Debug output and a heap off the Java heap are only supported by the
+ * standard interpreter, which is used instead if one of them is on.
+ */
+public class PredecodedInterpreter extends Interpreter {
+
+	final Predecoder decoder;
+	int[] prog; // decoded instruction stream
+
+	public PredecodedInterpreter(byte[] code, int startPC, int dataSize,
+			IO io, boolean debug) {
+		this(code, startPC, dataSize, io, debug, true);
+	}
+
+	/**
+	 * Creates an interpreter that decodes the whole program if eager is set
+	 * and no code at all otherwise.
+	 */
+	PredecodedInterpreter(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug, boolean eager) {
+		super(code, startPC, dataSize, io, debug);
+		decoder = new Predecoder(code, startPC);
+		if (eager) {
+			decoder.decode(startPC, true);
+		}
+		prog = decoder.program();
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		if (isObserved() || isOffHeap()) {
+			super.run();
+			return;
+		}
+		pc = startPC;
+		beginRun();
+		try {
+			execute();
+		} finally {
+			endRun();
+		}
+	}
+
+	/**
+	 * Returns the stream index of the method at entry when it is called from
+	 * decoded code, or -1 to continue in the standard interpreter. Methods are
+	 * decoded on their first call by default.
+	 */
+	int resolveCall(int entry) {
+		int idx = decoder.decode(entry, true);
+		prog = decoder.program();
+		return idx;
+	}
+
+	/**
+	 * Executes the decoded code starting at pc with the current stack state.
+	 * Returns true when main() returns and false when control reaches code
+	 * that is not decoded; pc and the stack state are then up to date.
+	 */
+	final boolean execute() throws IllegalStateException {
+		int[] prog = this.prog;
+		final int[] pcToIndex = decoder.pcToIndex;
+		final int[] stack = this.stack;
+		int[] local = this.local; // replaced when the stack grows
+		final int[] data = this.data;
+		int[] heap = this.heap; // replaced when the heap grows
+		int ip = pcToIndex[pc];
+		int esp = this.esp, sp = this.sp, fp = this.fp;
+		if (ip < 0) {
+			return false;
+		}
+		int adr, val, idx, len, i;
+
+		for (;;) {
+			switch (prog[ip]) {
+
+			// load/store local variables
+			case LOAD:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = local[fp + prog[ip + 1]];
+				ip += 2;
+				break;
+			case STORE:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				local[fp + prog[ip + 1]] = stack[--esp];
+				ip += 2;
+				break;
+
+			// load/store global variables
+			case GETSTATIC:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = data[prog[ip + 1]];
+				ip += 2;
+				break;
+			case PUTSTATIC:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				data[prog[ip + 1]] = stack[--esp];
+				ip += 2;
+				break;
+
+			// load/store object fields
+			case GETFIELD:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				adr = stack[esp - 1];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				stack[esp - 1] = heap[adr + prog[ip + 1]];
+				ip += 2;
+				break;
+			case PUTFIELD:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				val = stack[--esp];
+				adr = stack[--esp];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				heap[adr + prog[ip + 1]] = val;
+				ip += 2;
+				break;
+
+			// load constants
+			case CONST:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = prog[ip + 1];
+				ip += 2;
+				break;
+
+			// arithmetic operations
+			case ADD:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp--;
+				stack[esp - 1] += stack[esp];
+				ip++;
+				break;
+			case SUB:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp--;
+				stack[esp - 1] -= stack[esp];
+				ip++;
+				break;
+			case MUL:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp--;
+				stack[esp - 1] *= stack[esp];
+				ip++;
+				break;
+			case DIV:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				val = stack[--esp];
+				if (val == 0) {
+					throw new IllegalStateException("division by zero");
+				}
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				stack[esp - 1] /= val;
+				ip++;
+				break;
+			case REM:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				val = stack[--esp];
+				if (val == 0) {
+					throw new IllegalStateException("division by zero");
+				}
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				stack[esp - 1] %= val;
+				ip++;
+				break;
+			case NEG:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				stack[esp - 1] = -stack[esp - 1];
+				ip++;
+				break;
+			case SHL:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp--;
+				stack[esp - 1] <<= stack[esp];
+				ip++;
+				break;
+			case SHR:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp--;
+				stack[esp - 1] >>= stack[esp];
+				ip++;
+				break;
+			case INC:
+				local[fp + prog[ip + 1]] += prog[ip + 2];
+				ip += 3;
+				break;
+
+			// object creation
+			case NEW:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = newObject(prog[ip + 1]);
+				heap = this.heap;
+				ip += 2;
+				break;
+			case NEWARRAY:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				stack[esp - 1] = newArray(stack[esp - 1], prog[ip + 1]);
+				heap = this.heap;
+				ip += 2;
+				break;
+
+			// array access
+			case ALOAD:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				idx = stack[--esp];
+				adr = stack[esp - 1];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				stack[esp - 1] = heap[adr + idx];
+				ip++;
+				break;
+			case ASTORE:
+				if (esp < 3) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				val = stack[--esp];
+				idx = stack[--esp];
+				adr = stack[--esp];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				heap[adr + idx] = val;
+				ip++;
+				break;
+			case BALOAD:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				idx = stack[--esp];
+				adr = stack[esp - 1];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				stack[esp - 1] = getByte(heap[adr + idx / 4], idx % 4);
+				ip++;
+				break;
+			case BASTORE:
+				if (esp < 3) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				val = stack[--esp];
+				idx = stack[--esp];
+				adr = stack[--esp];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
+						(byte) val);
+				ip++;
+				break;
+			case ARRAYLENGTH:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				adr = stack[esp - 1];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				stack[esp - 1] = heap[adr - 1];
+				ip++;
+				break;
+
+			// stack manipulation
+			case POP:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp--;
+				ip++;
+				break;
+			case DUP:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp] = stack[esp - 1];
+				esp++;
+				ip++;
+				break;
+			case DUP2:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp] = stack[esp - 2];
+				stack[esp + 1] = stack[esp - 1];
+				esp += 2;
+				ip++;
+				break;
+
+			// jumps
+			case JMP:
+				ip = jump(ip, prog[ip + 1]);
+				break;
+			case JEQ:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				ip = stack[esp] == stack[esp + 1]
+						? jump(ip, prog[ip + 1]) : ip + 2;
+				break;
+			case JNE:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				ip = stack[esp] != stack[esp + 1]
+						? jump(ip, prog[ip + 1]) : ip + 2;
+				break;
+			case JLT:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				ip = stack[esp] < stack[esp + 1]
+						? jump(ip, prog[ip + 1]) : ip + 2;
+				break;
+			case JLE:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				ip = stack[esp] <= stack[esp + 1]
+						? jump(ip, prog[ip + 1]) : ip + 2;
+				break;
+			case JGT:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				ip = stack[esp] > stack[esp + 1]
+						? jump(ip, prog[ip + 1]) : ip + 2;
+				break;
+			case JGE:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				ip = stack[esp] >= stack[esp + 1]
+						? jump(ip, prog[ip + 1]) : ip + 2;
+				break;
+
+			// method calls
+			case CALL:
+				safepoint();
+				if (sp == mStackSize) {
+					throw new IllegalStateException("method stack overflow");
+				}
+				if (sp == local.length) {
+					local = growLocal(sp + 1);
+				}
+				local[sp++] = prog[ip + 3];
+				if (prog[ip + 1] < 0) {
+					idx = resolveCall(prog[ip + 2]);
+					prog = this.prog; // may have grown
+					if (idx < 0) {
+						pc = prog[ip + 2];
+						this.esp = esp;
+						this.sp = sp;
+						this.fp = fp;
+						return false;
+					}
+					prog[ip + 1] = idx;
+				}
+				ip = prog[ip + 1];
+				break;
+			case RETURN:
+				if (sp == 0) {
+					return true;
+				}
+				pc = local[--sp];
+				ip = pcToIndex[pc];
+				if (ip < 0) {
+					this.esp = esp;
+					this.sp = sp;
+					this.fp = fp;
+					return false;
+				}
+				break;
+			case ENTER:
+				if (sp == mStackSize) {
+					throw new IllegalStateException("method stack overflow");
+				}
+				if (sp + 1 + prog[ip + 2] > local.length) {
+					local = growLocal(sp + 1 + prog[ip + 2]);
+				}
+				local[sp++] = fp;
+				fp = sp;
+				len = prog[ip + 2];
+				if (len > mStackSize - sp) {
+					throw new IllegalStateException("method stack overflow");
+				}
+				for (i = 0; i < len; i++) {
+					local[sp++] = 0;
+				}
+				for (i = prog[ip + 1] - 1; i >= 0; i--) {
+					if (esp == 0) {
+						throw new IllegalStateException(
+								"expression stack underflow");
+					}
+					local[fp + i] = stack[--esp];
+				}
+				ip += 3;
+				break;
+			case EXIT:
+				sp = fp;
+				if (sp == 0) {
+					throw new IllegalStateException("method stack underflow");
+				}
+				fp = local[--sp];
+				ip++;
+				break;
+
+			// I/O
+			case READ:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = readInt();
+				ip++;
+				break;
+			case PRINT:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				printInt(stack[esp], stack[esp + 1]);
+				ip++;
+				break;
+			case BREAD:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = io.read();
+				ip++;
+				break;
+			case BPRINT:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				esp -= 2;
+				printChar(stack[esp], stack[esp + 1]);
+				ip++;
+				break;
+
+			// superinstructions
+			case LOAD2:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = local[fp + prog[ip + 1]];
+				stack[esp++] = local[fp + prog[ip + 2]];
+				ip += 3;
+				break;
+			case LOAD2_ADD:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = local[fp + prog[ip + 1]]
+						+ local[fp + prog[ip + 2]];
+				ip += 3;
+				break;
+			case LOAD2_SUB:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = local[fp + prog[ip + 1]]
+						- local[fp + prog[ip + 2]];
+				ip += 3;
+				break;
+			case LOAD_CONST_JCC:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				ip = test(prog[ip + 3], local[fp + prog[ip + 1]], prog[ip + 2])
+						? jump(ip, prog[ip + 4]) : ip + 5;
+				break;
+			case LOAD2_JCC:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				ip = test(prog[ip + 3], local[fp + prog[ip + 1]],
+						local[fp + prog[ip + 2]]) ? jump(ip, prog[ip + 4])
+								: ip + 5;
+				break;
+			case LOAD_GETFIELD:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				adr = local[fp + prog[ip + 1]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				stack[esp++] = heap[adr + prog[ip + 2]];
+				ip += 3;
+				break;
+			case INC_STATIC:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				data[prog[ip + 1]] += prog[ip + 2];
+				ip += 3;
+				break;
+			case INC_FIELD:
+				if (esp == 0) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				adr = stack[--esp];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (esp + 3 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				heap[adr + prog[ip + 1]] += prog[ip + 2];
+				ip += 3;
+				break;
+			case INC_ELEM:
+				if (esp < 2) {
+					throw new IllegalStateException(
+							"expression stack underflow");
+				}
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				idx = stack[--esp];
+				adr = stack[--esp];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				heap[adr + idx] += prog[ip + 1];
+				ip += 2;
+				break;
+
+			// accesses that cannot fail
+			case ALOAD_U:
+				idx = stack[--esp];
+				stack[esp - 1] = heap[stack[esp - 1] + idx];
+				ip++;
+				break;
+			case ASTORE_U:
+				val = stack[--esp];
+				idx = stack[--esp];
+				heap[stack[--esp] + idx] = val;
+				ip++;
+				break;
+			case BALOAD_U:
+				idx = stack[--esp];
+				stack[esp - 1] = getByte(heap[stack[esp - 1] + idx / 4], idx % 4);
+				ip++;
+				break;
+			case BASTORE_U:
+				val = stack[--esp];
+				idx = stack[--esp];
+				adr = stack[--esp];
+				heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
+						(byte) val);
+				ip++;
+				break;
+			case GETFIELD_U:
+				stack[esp - 1] = heap[stack[esp - 1] + prog[ip + 1]];
+				ip += 2;
+				break;
+			case LOAD_GETFIELD_U:
+				if (esp == eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				stack[esp++] = heap[local[fp + prog[ip + 1]] + prog[ip + 2]];
+				ip += 3;
+				break;
+			case INC_ELEM_U:
+				if (esp + 2 > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				idx = stack[--esp];
+				heap[stack[--esp] + idx] += prog[ip + 1];
+				ip += 2;
+				break;
+
+			case TRAP:
+				throw new IllegalStateException("trap(" + prog[ip + 1] + ")");
+			case WRONG:
+				if (prog[ip + 1] < 0) {
+					throw new IllegalStateException("pc out of code area");
+				}
+				throw new IllegalStateException("wrong opcode " + prog[ip + 1]);
+			default:
+				throw new IllegalStateException(
+						"wrong internal opcode " + prog[ip]);
+			}
+		}
+	}
+
+	/** Evaluates the condition of a fused conditional jump. */
+	static boolean test(int cond, int x, int y) {
+		switch (cond) {
+		case EQ:
+			return x == y;
+		case NE:
+			return x != y;
+		case LT:
+			return x < y;
+		case LE:
+			return x <= y;
+		case GT:
+			return x > y;
+		default:
+			return x >= y;
+		}
+	}
+}
@@ -0,0 +1,597 @@
+package ssw.mj.vm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Translates MicroJava byte code into a compact <code>int[]</code>
+ * instruction stream for the {@link PredecodedInterpreter}.
+ *
+ * Every instruction is stored as its internal opcode followed by its fully
+ * decoded operands. Short forms (load_0, const_3, ...) are folded into their
+ * general form and jump and call targets are resolved to absolute indices in
+ * the stream. Only code reachable from the decoded entry points is translated,
+ * <code>nop</code>s are dropped.
+ *
+ * Code can be decoded incrementally. Calls to methods that are not decoded yet
+ * have the target index -1 and are resolved by the interpreter at run time.
+ * Calls also keep the pc of their target and of their return address, because
+ * return addresses on the method stack are always byte code addresses.
+ *
+ * Array and field accesses that the {@link CheckElimination} proves safe
+ * are translated into variants without null, index and stack checks.
+ */
+final class Predecoder {
+
+	// ----- internal opcodes (operands in brackets)
+	static final int LOAD = 0, // [n]
+			STORE = 1, // [n]
+			GETSTATIC = 2, // [adr]
+			PUTSTATIC = 3, // [adr]
+			GETFIELD = 4, // [off]
+			PUTFIELD = 5, // [off]
+			CONST = 6, // [val]
+			ADD = 7, //
+			SUB = 8, //
+			MUL = 9, //
+			DIV = 10, //
+			REM = 11, //
+			NEG = 12, //
+			SHL = 13, //
+			SHR = 14, //
+			INC = 15, // [n, val]
+			NEW = 16, // [nFields]
+			NEWARRAY = 17, // [elemSize]
+			ALOAD = 18, //
+			ASTORE = 19, //
+			BALOAD = 20, //
+			BASTORE = 21, //
+			ARRAYLENGTH = 22, //
+			POP = 23, //
+			DUP = 24, //
+			DUP2 = 25, //
+			JMP = 26, // [target]
+			JEQ = 27, // [target]
+			JNE = 28, // [target]
+			JLT = 29, // [target]
+			JLE = 30, // [target]
+			JGT = 31, // [target]
+			JGE = 32, // [target]
+			CALL = 33, // [target, target pc, return pc]
+			RETURN = 34, //
+			ENTER = 35, // [psize, lsize]
+			EXIT = 36, //
+			READ = 37, //
+			PRINT = 38, //
+			BREAD = 39, //
+			BPRINT = 40, //
+			TRAP = 41, // [n]
+			WRONG = 42, // [opcode or -1 if pc left the code area]
+
+			// superinstructions for frequent sequences
+			LOAD2 = 43, // [n, m] load n; load m
+			LOAD2_ADD = 44, // [n, m] load n; load m; add
+			LOAD2_SUB = 45, // [n, m] load n; load m; sub
+			LOAD_CONST_JCC = 46, // [n, val, cond, target] load n; const val; jcc
+			LOAD2_JCC = 47, // [n, m, cond, target] load n; load m; jcc
+			LOAD_GETFIELD = 48, // [n, off] load n; getfield off
+			INC_STATIC = 49, // [adr, val] getstatic; const; add; putstatic
+			INC_FIELD = 50, // [off, val] dup; getfield; const; add; putfield
+			INC_ELEM = 51, // [val] dup2; aload; const; add; astore
+
+			// accesses proven safe by CheckElimination, without checks
+			ALOAD_U = 52, //
+			ASTORE_U = 53, //
+			BALOAD_U = 54, //
+			BASTORE_U = 55, //
+			GETFIELD_U = 56, // [off]
+			LOAD_GETFIELD_U = 57, // [n, off]
+			INC_ELEM_U = 58; // [val]
+
+	/** Conditions of LOAD_CONST_JCC and LOAD2_JCC in the order of OpCode. */
+	static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+	private final byte[] code;
+
+	/** Index of the decoded instruction for every pc, -1 if not decoded. */
+	final int[] pcToIndex;
+
+	private int[] prog = new int[64];
+	private int len;
+
+	/** Pairs of (operand index, target pc) that still have to be resolved. */
+	private int[] fixups = new int[32];
+	private int nFixups;
+
+	private final Deque<Integer> todo = new ArrayDeque<Integer>();
+	private boolean followCalls;
+
+	/**
+	 * Targets of jumps found by a linear sweep over the code. Instructions at
+	 * these pcs are not fused into a preceding superinstruction.
+	 */
+	private final boolean[] jumpTarget;
+
+	/** Accesses that cannot fail, see {@link CheckElimination}. */
+	private final boolean[] safe;
+
+	// window of normalized instructions considered for fusion
+	private static final int WINDOW = 6;
+	private final int[] wOp = new int[WINDOW], wArg = new int[WINDOW],
+			wPc = new int[WINDOW + 1];
+
+	Predecoder(byte[] code, int startPC) {
+		this.code = code;
+		safe = CheckElimination.analyze(code, startPC);
+		pcToIndex = new int[code.length];
+		Arrays.fill(pcToIndex, -1);
+		jumpTarget = new boolean[code.length];
+		int pc = 0;
+		while (pc < code.length) {
+			OpCode op = OpCode.get(code[pc]);
+			if (op == null || pc + op.getOpsSize() >= code.length) {
+				break;
+			}
+			if (op.ordinal() >= OpCode.jmp.ordinal()
+					&& op.ordinal() <= OpCode.jge.ordinal()) {
+				int target = pc + get2(pc + 1);
+				if (target >= 0 && target < code.length) {
+					jumpTarget[target] = true;
+				}
+			}
+			pc += 1 + op.getOpsSize();
+		}
+	}
+
+	/**
+	 * Decodes everything that is reachable from pc and returns the stream
+	 * index of pc. Called methods are decoded as well if followCalls is set.
+	 */
+	int decode(int pc, boolean followCalls) {
+		this.followCalls = followCalls;
+		todo.add(pc);
+		while (!todo.isEmpty()) {
+			int start = todo.poll();
+			if (pcToIndex[start] < 0) {
+				decodeRun(start);
+			}
+		}
+		for (int i = 0; i < nFixups; i += 2) {
+			prog[fixups[i]] = indexOf(fixups[i + 1]);
+		}
+		nFixups = 0;
+		return pcToIndex[pc];
+	}
+
+	/**
+	 * Decoded instruction stream. The array is replaced when it grows, so it
+	 * must be fetched again after decoding.
+	 */
+	int[] program() {
+		return prog;
+	}
+
+	private int indexOf(int pc) {
+		if (pc < 0 || pc >= code.length) {
+			// shared stub that reports the illegal jump when it is executed
+			int idx = len;
+			emit(WRONG);
+			emit(-1);
+			return idx;
+		}
+		return pcToIndex[pc];
+	}
+
+	/** Decodes a straight-line run of instructions starting at pc. */
+	private void decodeRun(int pc) {
+		for (;;) {
+			if (pc < 0 || pc >= code.length) {
+				emit(WRONG);
+				emit(-1);
+				return;
+			}
+			if (pcToIndex[pc] >= 0) {
+				// continue with already decoded code
+				emit(JMP);
+				emit(pcToIndex[pc]);
+				return;
+			}
+			pcToIndex[pc] = len;
+			int fused = fuse(pc);
+			if (fused >= 0) {
+				pc = fused;
+				continue;
+			}
+			OpCode op = OpCode.get(code[pc]);
+			if (op == null) {
+				emit(WRONG);
+				emit(code[pc]);
+				return;
+			}
+			int next = pc + 1 + op.getOpsSize();
+			if (next > code.length) {
+				emit(WRONG);
+				emit(-1);
+				return;
+			}
+			switch (op) {
+			case load:
+				emit(LOAD, code[pc + 1]);
+				break;
+			case load_0:
+			case load_1:
+			case load_2:
+			case load_3:
+				emit(LOAD, op.code() - OpCode.load_0.code());
+				break;
+			case store:
+				emit(STORE, code[pc + 1]);
+				break;
+			case store_0:
+			case store_1:
+			case store_2:
+			case store_3:
+				emit(STORE, op.code() - OpCode.store_0.code());
+				break;
+			case getstatic:
+				emit(GETSTATIC, get2(pc + 1));
+				break;
+			case putstatic:
+				emit(PUTSTATIC, get2(pc + 1));
+				break;
+			case getfield:
+				emit(safe[pc] ? GETFIELD_U : GETFIELD, get2(pc + 1));
+				break;
+			case putfield:
+				emit(PUTFIELD, get2(pc + 1));
+				break;
+			case const_0:
+			case const_1:
+			case const_2:
+			case const_3:
+			case const_4:
+			case const_5:
+				emit(CONST, op.code() - OpCode.const_0.code());
+				break;
+			case const_m1:
+				emit(CONST, -1);
+				break;
+			case const_:
+				emit(CONST, (get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+				break;
+			case add:
+				emit(ADD);
+				break;
+			case sub:
+				emit(SUB);
+				break;
+			case mul:
+				emit(MUL);
+				break;
+			case div:
+				emit(DIV);
+				break;
+			case rem:
+				emit(REM);
+				break;
+			case neg:
+				emit(NEG);
+				break;
+			case shl:
+				emit(SHL);
+				break;
+			case shr:
+				emit(SHR);
+				break;
+			case inc:
+				emit(INC, code[pc + 1]);
+				emit(code[pc + 2]);
+				break;
+			case new_:
+				emit(NEW, get2(pc + 1));
+				break;
+			case newarray:
+				emit(NEWARRAY, code[pc + 1]);
+				break;
+			case aload:
+				emit(safe[pc] ? ALOAD_U : ALOAD);
+				break;
+			case astore:
+				emit(safe[pc] ? ASTORE_U : ASTORE);
+				break;
+			case baload:
+				emit(safe[pc] ? BALOAD_U : BALOAD);
+				break;
+			case bastore:
+				emit(safe[pc] ? BASTORE_U : BASTORE);
+				break;
+			case arraylength:
+				emit(ARRAYLENGTH);
+				break;
+			case pop:
+				emit(POP);
+				break;
+			case dup:
+				emit(DUP);
+				break;
+			case dup2:
+				emit(DUP2);
+				break;
+			case jmp:
+				emitJump(JMP, pc);
+				return;
+			case jeq:
+			case jne:
+			case jlt:
+			case jle:
+			case jgt:
+			case jge:
+				emitJump(JEQ + op.code() - OpCode.jeq.code(), pc);
+				break;
+			case call:
+				emitCall(pc, next);
+				break;
+			case return_:
+				emit(RETURN);
+				return;
+			case enter:
+				emit(ENTER, code[pc + 1]);
+				emit(code[pc + 2]);
+				break;
+			case exit:
+				emit(EXIT);
+				break;
+			case read:
+				emit(READ);
+				break;
+			case print:
+				emit(PRINT);
+				break;
+			case bread:
+				emit(BREAD);
+				break;
+			case bprint:
+				emit(BPRINT);
+				break;
+			case trap:
+				emit(TRAP, code[pc + 1]);
+				return;
+			case nop:
+				// dropped, pc maps to the next instruction
+				break;
+			}
+			pc = next;
+		}
+	}
+
+	// ----- superinstructions
+
+	/**
+	 * Emits a superinstruction if a fusable sequence starts at pc and returns
+	 * the pc after the sequence, otherwise returns -1.
+	 */
+	private int fuse(int pc) {
+		int n = window(pc);
+		if (n < 2) {
+			return -1;
+		}
+		int jcc = n > 2 ? wOp[2] - JEQ : -1;
+		if (wOp[0] == LOAD && wOp[1] == LOAD) {
+			if (n > 2 && wOp[2] == ADD) {
+				emit(LOAD2_ADD, wArg[0]);
+				emit(wArg[1]);
+				return wPc[3];
+			}
+			if (n > 2 && wOp[2] == SUB) {
+				emit(LOAD2_SUB, wArg[0]);
+				emit(wArg[1]);
+				return wPc[3];
+			}
+			if (jcc >= EQ && jcc <= GE) {
+				emit(LOAD2_JCC, wArg[0]);
+				emitCondJump(wArg[1], jcc, wArg[2]);
+				return wPc[3];
+			}
+			emit(LOAD2, wArg[0]);
+			emit(wArg[1]);
+			return wPc[2];
+		}
+		if (wOp[0] == LOAD && wOp[1] == CONST && jcc >= EQ && jcc <= GE) {
+			emit(LOAD_CONST_JCC, wArg[0]);
+			emitCondJump(wArg[1], jcc, wArg[2]);
+			return wPc[3];
+		}
+		if (wOp[0] == LOAD && wOp[1] == GETFIELD) {
+			emit(safe[wPc[1]] ? LOAD_GETFIELD_U : LOAD_GETFIELD, wArg[0]);
+			emit(wArg[1]);
+			return wPc[2];
+		}
+		if (n >= 4 && wOp[0] == GETSTATIC && wOp[1] == CONST
+				&& wOp[2] == ADD && wOp[3] == PUTSTATIC
+				&& wArg[0] == wArg[3]) {
+			emit(INC_STATIC, wArg[0]);
+			emit(wArg[1]);
+			return wPc[4];
+		}
+		if (n >= 5 && wOp[0] == DUP2 && wOp[1] == ALOAD && wOp[2] == CONST
+				&& wOp[3] == ADD && wOp[4] == ASTORE) {
+			emit(safe[wPc[1]] && safe[wPc[4]] ? INC_ELEM_U : INC_ELEM,
+					wArg[2]);
+			return wPc[5];
+		}
+		if (n >= 5 && wOp[0] == DUP && wOp[1] == GETFIELD
+				&& wOp[2] == CONST && wOp[3] == ADD && wOp[4] == PUTFIELD
+				&& wArg[1] == wArg[4]) {
+			emit(INC_FIELD, wArg[1]);
+			emit(wArg[2]);
+			return wPc[5];
+		}
+		return -1;
+	}
+
+	/** Operands of a fused conditional jump. */
+	private void emitCondJump(int operand, int cond, int target) {
+		emit(operand);
+		emit(cond);
+		emit(0);
+		fixup(target);
+		if (target >= 0 && target < code.length) {
+			todo.add(target);
+		}
+	}
+
+	/**
+	 * Fills the window with the normalized instructions starting at pc and
+	 * returns their number. The window ends before jump targets, decoded
+	 * code and instructions that are never part of a superinstruction.
+	 */
+	private int window(int pc) {
+		int n = 0;
+		wPc[0] = pc;
+		while (n < WINDOW) {
+			if (pc >= code.length
+					|| n > 0 && (jumpTarget[pc] || pcToIndex[pc] >= 0)) {
+				break;
+			}
+			OpCode op = OpCode.get(code[pc]);
+			if (op == null || pc + op.getOpsSize() >= code.length) {
+				break;
+			}
+			int arg = 0;
+			switch (op) {
+			case load:
+				wOp[n] = LOAD;
+				arg = code[pc + 1];
+				break;
+			case load_0:
+			case load_1:
+			case load_2:
+			case load_3:
+				wOp[n] = LOAD;
+				arg = op.code() - OpCode.load_0.code();
+				break;
+			case const_0:
+			case const_1:
+			case const_2:
+			case const_3:
+			case const_4:
+			case const_5:
+				wOp[n] = CONST;
+				arg = op.code() - OpCode.const_0.code();
+				break;
+			case const_m1:
+				wOp[n] = CONST;
+				arg = -1;
+				break;
+			case const_:
+				wOp[n] = CONST;
+				arg = (get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff);
+				break;
+			case getstatic:
+				wOp[n] = GETSTATIC;
+				arg = get2(pc + 1);
+				break;
+			case putstatic:
+				wOp[n] = PUTSTATIC;
+				arg = get2(pc + 1);
+				break;
+			case getfield:
+				wOp[n] = GETFIELD;
+				arg = get2(pc + 1);
+				break;
+			case putfield:
+				wOp[n] = PUTFIELD;
+				arg = get2(pc + 1);
+				break;
+			case add:
+				wOp[n] = ADD;
+				break;
+			case sub:
+				wOp[n] = SUB;
+				break;
+			case dup:
+				wOp[n] = DUP;
+				break;
+			case dup2:
+				wOp[n] = DUP2;
+				break;
+			case aload:
+				wOp[n] = ALOAD;
+				break;
+			case astore:
+				wOp[n] = ASTORE;
+				break;
+			case jeq:
+			case jne:
+			case jlt:
+			case jle:
+			case jgt:
+			case jge:
+				wOp[n] = JEQ + op.code() - OpCode.jeq.code();
+				arg = pc + get2(pc + 1);
+				break;
+			default:
+				return n;
+			}
+			wArg[n] = arg;
+			pc += 1 + op.getOpsSize();
+			n++;
+			wPc[n] = pc;
+			if (wOp[n - 1] >= JEQ && wOp[n - 1] <= JGE) {
+				break; // a jump ends every sequence
+			}
+		}
+		return n;
+	}
+
+	private void emitJump(int op, int pc) {
+		int target = pc + get2(pc + 1);
+		emit(op, 0);
+		fixup(target);
+		if (target >= 0 && target < code.length) {
+			todo.add(target);
+		}
+	}
+
+	private void emitCall(int pc, int next) {
+		int target = pc + get2(pc + 1);
+		emit(CALL, -1);
+		boolean valid = target >= 0 && target < code.length;
+		if (!valid || followCalls || pcToIndex[target] >= 0) {
+			fixup(target);
+		}
+		if (valid && followCalls) {
+			todo.add(target);
+		}
+		emit(target);
+		emit(next);
+	}
+
+	/** Resolves the last emitted operand to the index of target later. */
+	private void fixup(int target) {
+		if (nFixups == fixups.length) {
+			fixups = Arrays.copyOf(fixups, fixups.length * 2);
+		}
+		fixups[nFixups++] = len - 1;
+		fixups[nFixups++] = target;
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+
+	private void emit(int op, int operand) {
+		emit(op);
+		emit(operand);
+	}
+
+	private void emit(int x) {
+		if (len == prog.length) {
+			prog = Arrays.copyOf(prog, prog.length * 2);
+		}
+		prog[len++] = x;
+	}
+}
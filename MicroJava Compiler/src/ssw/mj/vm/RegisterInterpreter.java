@@ -0,0 +1,397 @@
+package ssw.mj.vm;
+
+import static ssw.mj.vm.RegisterTranslator.*;
+
+import java.util.Arrays;
+
+import ssw.mj.Interpreter;
+
+/**
+ * Executes the register code produced by the {@link RegisterTranslator}.
+ * Registers live in the frames on <code>local[]</code>, which has a header
+ * of {@link RegisterTranslator#HEADER} words below every frame (return
+ * index, caller fp, caller stack base and result register). Because frames
+ * also hold the expression stack slots, <code>local[]</code> grows when
+ * needed; the size that the standard interpreter would use is tracked
+ * separately so that "method stack overflow" is reported at the same depth.
+ *
+ * The expression stack of a method starts at its stack base (sb), which is
+ * where the standard interpreter would find it on the shared expression
+ * stack, so overflows are reported at the same instruction as well. If the
+ * program cannot be translated, runs are observed or the heap is off the
+ * Java heap, the standard interpreter is used.
+ */
+public class RegisterInterpreter extends Interpreter {
+
+	private final int[] prog; // null if not translated
+	private final int byteCodeInstructions;
+
+	public RegisterInterpreter(byte[] code, int startPC, int dataSize,
+			IO io, boolean debug) {
+		super(code, startPC, dataSize, io, debug);
+		int[] p = null;
+		int n = 0;
+		if (!debug) {
+			try {
+				RegisterTranslator translator = new RegisterTranslator(code);
+				p = translator.translate(startPC);
+				n = translator.byteCodeInstructions();
+			} catch (IllegalArgumentException e) {
+				// not translatable, fall back to interpretation
+			}
+		}
+		prog = p;
+		byteCodeInstructions = n;
+	}
+
+	/** Returns true if the program is executed as register code. */
+	public boolean isTranslated() {
+		return prog != null;
+	}
+
+	@Override
+	public String statistics() {
+		if (prog == null) {
+			return null;
+		}
+		return "register code: " + prog.length + " words for "
+				+ byteCodeInstructions + " byte code instructions";
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		if (prog == null || isObserved() || isOffHeap()) {
+			super.run();
+			return;
+		}
+		beginRun();
+		try {
+			execute();
+		} finally {
+			endRun();
+		}
+	}
+
+	/** Executes the register code from main until it returns. */
+	private void execute() throws IllegalStateException {
+		final int[] prog = this.prog;
+		final int[] data = this.data;
+		int[] heap = this.heap; // replaced when the heap grows
+		int[] local = this.local;
+		int ip = 0; // main is translated first
+		int fp = HEADER; // registers of the current method
+		int sb = 0; // expression stack base of the current method
+		int vsp = 0; // sp of the standard interpreter
+		int args = 0; // first argument of the method being called
+		int adr, idx, val, i, n;
+
+		for (;;) {
+			switch (prog[ip]) {
+			case MOVE:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]];
+				ip += 3;
+				break;
+			case CONST:
+				local[fp + prog[ip + 1]] = prog[ip + 2];
+				ip += 3;
+				break;
+			case GETSTATIC:
+				local[fp + prog[ip + 1]] = data[prog[ip + 2]];
+				ip += 3;
+				break;
+			case PUTSTATIC:
+				data[prog[ip + 1]] = local[fp + prog[ip + 2]];
+				ip += 3;
+				break;
+			case GETFIELD:
+				adr = local[fp + prog[ip + 2]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				local[fp + prog[ip + 1]] = heap[adr + prog[ip + 3]];
+				ip += 4;
+				break;
+			case PUTFIELD:
+				adr = local[fp + prog[ip + 1]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				heap[adr + prog[ip + 2]] = local[fp + prog[ip + 3]];
+				ip += 4;
+				break;
+
+			// arithmetic operations
+			case ADD:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]]
+						+ local[fp + prog[ip + 3]];
+				ip += 4;
+				break;
+			case SUB:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]]
+						- local[fp + prog[ip + 3]];
+				ip += 4;
+				break;
+			case MUL:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]]
+						* local[fp + prog[ip + 3]];
+				ip += 4;
+				break;
+			case DIV:
+				val = local[fp + prog[ip + 3]];
+				if (val == 0) {
+					throw new IllegalStateException("division by zero");
+				}
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]] / val;
+				ip += 4;
+				break;
+			case REM:
+				val = local[fp + prog[ip + 3]];
+				if (val == 0) {
+					throw new IllegalStateException("division by zero");
+				}
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]] % val;
+				ip += 4;
+				break;
+			case SHL:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]] << local[fp
+						+ prog[ip + 3]];
+				ip += 4;
+				break;
+			case SHR:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]] >> local[fp
+						+ prog[ip + 3]];
+				ip += 4;
+				break;
+			case ADDI:
+				local[fp + prog[ip + 1]] = local[fp + prog[ip + 2]]
+						+ prog[ip + 3];
+				ip += 4;
+				break;
+			case NEG:
+				local[fp + prog[ip + 1]] = -local[fp + prog[ip + 2]];
+				ip += 3;
+				break;
+			case INC:
+				local[fp + prog[ip + 1]] += prog[ip + 2];
+				ip += 3;
+				break;
+
+			// object creation
+			case NEW:
+				local[fp + prog[ip + 1]] = newObject(prog[ip + 2]);
+				heap = this.heap;
+				ip += 3;
+				break;
+			case NEWARRAY:
+				local[fp + prog[ip + 1]] = newArray(local[fp + prog[ip + 2]],
+						prog[ip + 3]);
+				heap = this.heap;
+				ip += 4;
+				break;
+
+			// array access
+			case ALOAD:
+				adr = local[fp + prog[ip + 2]];
+				idx = local[fp + prog[ip + 3]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				local[fp + prog[ip + 1]] = heap[adr + idx];
+				ip += 4;
+				break;
+			case ASTORE:
+				adr = local[fp + prog[ip + 1]];
+				idx = local[fp + prog[ip + 2]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				heap[adr + idx] = local[fp + prog[ip + 3]];
+				ip += 4;
+				break;
+			case BALOAD:
+				adr = local[fp + prog[ip + 2]];
+				idx = local[fp + prog[ip + 3]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				local[fp + prog[ip + 1]] = getByte(heap[adr + idx / 4],
+						idx % 4);
+				ip += 4;
+				break;
+			case BASTORE:
+				adr = local[fp + prog[ip + 1]];
+				idx = local[fp + prog[ip + 2]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				if (idx < 0 || idx >= heap[adr - 1]) {
+					throw new IllegalStateException("index out of bounds");
+				}
+				heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
+						(byte) local[fp + prog[ip + 3]]);
+				ip += 4;
+				break;
+			case ARRAYLENGTH:
+				adr = local[fp + prog[ip + 2]];
+				if (adr == 0) {
+					throw new IllegalStateException("null reference used");
+				}
+				local[fp + prog[ip + 1]] = heap[adr - 1];
+				ip += 3;
+				break;
+
+			// jumps
+			case JMP:
+				ip = jump(ip, prog[ip + 1]);
+				break;
+			case JEQ:
+				ip = local[fp + prog[ip + 1]] == local[fp + prog[ip + 2]]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JNE:
+				ip = local[fp + prog[ip + 1]] != local[fp + prog[ip + 2]]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JLT:
+				ip = local[fp + prog[ip + 1]] < local[fp + prog[ip + 2]]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JLE:
+				ip = local[fp + prog[ip + 1]] <= local[fp + prog[ip + 2]]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JGT:
+				ip = local[fp + prog[ip + 1]] > local[fp + prog[ip + 2]]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JGE:
+				ip = local[fp + prog[ip + 1]] >= local[fp + prog[ip + 2]]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JEQI:
+				ip = local[fp + prog[ip + 1]] == prog[ip + 2]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JNEI:
+				ip = local[fp + prog[ip + 1]] != prog[ip + 2]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JLTI:
+				ip = local[fp + prog[ip + 1]] < prog[ip + 2]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JLEI:
+				ip = local[fp + prog[ip + 1]] <= prog[ip + 2]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JGTI:
+				ip = local[fp + prog[ip + 1]] > prog[ip + 2]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+			case JGEI:
+				ip = local[fp + prog[ip + 1]] >= prog[ip + 2]
+						? jump(ip, prog[ip + 3]) : ip + 4;
+				break;
+
+			// method calls
+			case CALL:
+				safepoint();
+				if (vsp == mStackSize) {
+					throw new IllegalStateException("method stack overflow");
+				}
+				vsp++; // return address
+				args = fp + prog[ip + 2];
+				i = fp + prog[ip + 4]; // header of the callee
+				local[i] = ip + 5;
+				local[i + 1] = fp;
+				local[i + 2] = sb;
+				local[i + 3] = args;
+				sb += prog[ip + 3];
+				fp = i + HEADER;
+				ip = prog[ip + 1];
+				break;
+			case ENTER:
+				if (vsp == mStackSize) {
+					throw new IllegalStateException("method stack overflow");
+				}
+				vsp++; // caller fp
+				n = prog[ip + 2];
+				if (n > mStackSize - vsp) {
+					throw new IllegalStateException("method stack overflow");
+				}
+				vsp += n;
+				if (fp + prog[ip + 3] + HEADER > local.length) {
+					local = this.local = Arrays.copyOf(local,
+							Math.max(local.length * 2,
+									fp + prog[ip + 3] + HEADER));
+				}
+				for (i = prog[ip + 1] - 1; i >= 0; i--) {
+					local[fp + i] = local[args + i];
+				}
+				for (i = prog[ip + 1]; i < n; i++) {
+					local[fp + i] = 0;
+				}
+				ip = sb + prog[ip + 4] > eStackSize ? prog[ip + 5] : ip + 6;
+				break;
+			case RET:
+			case RETV:
+				if (prog[ip] == RET) {
+					val = local[fp + prog[ip + 1]];
+					n = prog[ip + 2];
+				} else {
+					val = 0;
+					n = prog[ip + 1];
+				}
+				vsp -= n + 1; // locals and fp
+				if (vsp == 0) {
+					return; // end of main()
+				}
+				vsp--; // return address
+				i = fp - HEADER;
+				ip = local[i];
+				fp = local[i + 1];
+				sb = local[i + 2];
+				local[local[i + 3]] = val; // unused if the method is void
+				break;
+
+			// I/O
+			case READ:
+				local[fp + prog[ip + 1]] = readInt();
+				ip += 2;
+				break;
+			case BREAD:
+				local[fp + prog[ip + 1]] = io.read();
+				ip += 2;
+				break;
+			case PRINT:
+				printInt(local[fp + prog[ip + 1]], local[fp + prog[ip + 2]]);
+				ip += 3;
+				break;
+			case BPRINT:
+				printChar(local[fp + prog[ip + 1]], local[fp + prog[ip + 2]]);
+				ip += 3;
+				break;
+			case TRAP:
+				throw new IllegalStateException("trap(" + prog[ip + 1] + ")");
+			case CHECK:
+				if (sb + prog[ip + 1] > eStackSize) {
+					throw new IllegalStateException("expression stack overflow");
+				}
+				ip += 2;
+				break;
+			default:
+				throw new IllegalStateException(
+						"wrong register opcode " + prog[ip]);
+			}
+		}
+	}
+}
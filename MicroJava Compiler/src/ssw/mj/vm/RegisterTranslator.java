@@ -0,0 +1,584 @@
+package ssw.mj.vm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Translates the stack code of every method into three-address code for the
+ * {@link RegisterInterpreter}. The registers of a method are its local
+ * variables followed by one register per expression stack slot, so slot i of
+ * a method with n locals is register n + i of its frame.
+ *
+ * The translation keeps a symbolic expression stack. Loads of locals and
+ * constants only push a reference to their value; code is generated for the
+ * operations consuming them, which read their operands from the registers
+ * directly and write their result to the slot register (or, if the result is
+ * stored into a local right away, to the local itself). At jumps, jump
+ * targets and calls the symbolic stack is written back to the slot registers.
+ *
+ * Every method is translated twice: a fast version and a version that checks
+ * for expression stack overflow before every instruction that grows the
+ * stack. The fast version is used whenever the whole expression stack of the
+ * method fits into the remaining expression stack.
+ */
+final class RegisterTranslator {
+
+	// ----- register instructions (operands in brackets, d = destination)
+	static final int MOVE = 0, // [d, s]
+			CONST = 1, // [d, val]
+			GETSTATIC = 2, // [d, adr]
+			PUTSTATIC = 3, // [adr, s]
+			GETFIELD = 4, // [d, obj, off]
+			PUTFIELD = 5, // [obj, off, s]
+			ADD = 6, // [d, a, b]
+			SUB = 7, // [d, a, b]
+			MUL = 8, // [d, a, b]
+			DIV = 9, // [d, a, b]
+			REM = 10, // [d, a, b]
+			SHL = 11, // [d, a, b]
+			SHR = 12, // [d, a, b]
+			ADDI = 13, // [d, a, val]
+			NEG = 14, // [d, a]
+			INC = 15, // [r, val]
+			NEW = 16, // [d, nFields]
+			NEWARRAY = 17, // [d, len, elemSize]
+			ALOAD = 18, // [d, arr, idx]
+			ASTORE = 19, // [arr, idx, s]
+			BALOAD = 20, // [d, arr, idx]
+			BASTORE = 21, // [arr, idx, s]
+			ARRAYLENGTH = 22, // [d, arr]
+			JMP = 23, // [target]
+			JEQ = 24, // [a, b, target]
+			JNE = 25, // [a, b, target]
+			JLT = 26, // [a, b, target]
+			JLE = 27, // [a, b, target]
+			JGT = 28, // [a, b, target]
+			JGE = 29, // [a, b, target]
+			JEQI = 30, // [a, val, target]
+			JNEI = 31, // [a, val, target]
+			JLTI = 32, // [a, val, target]
+			JLEI = 33, // [a, val, target]
+			JGTI = 34, // [a, val, target]
+			JGEI = 35, // [a, val, target]
+			CALL = 36, // [target, first argument, slot of argument, frame size]
+			ENTER = 37, // [nPars, nLocals, frame size, max depth, checked]
+			RET = 38, // [s, nLocals]
+			RETV = 39, // [nLocals]
+			READ = 40, // [d]
+			BREAD = 41, // [d]
+			PRINT = 42, // [val, width]
+			BPRINT = 43, // [val, width]
+			TRAP = 44, // [n]
+			CHECK = 45; // [depth] expression stack overflow if sb + depth too big
+
+	/** Words of the frame header below the registers of a method. */
+	static final int HEADER = 4;
+
+	private final byte[] code;
+	private final CodeAnalyzer analyzer;
+
+	private int[] prog = new int[256];
+	private int len;
+
+	/** Stream index of the fast version of every method, by entry pc. */
+	private final int[] entryIndex;
+
+	/** Operand positions of calls and the entry pcs of their targets. */
+	private int[] callFixups = new int[32];
+	private int nCallFixups;
+
+	// ----- state of the method being translated
+	private CodeAnalyzer.Method m;
+	private boolean checked;
+	private int[] pcIndex; // stream index of translated pcs, -1 if none
+	private int[] jumpFixups = new int[32]; // pairs of (operand, target pc)
+	private int nJumpFixups;
+	private boolean[] leader;
+
+	// symbolic expression stack: register or constant per slot
+	private int depth;
+	private boolean[] isConst = new boolean[16];
+	private int[] value = new int[16];
+
+	/** Position of the destination operand of the last instruction or -1. */
+	private int lastDst = -1;
+
+	private int byteCodeInstructions;
+
+	RegisterTranslator(byte[] code) {
+		this.code = code;
+		analyzer = new CodeAnalyzer(code);
+		entryIndex = new int[code.length];
+		Arrays.fill(entryIndex, -1);
+	}
+
+	/**
+	 * Translates all methods reachable from startPC. Throws an
+	 * {@link IllegalArgumentException} if the code cannot be translated.
+	 */
+	int[] translate(int startPC) throws IllegalArgumentException {
+		analyzer.analyze(startPC);
+		List<CodeAnalyzer.Method> methods = analyzer.methods();
+		for (CodeAnalyzer.Method method : methods) {
+			m = method;
+			if (m.pcs[0] != m.entry) {
+				throw new IllegalArgumentException(
+						"code before enter of method at " + m.entry);
+			}
+			entryIndex[m.entry] = len;
+			int fastEnter = len;
+			translateMethod(false);
+			prog[fastEnter + 5] = len; // checked version follows
+			translateMethod(true);
+			byteCodeInstructions += m.pcs.length;
+		}
+		for (int i = 0; i < nCallFixups; i += 2) {
+			prog[callFixups[i]] = entryIndex[callFixups[i + 1]];
+		}
+		return Arrays.copyOf(prog, len);
+	}
+
+	/** Number of translated byte code instructions. */
+	int byteCodeInstructions() {
+		return byteCodeInstructions;
+	}
+
+	private void translateMethod(boolean checked) {
+		this.checked = checked;
+		int[] pcs = m.pcs;
+		pcIndex = new int[code.length];
+		Arrays.fill(pcIndex, -1);
+		leader = new boolean[code.length];
+		for (int pc : pcs) {
+			if (isJump(OpCode.get(code[pc]))) {
+				leader[analyzer.targetAt(pc)] = true;
+			}
+		}
+		nJumpFixups = 0;
+		depth = 0;
+		lastDst = -1;
+		boolean fallsThrough = false;
+		for (int k = 0; k < pcs.length; k++) {
+			int pc = pcs[k];
+			if (leader[pc] || !fallsThrough) {
+				if (fallsThrough) {
+					flush(0, depth);
+				}
+				// state at a jump target: everything in the slot registers
+				depth = 0;
+				while (depth < analyzer.depthAt(pc)) {
+					push(false, slot(depth));
+				}
+				lastDst = -1;
+			}
+			pcIndex[pc] = len;
+			fallsThrough = translate(pc, k + 1 < pcs.length ? pcs[k + 1] : -1);
+		}
+		for (int i = 0; i < nJumpFixups; i += 2) {
+			prog[jumpFixups[i]] = pcIndex[jumpFixups[i + 1]];
+		}
+	}
+
+	/**
+	 * Translates the instruction at pc and returns true if it falls through
+	 * to the next instruction.
+	 */
+	private boolean translate(int pc, int nextPc) {
+		OpCode op = OpCode.get(code[pc]);
+		int before = depth;
+		int after = before - CodeAnalyzer.pops(op) + CodeAnalyzer.pushes(op);
+		if (checked && after > before && op != OpCode.call) {
+			emit(CHECK, after);
+		}
+		int a, b, val;
+		switch (op) {
+		case load:
+			push(false, code[pc + 1]);
+			break;
+		case load_0:
+		case load_1:
+		case load_2:
+		case load_3:
+			push(false, op.code() - OpCode.load_0.code());
+			break;
+		case store:
+			store(code[pc + 1]);
+			break;
+		case store_0:
+		case store_1:
+		case store_2:
+		case store_3:
+			store(op.code() - OpCode.store_0.code());
+			break;
+		case getstatic:
+			emitDst(GETSTATIC, slot(depth));
+			emit(get2(pc + 1));
+			push(false, slot(depth));
+			break;
+		case putstatic:
+			a = reg(depth - 1);
+			emit(PUTSTATIC, get2(pc + 1));
+			emit(a);
+			depth--;
+			break;
+		case getfield:
+			a = reg(depth - 1);
+			emitDst(GETFIELD, slot(depth - 1));
+			emit(a);
+			emit(get2(pc + 1));
+			setTop(slot(depth - 1));
+			break;
+		case putfield:
+			a = reg(depth - 2);
+			b = reg(depth - 1);
+			emit(PUTFIELD, a);
+			emit(get2(pc + 1));
+			emit(b);
+			depth -= 2;
+			break;
+		case const_0:
+		case const_1:
+		case const_2:
+		case const_3:
+		case const_4:
+		case const_5:
+			push(true, op.code() - OpCode.const_0.code());
+			break;
+		case const_m1:
+			push(true, -1);
+			break;
+		case const_:
+			push(true, (get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+			break;
+		case add:
+		case sub:
+			if (isConst[depth - 1]) {
+				val = value[depth - 1];
+				depth--;
+				a = reg(depth - 1);
+				emitDst(ADDI, slot(depth - 1));
+				emit(a);
+				emit(op == OpCode.add ? val : -val);
+				setTop(slot(depth - 1));
+				break;
+			}
+			binary(op == OpCode.add ? ADD : SUB);
+			break;
+		case mul:
+			binary(MUL);
+			break;
+		case div:
+			binary(DIV);
+			break;
+		case rem:
+			binary(REM);
+			break;
+		case shl:
+			binary(SHL);
+			break;
+		case shr:
+			binary(SHR);
+			break;
+		case neg:
+			a = reg(depth - 1);
+			emitDst(NEG, slot(depth - 1));
+			emit(a);
+			setTop(slot(depth - 1));
+			break;
+		case inc:
+			materialize(code[pc + 1], depth);
+			emit(INC, code[pc + 1]);
+			emit(code[pc + 2]);
+			break;
+		case new_:
+			emitDst(NEW, slot(depth));
+			emit(get2(pc + 1));
+			push(false, slot(depth));
+			break;
+		case newarray:
+			a = reg(depth - 1);
+			emitDst(NEWARRAY, slot(depth - 1));
+			emit(a);
+			emit(code[pc + 1]);
+			setTop(slot(depth - 1));
+			break;
+		case aload:
+		case baload:
+			a = reg(depth - 2);
+			b = reg(depth - 1);
+			depth--;
+			emitDst(op == OpCode.aload ? ALOAD : BALOAD, slot(depth - 1));
+			emit(a);
+			emit(b);
+			setTop(slot(depth - 1));
+			break;
+		case astore:
+		case bastore:
+			a = reg(depth - 3);
+			b = reg(depth - 2);
+			val = reg(depth - 1);
+			emit(op == OpCode.astore ? ASTORE : BASTORE, a);
+			emit(b);
+			emit(val);
+			depth -= 3;
+			break;
+		case arraylength:
+			a = reg(depth - 1);
+			emitDst(ARRAYLENGTH, slot(depth - 1));
+			emit(a);
+			setTop(slot(depth - 1));
+			break;
+		case pop:
+			depth--;
+			break;
+		case dup:
+			push(isConst[depth - 1], value[depth - 1]);
+			break;
+		case dup2:
+			push(isConst[depth - 2], value[depth - 2]);
+			push(isConst[depth - 2], value[depth - 2]);
+			break;
+		case jmp:
+			flush(0, depth);
+			emit(JMP, 0);
+			jumpFixup(analyzer.targetAt(pc));
+			return false;
+		case jeq:
+		case jne:
+		case jlt:
+		case jle:
+		case jgt:
+		case jge:
+			int cond = op.code() - OpCode.jeq.code();
+			boolean imm = isConst[depth - 1];
+			b = imm ? value[depth - 1] : reg(depth - 1);
+			a = reg(depth - 2);
+			depth -= 2;
+			flush(0, depth);
+			emit((imm ? JEQI : JEQ) + cond, a);
+			emit(b);
+			emit(0);
+			jumpFixup(analyzer.targetAt(pc));
+			break;
+		case call:
+			CodeAnalyzer.Method callee = analyzer
+					.methodAt(analyzer.targetAt(pc));
+			int args = depth - callee.nPars;
+			flush(args, depth);
+			emit(CALL, 0);
+			callFixup(callee.entry);
+			emit(slot(args));
+			emit(args);
+			emit(frameSize());
+			depth = args;
+			if (callee.returnSize == CodeAnalyzer.NO_RETURN) {
+				return false;
+			}
+			if (callee.returnSize == 1) {
+				push(false, slot(depth));
+			}
+			break;
+		case enter:
+			if (!checked) { // the checked version starts after enter
+				emit(ENTER, m.nPars);
+				emit(m.nLocals);
+				emit(frameSize());
+				emit(m.maxDepth);
+				emit(-1); // start of the checked version
+			}
+			break;
+		case exit:
+			if (pc + 1 != nextPc || code[nextPc] != OpCode.return_.code()
+					|| leader[nextPc]) {
+				throw new IllegalArgumentException(
+						"exit not followed by return at " + pc);
+			}
+			break;
+		case return_:
+			int prev = pc - 1;
+			if (prev < 0 || code[prev] != OpCode.exit.code()
+					|| pcIndex[prev] < 0) {
+				throw new IllegalArgumentException(
+						"return without exit at " + pc);
+			}
+			if (depth == 1) {
+				emit(RET, reg(0));
+				emit(m.nLocals);
+			} else {
+				emit(RETV, m.nLocals);
+			}
+			return false;
+		case read:
+			emitDst(READ, slot(depth));
+			push(false, slot(depth));
+			break;
+		case bread:
+			emitDst(BREAD, slot(depth));
+			push(false, slot(depth));
+			break;
+		case print:
+		case bprint:
+			a = reg(depth - 2);
+			b = reg(depth - 1);
+			emit(op == OpCode.print ? PRINT : BPRINT, a);
+			emit(b);
+			depth -= 2;
+			break;
+		case trap:
+			emit(TRAP, code[pc + 1]);
+			return false;
+		case nop:
+			break;
+		}
+		return true;
+	}
+
+	// ----- symbolic expression stack
+
+	/** Register of expression stack slot i. */
+	private int slot(int i) {
+		return m.nLocals + i;
+	}
+
+	private int frameSize() {
+		return m.nLocals + m.maxDepth;
+	}
+
+	private void push(boolean isConstant, int val) {
+		if (depth == isConst.length) {
+			isConst = Arrays.copyOf(isConst, depth * 2);
+			value = Arrays.copyOf(value, depth * 2);
+		}
+		isConst[depth] = isConstant;
+		value[depth] = val;
+		depth++;
+	}
+
+	private void setTop(int reg) {
+		isConst[depth - 1] = false;
+		value[depth - 1] = reg;
+	}
+
+	/** Register holding slot i; constants are loaded into the slot register. */
+	private int reg(int i) {
+		if (isConst[i]) {
+			emitDst(CONST, slot(i));
+			emit(value[i]);
+			isConst[i] = false;
+			value[i] = slot(i);
+		}
+		return value[i];
+	}
+
+	/** Moves the values of the slots from..to-1 into their own registers. */
+	private void flush(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (isConst[i]) {
+				reg(i);
+			} else if (value[i] != slot(i)) {
+				emitDst(MOVE, slot(i));
+				emit(value[i]);
+				value[i] = slot(i);
+			}
+		}
+	}
+
+	/**
+	 * Copies slots 0..to-1 that still refer to local n into their own
+	 * registers before n is changed.
+	 */
+	private void materialize(int n, int to) {
+		for (int i = 0; i < to; i++) {
+			if (!isConst[i] && value[i] == n) {
+				emitDst(MOVE, slot(i));
+				emit(n);
+				value[i] = slot(i);
+			}
+		}
+	}
+
+	private void store(int n) {
+		depth--;
+		boolean referenced = false;
+		for (int i = 0; i < depth; i++) {
+			referenced |= !isConst[i] && value[i] == n;
+		}
+		if (isConst[depth]) {
+			materialize(n, depth);
+			emitDst(CONST, n);
+			emit(value[depth]);
+		} else if (value[depth] == slot(depth) && lastDst >= 0
+				&& prog[lastDst] == slot(depth) && !referenced) {
+			// the last instruction computed the value, let it write n
+			prog[lastDst] = n;
+			lastDst = -1;
+		} else if (value[depth] != n) {
+			int src = value[depth];
+			materialize(n, depth);
+			emitDst(MOVE, n);
+			emit(src);
+		}
+	}
+
+	private void binary(int op) {
+		int a = reg(depth - 2);
+		int b = reg(depth - 1);
+		depth--;
+		emitDst(op, slot(depth - 1));
+		emit(a);
+		emit(b);
+		setTop(slot(depth - 1));
+	}
+
+	// ----- code emission
+
+	private static boolean isJump(OpCode op) {
+		return op.ordinal() >= OpCode.jmp.ordinal()
+				&& op.ordinal() <= OpCode.jge.ordinal();
+	}
+
+	private void jumpFixup(int target) {
+		if (nJumpFixups + 2 > jumpFixups.length) {
+			jumpFixups = Arrays.copyOf(jumpFixups, jumpFixups.length * 2);
+		}
+		jumpFixups[nJumpFixups++] = len - 1;
+		jumpFixups[nJumpFixups++] = target;
+	}
+
+	private void callFixup(int entry) {
+		if (nCallFixups + 2 > callFixups.length) {
+			callFixups = Arrays.copyOf(callFixups, callFixups.length * 2);
+		}
+		callFixups[nCallFixups++] = len - 1;
+		callFixups[nCallFixups++] = entry;
+	}
+
+	/** Emits an instruction whose first operand is its destination. */
+	private void emitDst(int op, int d) {
+		emit(op, d);
+		lastDst = len - 1;
+	}
+
+	private void emit(int op, int operand) {
+		lastDst = -1;
+		put(op);
+		put(operand);
+	}
+
+	private void emit(int operand) {
+		put(operand);
+	}
+
+	private void put(int x) {
+		if (len == prog.length) {
+			prog = Arrays.copyOf(prog, prog.length * 2);
+		}
+		prog[len++] = x;
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+}
@@ -0,0 +1,128 @@
+package ssw.mj.vm;
+
+/**
+ * Interpreter with two execution tiers. Every method starts in the standard
+ * interpreter, which counts method invocations and taken backward jumps.
+ * When a counter reaches its threshold, the method (or the loop) is decoded
+ * by the {@link Predecoder} and execution continues in the decoded code. Hot
+ * loops are switched over in the middle of a method (on-stack replacement),
+ * which is possible because both tiers share the stacks and return addresses
+ * are byte code addresses in both tiers.
+ *
+ * Control falls back to the standard interpreter when decoded code returns
+ * to or calls a method that is not hot yet.
+ */
+public class TieredInterpreter extends PredecodedInterpreter {
+
+	public static final int DEFAULT_CALL_THRESHOLD = 1000;
+	public static final int DEFAULT_LOOP_THRESHOLD = 10000;
+
+	private int callThreshold = DEFAULT_CALL_THRESHOLD;
+	private int loopThreshold = DEFAULT_LOOP_THRESHOLD;
+
+	private final int[] calls; // invocations per method entry
+	private final int[] backEdges; // taken backward jumps per loop header
+
+	// statistics
+	private int methodsDecoded, loopsDecoded, transitions;
+
+	public TieredInterpreter(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug) {
+		super(code, startPC, dataSize, io, debug, false);
+		calls = new int[code.length];
+		backEdges = new int[code.length];
+	}
+
+	/**
+	 * Sets the number of invocations and of backward jumps after which a
+	 * method or a loop is decoded. 0 decodes code on its first execution.
+	 */
+	public void setThresholds(int callThreshold, int loopThreshold) {
+		if (callThreshold < 0 || loopThreshold < 0) {
+			throw new IllegalArgumentException("negative threshold");
+		}
+		this.callThreshold = callThreshold;
+		this.loopThreshold = loopThreshold;
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		if (isObserved() || isOffHeap()) {
+			super.run();
+			return;
+		}
+		pc = startPC;
+		beginRun();
+		try {
+			if (!onCall(startPC)) {
+				interpret();
+			}
+		} finally {
+			endRun();
+		}
+	}
+
+	@Override
+	protected boolean onCall(int entry) {
+		if (isObserved() || isOffHeap()
+				|| !promote(entry, calls, callThreshold)) {
+			return false;
+		}
+		return enterDecoded();
+	}
+
+	@Override
+	protected boolean onBackEdge(int header) {
+		if (isObserved() || isOffHeap()
+				|| !promote(header, backEdges, loopThreshold)) {
+			return false;
+		}
+		return enterDecoded();
+	}
+
+	@Override
+	int resolveCall(int entry) {
+		if (!promote(entry, calls, callThreshold)) {
+			return -1;
+		}
+		return decoder.pcToIndex[entry];
+	}
+
+	/**
+	 * Counts an execution of the code at pc and decodes it if it is hot.
+	 * Returns true if the code at pc is decoded.
+	 */
+	private boolean promote(int pc, int[] counters, int threshold) {
+		if (pc < 0 || pc >= counters.length) {
+			return false;
+		}
+		if (decoder.pcToIndex[pc] >= 0) {
+			return true;
+		}
+		if (counters[pc]++ < threshold) {
+			return false;
+		}
+		decoder.decode(pc, false);
+		prog = decoder.program();
+		if (counters == calls) {
+			methodsDecoded++;
+		} else {
+			loopsDecoded++;
+		}
+		return true;
+	}
+
+	/** Continues at pc in decoded code until it reaches undecoded code. */
+	private boolean enterDecoded() {
+		transitions++;
+		return execute();
+	}
+
+	@Override
+	public String statistics() {
+		return "tiered: " + methodsDecoded + " methods and " + loopsDecoded
+				+ " loops decoded (thresholds " + callThreshold + " calls, "
+				+ loopThreshold + " back-edges), " + transitions
+				+ " switches to decoded code";
+	}
+}
@@ -0,0 +1,577 @@
+package ssw.mj.vm;
+
+import static ssw.mj.vm.ClassFileWriter.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.ClassFileWriter.Bytecode;
+import ssw.mj.vm.TracingInterpreter.Exit;
+import ssw.mj.vm.TracingInterpreter.Trace;
+
+/**
+ * Translates a trace recorded by the {@link TracingInterpreter} into a static
+ * method of a hidden JVM class:
+ *
+ * <pre>
+ *   static int run(TracingInterpreter vm, int[] local, int[] stack,
+ *                  int fp, int sp, int esp)
+ * </pre>
+ *
+ * The locals of the loop's method are loaded into JVM locals on entry, every
+ * inlined call gets its own JVM locals and the expression stack becomes the
+ * JVM operand stack, as in the {@link JitCompiler}. The trace loops as long
+ * as every conditional jump goes the recorded way. Otherwise an exit stub
+ * stores the operand stack, the changed locals and the frames of inlined
+ * methods into the interpreter's stacks and returns the number of the
+ * {@link Exit}.
+ */
+final class TraceCompiler {
+
+	private static final String CLASS = "ssw/mj/vm/TraceCode";
+	private static final String VM = "ssw/mj/vm/TracingInterpreter";
+	private static final String VM_DESC = "L" + VM + ";";
+	private static final String DESC = "(" + VM_DESC + "[I[IIII)I";
+
+	// JVM locals of the trace method
+	private static final int VM_ARG = 0, LOCAL = 1, STACK = 2, FP = 3, SP = 4,
+			ESP = 5, HEAP = 6, DATA = 7, ITER = 8, TMP = 9, LOCALS = 10;
+
+	/** An inlined method invocation. */
+	private static final class Frame {
+		/** pc to return to, first JVM local and number of locals. */
+		final int retPC, base, nLocals;
+		/** fp relative to sp at trace entry. */
+		final int fp;
+
+		Frame(int retPC, int base, int nLocals, int fp) {
+			this.retPC = retPC;
+			this.base = base;
+			this.nLocals = nLocals;
+			this.fp = fp;
+		}
+	}
+
+	/** A guard failure: the exit and the state to write back. */
+	private static final class Stub {
+		final int label, depth;
+		final Frame[] frames;
+		final Exit exit;
+
+		Stub(int label, int depth, Frame[] frames, Exit exit) {
+			this.label = label;
+			this.depth = depth;
+			this.frames = frames;
+			this.exit = exit;
+		}
+	}
+
+	private final byte[] code;
+	private final int[] path;
+	private final ClassFileWriter cf;
+	private final Bytecode b = new Bytecode();
+	private final List<Stub> stubs = new ArrayList<Stub>();
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private final boolean[] stored; // locals of the loop's method changed
+
+	private int depth, maxDepth, frameWords, nextLocal, inlined;
+
+	private TraceCompiler(byte[] code, int[] path) {
+		this.code = code;
+		this.path = path;
+		cf = new ClassFileWriter(CLASS, "java/lang/Object");
+		stored = new boolean[128];
+	}
+
+	/**
+	 * Compiles the trace that executes the instructions at the pcs of path
+	 * and jumps back to path[0]. Throws an IllegalArgumentException if the
+	 * trace cannot be compiled.
+	 */
+	static Trace compile(byte[] code, int[] path)
+			throws IllegalArgumentException {
+		TraceCompiler compiler = new TraceCompiler(code, path);
+		compiler.compile();
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup()
+					.defineHiddenClass(compiler.cf.toByteArray(), true);
+			MethodHandle mh = lookup.findStatic(lookup.lookupClass(), "run",
+					MethodType.fromMethodDescriptorString(DESC, null));
+			Exit[] exits = new Exit[compiler.stubs.size()];
+			for (int i = 0; i < exits.length; i++) {
+				exits[i] = compiler.stubs.get(i).exit;
+			}
+			return new Trace(path[0], path.length, compiler.inlined,
+					compiler.maxDepth, compiler.frameWords, mh, exits);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private void compile() {
+		// locals of the loop's method used in the trace
+		int nRoot = 0, level = 0;
+		for (int pc : path) {
+			int op = code[pc];
+			if (level == 0 && local(pc) >= 0) {
+				nRoot = Math.max(nRoot, local(pc) + 1);
+			}
+			if (op == OpCode.call.code()) {
+				level++;
+			} else if (op == OpCode.return_.code()) {
+				level--;
+			}
+		}
+		nextLocal = LOCALS + nRoot;
+
+		// prologue
+		b.local(ALOAD, VM_ARG);
+		b.op2(INVOKEVIRTUAL, cf.methodRef(VM, "dataArray", "()[I"));
+		b.local(ASTORE, DATA);
+		loadHeap();
+		b.op(ICONST_0);
+		b.local(ISTORE, ITER);
+		for (int n = 0; n < nRoot; n++) {
+			b.local(ALOAD, LOCAL);
+			b.local(ILOAD, FP);
+			constant(n);
+			b.op(IADD);
+			b.op(IALOAD);
+			b.local(ISTORE, LOCALS + n);
+		}
+		int loop = b.newLabel();
+		b.place(loop);
+
+		for (int i = 0; i < path.length; i++) {
+			int pc = path[i];
+			int next = i + 1 < path.length ? path[i + 1] : path[0];
+			if (!instruction(pc, next, i + 1 == path.length)) {
+				continue;
+			}
+			// last instruction, jumps back to the header
+			if (depth != 0 || !frames.isEmpty()) {
+				throw new IllegalArgumentException("unbalanced trace");
+			}
+			b.iinc(ITER, 1);
+			b.local(ALOAD, VM_ARG);
+			helper("safepoint", "(" + VM_DESC + ")V");
+			b.branch(GOTO, loop);
+		}
+
+		for (Stub s : stubs) {
+			stub(s);
+		}
+		b.maxLocals = nextLocal;
+		b.maxStack = maxDepth + 4;
+		cf.addMethod(ACC_STATIC, "run", DESC, b);
+	}
+
+	/**
+	 * Translates the instruction at pc, which is followed by the instruction
+	 * at next in the trace. Returns true if it jumps back to the header.
+	 */
+	private boolean instruction(int pc, int next, boolean last) {
+		OpCode op = OpCode.get(code[pc]);
+		if (op == null) {
+			throw new IllegalArgumentException("wrong opcode");
+		}
+		int fallThrough = pc + 1 + op.getOpsSize();
+		int target = op.getOpsSize() == 2 ? pc + get2(pc + 1) : -1;
+		switch (op) {
+		case call:
+			if (next != target || last) {
+				throw new IllegalArgumentException("call not followed");
+			}
+			frames.add(new Frame(fallThrough, -1, 0, -1)); // set by enter
+			inlined++;
+			b.local(ALOAD, VM_ARG);
+			helper("safepoint", "(" + VM_DESC + ")V");
+			return false;
+		case enter:
+			enter(pc, next);
+			return false;
+		case return_:
+			Frame f = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+			if (f == null || f.base >= 0 || next != f.retPC) {
+				throw new IllegalArgumentException("return not followed");
+			}
+			frames.remove(frames.size() - 1);
+			return false;
+		case exit:
+			if (frames.isEmpty() || next != fallThrough
+					|| code[next] != OpCode.return_.code()) {
+				throw new IllegalArgumentException("exit in the loop");
+			}
+			// the frame is released, the following return pops it
+			f = frames.remove(frames.size() - 1);
+			frames.add(new Frame(f.retPC, -1, 0, f.fp));
+			break;
+		case jmp:
+			if (next != target) {
+				throw new IllegalArgumentException("jump not followed");
+			}
+			return last;
+		case jeq:
+		case jne:
+		case jlt:
+		case jle:
+		case jgt:
+		case jge:
+			depth -= 2;
+			if (depth < 0) {
+				throw new IllegalArgumentException("stack of the loop used");
+			}
+			int cond = op.code() - OpCode.jeq.code();
+			if (next == target) {
+				guard(INVERSE[cond], fallThrough);
+			} else if (next == fallThrough && !last) {
+				guard(BRANCHES[cond], target);
+			} else {
+				throw new IllegalArgumentException("jump not followed");
+			}
+			return last;
+		case trap:
+			throw new IllegalArgumentException("trap in trace");
+		default:
+			if (next != fallThrough || last) {
+				throw new IllegalArgumentException("path not followed");
+			}
+			simple(op, pc);
+			break;
+		}
+		return false;
+	}
+
+	/** Creates the JVM locals of an inlined method and passes the arguments. */
+	private void enter(int pc, int next) {
+		Frame call = frames.isEmpty() ? null : frames.remove(frames.size() - 1);
+		if (call == null || call.base >= 0 || call.fp >= 0
+				|| next != pc + 3) {
+			throw new IllegalArgumentException("method not entered by call");
+		}
+		int nPars = code[pc + 1], nLocals = code[pc + 2];
+		if (nPars < 0 || nLocals < nPars || depth < nPars) {
+			throw new IllegalArgumentException("invalid frame");
+		}
+		int fp = 2; // return address and saved fp
+		if (!frames.isEmpty()) {
+			Frame caller = frames.get(frames.size() - 1);
+			fp = caller.fp + caller.nLocals + 2;
+		}
+		Frame f = new Frame(call.retPC, nextLocal, nLocals, fp);
+		nextLocal += nLocals;
+		frames.add(f);
+		frameWords = Math.max(frameWords, fp + nLocals);
+		for (int n = nPars - 1; n >= 0; n--) {
+			b.local(ISTORE, f.base + n);
+		}
+		depth -= nPars;
+		for (int n = nPars; n < nLocals; n++) {
+			b.op(ICONST_0);
+			b.local(ISTORE, f.base + n);
+		}
+	}
+
+	/** Exits to pc if the comparison of the two topmost values succeeds. */
+	private void guard(int branch, int pc) {
+		Frame[] active = frames.toArray(new Frame[frames.size()]);
+		Frame top = active.length == 0 ? null : active[active.length - 1];
+		Exit exit = top == null ? new Exit(pc, depth, -1, 0)
+				: new Exit(pc, depth, top.fp, top.fp + top.nLocals);
+		Stub s = new Stub(b.newLabel(), depth, active, exit);
+		stubs.add(s);
+		b.branch(branch, s.label);
+	}
+
+	/** Writes the state at the guard of s back and returns its exit. */
+	private void stub(Stub s) {
+		b.place(s.label);
+		for (int k = s.depth - 1; k >= 0; k--) {
+			b.local(ISTORE, TMP);
+			b.local(ALOAD, STACK);
+			b.local(ILOAD, ESP);
+			constant(k);
+			b.op(IADD);
+			b.local(ILOAD, TMP);
+			b.op(IASTORE);
+		}
+		for (int n = 0; n < stored.length; n++) {
+			if (stored[n]) {
+				b.local(ALOAD, LOCAL);
+				b.local(ILOAD, FP);
+				constant(n);
+				b.op(IADD);
+				b.local(ILOAD, LOCALS + n);
+				b.op(IASTORE);
+			}
+		}
+		for (int j = 0; j < s.frames.length; j++) {
+			Frame f = s.frames[j];
+			storeFrameWord(f.fp - 2);
+			constant(f.retPC);
+			b.op(IASTORE);
+			storeFrameWord(f.fp - 1);
+			if (j == 0) {
+				b.local(ILOAD, FP);
+			} else {
+				b.local(ILOAD, SP);
+				constant(s.frames[j - 1].fp);
+				b.op(IADD);
+			}
+			b.op(IASTORE);
+			for (int n = 0; n < f.nLocals; n++) {
+				storeFrameWord(f.fp + n);
+				b.local(ILOAD, f.base + n);
+				b.op(IASTORE);
+			}
+		}
+		b.local(ILOAD, ITER);
+		b.local(ALOAD, VM_ARG);
+		helper("iterations", "(I" + VM_DESC + ")V");
+		constant(stubs.indexOf(s));
+		b.op(IRETURN);
+	}
+
+	/** Pushes local and the index sp + off for an iastore. */
+	private void storeFrameWord(int off) {
+		b.local(ALOAD, LOCAL);
+		b.local(ILOAD, SP);
+		constant(off);
+		b.op(IADD);
+	}
+
+	private void simple(OpCode op, int pc) {
+		switch (op) {
+		case load:
+		case load_0:
+		case load_1:
+		case load_2:
+		case load_3:
+			b.local(ILOAD, jvmLocal(local(pc)));
+			break;
+		case store:
+			b.local(ISTORE, jvmLocal(stored(code[pc + 1])));
+			break;
+		case store_0:
+		case store_1:
+		case store_2:
+		case store_3:
+			b.local(ISTORE,
+					jvmLocal(stored(op.code() - OpCode.store_0.code())));
+			break;
+		case inc:
+			b.iinc(jvmLocal(stored(code[pc + 1])), code[pc + 2]);
+			break;
+		case getstatic:
+			b.local(ALOAD, DATA);
+			constant(get2(pc + 1));
+			b.op(IALOAD);
+			break;
+		case putstatic:
+			b.local(ALOAD, DATA);
+			b.op(SWAP);
+			constant(get2(pc + 1));
+			b.op(SWAP);
+			b.op(IASTORE);
+			break;
+		case getfield:
+			constant(get2(pc + 1));
+			b.local(ALOAD, HEAP);
+			runtime("getfield", "(II[I)I");
+			break;
+		case putfield:
+			constant(get2(pc + 1));
+			b.local(ALOAD, HEAP);
+			runtime("putfield", "(III[I)V");
+			break;
+		case const_0:
+		case const_1:
+		case const_2:
+		case const_3:
+		case const_4:
+		case const_5:
+			constant(op.code() - OpCode.const_0.code());
+			break;
+		case const_m1:
+			constant(-1);
+			break;
+		case const_:
+			constant((get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+			break;
+		case add:
+			b.op(IADD);
+			break;
+		case sub:
+			b.op(ISUB);
+			break;
+		case mul:
+			b.op(IMUL);
+			break;
+		case div:
+			runtime("div", "(II)I");
+			break;
+		case rem:
+			runtime("rem", "(II)I");
+			break;
+		case neg:
+			b.op(INEG);
+			break;
+		case shl:
+			b.op(ISHL);
+			break;
+		case shr:
+			b.op(ISHR);
+			break;
+		case new_:
+			constant(get2(pc + 1));
+			b.local(ALOAD, VM_ARG);
+			helper("newObject", "(I" + VM_DESC + ")I");
+			loadHeap();
+			break;
+		case newarray:
+			constant(code[pc + 1]);
+			b.local(ALOAD, VM_ARG);
+			helper("newArray", "(II" + VM_DESC + ")I");
+			loadHeap();
+			break;
+		case aload:
+			b.local(ALOAD, HEAP);
+			runtime("aload", "(II[I)I");
+			break;
+		case astore:
+			b.local(ALOAD, HEAP);
+			runtime("astore", "(III[I)V");
+			break;
+		case baload:
+			b.local(ALOAD, HEAP);
+			runtime("baload", "(II[I)I");
+			break;
+		case bastore:
+			b.local(ALOAD, HEAP);
+			runtime("bastore", "(III[I)V");
+			break;
+		case arraylength:
+			b.local(ALOAD, HEAP);
+			runtime("arraylength", "(I[I)I");
+			break;
+		case pop:
+			b.op(POP);
+			break;
+		case dup:
+			b.op(DUP);
+			break;
+		case dup2:
+			b.op(DUP2);
+			break;
+		case read:
+			b.local(ALOAD, VM_ARG);
+			helper("read", "(" + VM_DESC + ")I");
+			break;
+		case print:
+			b.local(ALOAD, VM_ARG);
+			helper("print", "(II" + VM_DESC + ")V");
+			break;
+		case bread:
+			b.local(ALOAD, VM_ARG);
+			helper("bread", "(" + VM_DESC + ")I");
+			break;
+		case bprint:
+			b.local(ALOAD, VM_ARG);
+			helper("bprint", "(II" + VM_DESC + ")V");
+			break;
+		case nop:
+			break;
+		default:
+			throw new IllegalArgumentException("unexpected " + op);
+		}
+		depth += CodeAnalyzer.pushes(op) - CodeAnalyzer.pops(op);
+		if (depth < 0) {
+			throw new IllegalArgumentException("stack of the loop used");
+		}
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	// JVM branches for jeq..jge and for their negation
+	private static final int[] BRANCHES = { IF_ICMPEQ, IF_ICMPNE, IF_ICMPLT,
+			IF_ICMPLE, IF_ICMPGT, IF_ICMPGE };
+	private static final int[] INVERSE = { IF_ICMPNE, IF_ICMPEQ, IF_ICMPGE,
+			IF_ICMPGT, IF_ICMPLE, IF_ICMPLT };
+
+	/** JVM local of local variable n of the innermost method. */
+	private int jvmLocal(int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("invalid local");
+		}
+		if (frames.isEmpty()) {
+			return LOCALS + n;
+		}
+		Frame f = frames.get(frames.size() - 1);
+		if (f.base < 0 || n >= f.nLocals) {
+			throw new IllegalArgumentException("invalid local");
+		}
+		return f.base + n;
+	}
+
+	/** Records that local n is stored to and returns n. */
+	private int stored(int n) {
+		if (frames.isEmpty() && n >= 0) {
+			stored[n] = true;
+		}
+		return n;
+	}
+
+	/** Local variable loaded or written at pc or -1. */
+	private int local(int pc) {
+		int op = code[pc];
+		if (op == OpCode.load.code() || op == OpCode.store.code()
+				|| op == OpCode.inc.code()) {
+			return code[pc + 1];
+		}
+		if (op >= OpCode.load_0.code() && op <= OpCode.load_3.code()) {
+			return op - OpCode.load_0.code();
+		}
+		if (op >= OpCode.store_0.code() && op <= OpCode.store_3.code()) {
+			return op - OpCode.store_0.code();
+		}
+		return -1;
+	}
+
+	/** Caches the heap array of vm in a local; allocations may replace it. */
+	private void loadHeap() {
+		b.local(ALOAD, VM_ARG);
+		b.op2(INVOKEVIRTUAL, cf.methodRef(VM, "heapArray", "()[I"));
+		b.local(ASTORE, HEAP);
+	}
+
+	private void helper(String name, String desc) {
+		b.op2(INVOKESTATIC, cf.methodRef(VM, name, desc));
+	}
+
+	/** Calls a heap access or arithmetic helper of the JIT. */
+	private void runtime(String name, String desc) {
+		b.op2(INVOKESTATIC,
+				cf.methodRef("ssw/mj/vm/JitInterpreter", name, desc));
+	}
+
+	private void constant(int val) {
+		if (val >= -1 && val <= 5) {
+			b.op(ICONST_0 + val);
+		} else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+			b.op1(BIPUSH, val);
+		} else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+			b.op2(SIPUSH, val);
+		} else {
+			b.op2(LDC_W, cf.integer(val));
+		}
+	}
+
+	private int get2(int pos) {
+		return (short) ((code[pos] << 8) + (code[pos + 1] & 0xff));
+	}
+}
@@ -0,0 +1,505 @@
+package ssw.mj.vm;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+
+/**
+ * Interpreter that compiles the paths taken through hot loops to JVM code.
+ * The standard interpreter counts taken backward jumps per loop header. When
+ * a counter reaches its threshold, the next iteration is executed by a
+ * recorder that logs every executed instruction, following calls into their
+ * callees. If the iteration ends with a jump back to the header in the same
+ * method, the recorded trace is compiled by the {@link TraceCompiler} into a
+ * JVM method that repeats the path as long as every conditional jump goes
+ * the recorded way. A jump that goes the other way (a guard failure) writes
+ * the locals, frames and expression stack back into the interpreter, which
+ * continues at the pc where the trace was left.
+ *
+ * Recording is abandoned if the iteration returns from the loop's method,
+ * jumps back within another loop or gets too long; after a few abandoned
+ * recordings the loop is not recorded again. Like the other compiling
+ * engines, this one does not collect garbage and the standard interpreter is
+ * used if runs are observed or the heap is off the Java heap.
+ */
+public class TracingInterpreter extends Interpreter {
+
+	public static final int DEFAULT_LOOP_THRESHOLD = 1000;
+
+	/** Maximum instructions and nested calls of a trace. */
+	static final int MAX_LENGTH = 1000, MAX_INLINED = 4;
+
+	/** Abandoned recordings after which a loop is not recorded again. */
+	private static final int MAX_ABORTS = 3;
+
+	private int loopThreshold = DEFAULT_LOOP_THRESHOLD;
+
+	private final int[] backEdges; // taken backward jumps per loop header
+	private final int[] aborts; // abandoned recordings per loop header
+	private final Trace[] traces; // compiled trace per loop header
+	private final List<Trace> compiled = new ArrayList<Trace>();
+
+	/** Iterations of the last trace execution, set by the trace. */
+	private int iterations;
+
+	// statistics
+	private int recordingsAborted, loopsBlacklisted;
+
+	public TracingInterpreter(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug) {
+		super(code, startPC, dataSize, io, debug);
+		backEdges = new int[code.length];
+		aborts = new int[code.length];
+		traces = new Trace[code.length];
+	}
+
+	/**
+	 * Sets the number of backward jumps after which a loop is recorded. 0
+	 * records a loop on its first backward jump.
+	 */
+	public void setThreshold(int loopThreshold) {
+		if (loopThreshold < 0) {
+			throw new IllegalArgumentException("negative threshold");
+		}
+		this.loopThreshold = loopThreshold;
+	}
+
+	/** Returns the number of traces compiled during the last run. */
+	public int tracesCompiled() {
+		return compiled.size();
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		if (isObserved() || isOffHeap()) {
+			super.run();
+			return;
+		}
+		pc = startPC;
+		beginRun();
+		try {
+			interpret();
+		} finally {
+			endRun();
+		}
+	}
+
+	@Override
+	protected boolean onBackEdge(int header) {
+		if (isObserved() || isOffHeap() || header < 0
+				|| header >= code.length) {
+			return false;
+		}
+		Trace t = traces[header];
+		if (t == null) {
+			if (backEdges[header] < 0 || backEdges[header]++ < loopThreshold) {
+				return false;
+			}
+			int[] path = record(header);
+			if (path != null) {
+				try {
+					t = TraceCompiler.compile(code, path);
+				} catch (IllegalArgumentException e) {
+					// not compilable, like an abandoned recording
+				}
+			}
+			if (t == null) {
+				recordingsAborted++;
+				backEdges[header] = 0;
+				if (++aborts[header] == MAX_ABORTS) {
+					backEdges[header] = -1;
+					loopsBlacklisted++;
+				}
+				return false; // continue where the recording stopped
+			}
+			traces[header] = t;
+			compiled.add(t);
+		}
+		if (esp + t.maxDepth <= eStackSize && sp + t.frameWords <= mStackSize) {
+			execute(t);
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the trace t from its header until a guard fails and continues at
+	 * the exit of the guard. The trace cannot overflow the stacks.
+	 */
+	private void execute(Trace t) {
+		if (local.length < sp + t.frameWords) {
+			growLocal(sp + t.frameWords);
+		}
+		long start = System.nanoTime();
+		int exit;
+		try {
+			exit = (int) t.code.invokeExact(this, local, stack, fp, sp, esp);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+		t.nanos += System.nanoTime() - start;
+		t.entries++;
+		t.iterations += iterations;
+		Exit e = t.exits[exit];
+		e.count++;
+		pc = e.pc;
+		esp += e.depth;
+		if (e.fp >= 0) { // left in an inlined method
+			fp = sp + e.fp;
+			sp += e.sp;
+		}
+	}
+
+	// ----- recording
+
+	/**
+	 * Executes one iteration of the loop at header and returns the pcs of the
+	 * executed instructions, or null if recording was abandoned. Execution
+	 * continues at pc in both cases.
+	 */
+	private int[] record(int header) {
+		int[] path = new int[MAX_LENGTH];
+		int n = 0, frames = 0;
+		for (;;) {
+			int at = pc;
+			int op = code[at];
+			if (n == MAX_LENGTH || op == OpCode.trap.code()
+					|| op == OpCode.return_.code() && frames == 0
+					|| op == OpCode.call.code() && frames == MAX_INLINED) {
+				return null;
+			}
+			path[n++] = at;
+			step();
+			if (op == OpCode.call.code()) {
+				safepoint();
+				frames++;
+			} else if (op == OpCode.return_.code()) {
+				frames--;
+			} else if (op >= OpCode.jmp.code() && op <= OpCode.jge.code()
+					&& pc <= at) {
+				safepoint();
+				return pc == header && frames == 0 ? Arrays.copyOf(path, n)
+						: null;
+			}
+		}
+	}
+
+	/** Executes the instruction at pc like the standard interpreter. */
+	private void step() throws IllegalStateException {
+		OpCode op = OpCode.get(code[pc]);
+		int adr, val, idx;
+		switch (op) {
+		case load:
+			push(local[fp + code[pc + 1]]);
+			break;
+		case load_0:
+		case load_1:
+		case load_2:
+		case load_3:
+			push(local[fp + op.code() - OpCode.load_0.code()]);
+			break;
+		case store:
+			local[fp + code[pc + 1]] = pop();
+			break;
+		case store_0:
+		case store_1:
+		case store_2:
+		case store_3:
+			local[fp + op.code() - OpCode.store_0.code()] = pop();
+			break;
+		case getstatic:
+			push(data[get2(pc + 1)]);
+			break;
+		case putstatic:
+			data[get2(pc + 1)] = pop();
+			break;
+		case getfield:
+			push(JitInterpreter.getfield(pop(), get2(pc + 1), heap));
+			break;
+		case putfield:
+			val = pop();
+			JitInterpreter.putfield(pop(), val, get2(pc + 1), heap);
+			break;
+		case const_0:
+		case const_1:
+		case const_2:
+		case const_3:
+		case const_4:
+		case const_5:
+			push(op.code() - OpCode.const_0.code());
+			break;
+		case const_m1:
+			push(-1);
+			break;
+		case const_:
+			push((get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+			break;
+		case add:
+			push(pop() + pop());
+			break;
+		case sub:
+			push(-pop() + pop());
+			break;
+		case mul:
+			push(pop() * pop());
+			break;
+		case div:
+			val = pop();
+			push(JitInterpreter.div(pop(), val));
+			break;
+		case rem:
+			val = pop();
+			push(JitInterpreter.rem(pop(), val));
+			break;
+		case neg:
+			push(-pop());
+			break;
+		case shl:
+			val = pop();
+			push(pop() << val);
+			break;
+		case shr:
+			val = pop();
+			push(pop() >> val);
+			break;
+		case inc:
+			local[fp + code[pc + 1]] += code[pc + 2];
+			break;
+		case new_:
+			push(newObject(get2(pc + 1)));
+			break;
+		case newarray:
+			push(newArray(pop(), code[pc + 1]));
+			break;
+		case aload:
+			idx = pop();
+			push(JitInterpreter.aload(pop(), idx, heap));
+			break;
+		case astore:
+			val = pop();
+			idx = pop();
+			JitInterpreter.astore(pop(), idx, val, heap);
+			break;
+		case baload:
+			idx = pop();
+			push(JitInterpreter.baload(pop(), idx, heap));
+			break;
+		case bastore:
+			val = pop();
+			idx = pop();
+			JitInterpreter.bastore(pop(), idx, val, heap);
+			break;
+		case arraylength:
+			push(JitInterpreter.arraylength(pop(), heap));
+			break;
+		case pop:
+			pop();
+			break;
+		case dup:
+			val = pop();
+			push(val);
+			push(val);
+			break;
+		case dup2:
+			val = pop();
+			adr = pop();
+			push(adr);
+			push(val);
+			push(adr);
+			push(val);
+			break;
+		case jmp:
+			pc += get2(pc + 1);
+			return;
+		case jeq:
+		case jne:
+		case jlt:
+		case jle:
+		case jgt:
+		case jge:
+			val = pop();
+			if (PredecodedInterpreter.test(op.code() - OpCode.jeq.code(),
+					pop(), val)) {
+				pc += get2(pc + 1);
+				return;
+			}
+			break;
+		case call:
+			PUSH(pc + 3);
+			pc += get2(pc + 1);
+			return;
+		case return_:
+			pc = POP();
+			return;
+		case enter:
+			int psize = code[pc + 1];
+			int lsize = code[pc + 2];
+			PUSH(fp);
+			fp = sp;
+			for (int i = 0; i < lsize; i++) {
+				PUSH(0);
+			}
+			for (int i = psize - 1; i >= 0; i--) {
+				local[fp + i] = pop();
+			}
+			break;
+		case exit:
+			sp = fp;
+			fp = POP();
+			break;
+		case read:
+			push(readInt());
+			break;
+		case print:
+			val = pop();
+			printInt(pop(), val);
+			break;
+		case bread:
+			push(io.read());
+			break;
+		case bprint:
+			val = pop();
+			printChar(pop(), val);
+			break;
+		case nop:
+			break;
+		default:
+			throw new IllegalStateException("wrong opcode " + op);
+		}
+		pc += 1 + op.getOpsSize();
+	}
+
+	private int get2(int pos) {
+		return (short) ((code[pos] << 8) + (code[pos + 1] & 0xff));
+	}
+
+	// ----- compiled traces
+
+	/** A compiled trace and what happened to it. */
+	static final class Trace {
+		/** pc of the loop header, instructions and inlined calls. */
+		final int header, length, inlined;
+		/** Expression and method stack words used beyond the entry state. */
+		final int maxDepth, frameWords;
+		/** (TracingInterpreter, local, stack, fp, sp, esp) returns exit. */
+		final MethodHandle code;
+		final Exit[] exits;
+
+		// statistics
+		long entries, iterations, nanos;
+
+		Trace(int header, int length, int inlined, int maxDepth,
+				int frameWords, MethodHandle code, Exit[] exits) {
+			this.header = header;
+			this.length = length;
+			this.inlined = inlined;
+			this.maxDepth = maxDepth;
+			this.frameWords = frameWords;
+			this.code = code;
+			this.exits = exits;
+		}
+	}
+
+	/** Where execution continues after a guard of a trace failed. */
+	static final class Exit {
+		/** pc and number of values left on the expression stack. */
+		final int pc, depth;
+		/** fp and sp relative to sp at trace entry, -1 in the loop's method. */
+		final int fp, sp;
+
+		int count; // guard failures
+
+		Exit(int pc, int depth, int fp, int sp) {
+			this.pc = pc;
+			this.depth = depth;
+			this.fp = fp;
+			this.sp = sp;
+		}
+	}
+
+	// ----- runtime support for traces
+
+	int[] heapArray() {
+		return heap;
+	}
+
+	int[] dataArray() {
+		return data;
+	}
+
+	/** Passes the safepoint of an inlined call or of the jump back. */
+	static void safepoint(TracingInterpreter vm) {
+		vm.safepoint();
+	}
+
+	static void iterations(int n, TracingInterpreter vm) {
+		vm.iterations = n;
+	}
+
+	static int newObject(int nFields, TracingInterpreter vm) {
+		return vm.newObject(nFields);
+	}
+
+	static int newArray(int len, int elemSize, TracingInterpreter vm) {
+		return vm.newArray(len, elemSize);
+	}
+
+	static int read(TracingInterpreter vm) {
+		return vm.readInt();
+	}
+
+	static int bread(TracingInterpreter vm) {
+		return vm.io.read();
+	}
+
+	static void print(int val, int width, TracingInterpreter vm) {
+		vm.printInt(val, width);
+	}
+
+	static void bprint(int val, int width, TracingInterpreter vm) {
+		vm.printChar(val, width);
+	}
+
+	@Override
+	public String statistics() {
+		StringBuilder sb = new StringBuilder();
+		long entries = 0, iterations = 0, exits = 0, nanos = 0;
+		for (Trace t : compiled) {
+			entries += t.entries;
+			iterations += t.iterations;
+			nanos += t.nanos;
+			long guardFailures = 0;
+			for (Exit e : t.exits) {
+				guardFailures += e.count;
+			}
+			exits += guardFailures;
+			sb.append("\n  trace at ").append(t.header).append(": ")
+					.append(t.length).append(" instructions, ")
+					.append(t.inlined).append(" inlined calls, ")
+					.append(t.entries).append(" entries, ")
+					.append(t.iterations).append(" iterations, ")
+					.append(guardFailures).append(" guard failures (")
+					.append(percent(guardFailures, t.iterations + guardFailures))
+					.append("), ").append(t.nanos / 1000).append(" us");
+		}
+		return "tracing: " + compiled.size() + " traces compiled, "
+				+ recordingsAborted + " recordings abandoned, "
+				+ loopsBlacklisted + " loops blacklisted (threshold "
+				+ loopThreshold + " back-edges), " + entries + " entries, "
+				+ iterations + " iterations, " + exits + " guard failures ("
+				+ percent(exits, iterations + exits) + "), "
+				+ nanos / 1000000 + " ms in traces" + sb;
+	}
+
+	private static String percent(long n, long total) {
+		return total == 0 ? "0%"
+				: String.format("%.1f%%", 100.0 * n / total);
+	}
+}
@@ -0,0 +1,108 @@
+package ssw.mj.vm;
+
+import ssw.mj.Interpreter;
+
+/**
+ * The standard interpreter without stack checks in push, pop and POP. A
+ * stack overflow or underflow shows up as an index out of the bounds of the
+ * stack array, which the JVM checks anyway, and is reported with the message
+ * of the standard interpreter.
+ *
+ * For code checked by the {@link Verifier}, the expression stack is
+ * allocated with exactly as many words as the program needs (at most
+ * eStackSize) and, for programs without recursion, the method stack is
+ * allocated in the size the program needs, so it never has to grow.
+ */
+public class VerifiedInterpreter extends Interpreter {
+
+	private final boolean verified;
+
+	public VerifiedInterpreter(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug) {
+		this(code, startPC, dataSize, io, debug, verify(code, startPC,
+				dataSize));
+	}
+
+	/**
+	 * Creates the interpreter for code that v has verified already, or for
+	 * code that is not verifiable if v is null.
+	 */
+	public VerifiedInterpreter(byte[] code, int startPC, int dataSize, IO io,
+			boolean debug, Verifier v) {
+		super(code, startPC, dataSize, io, debug);
+		verified = v != null;
+		if (verified) {
+			int depth = v.maxStackDepth();
+			if (depth != Verifier.UNBOUNDED && depth < eStackSize) {
+				stack = new int[depth];
+				stackRef = new boolean[depth];
+			}
+			int words = v.maxMethodStack();
+			if (words != Verifier.UNBOUNDED && words > local.length) {
+				growLocal(Math.min(words, mStackSize));
+			}
+		}
+	}
+
+	/** Returns the verifier of the code, null if it is not verifiable. */
+	private static Verifier verify(byte[] code, int startPC, int dataSize) {
+		try {
+			return new Verifier(code, startPC, dataSize);
+		} catch (IllegalArgumentException e) {
+			return null; // keep the default stack sizes
+		}
+	}
+
+	/** Returns true if the code was verified. */
+	public boolean isVerified() {
+		return verified;
+	}
+
+	@Override
+	public void run() throws IllegalStateException {
+		try {
+			super.run();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			if (esp < 0) {
+				esp = 0;
+				throw new IllegalStateException("expression stack underflow");
+			}
+			if (sp < 0) {
+				sp = 0;
+				throw new IllegalStateException("method stack underflow");
+			}
+			if (esp == eStackSize) {
+				throw new IllegalStateException("expression stack overflow");
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	protected void push(int val) {
+		stack[esp] = val; // fails at the end of the stack
+		stackRef[esp++] = false;
+	}
+
+	@Override
+	protected int pop() {
+		return stack[--esp];
+	}
+
+	@Override
+	protected void PUSH(int val) {
+		if (sp == local.length) {
+			if (sp == mStackSize) {
+				throw new IllegalStateException("method stack overflow");
+			}
+			growLocal(sp + 1);
+		}
+		localRef[sp] = false;
+		local[sp++] = val;
+	}
+
+	@Override
+	protected int POP() {
+		return local[--sp];
+	}
+}
@@ -0,0 +1,99 @@
+package ssw.mj.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.CodeAnalyzer.Method;
+
+/**
+ * Load-time verifier for MicroJava object code. All methods reachable from
+ * main are checked by the {@link CodeAnalyzer}; in addition, global
+ * variables must lie in the data area. Verified code never under-runs the
+ * expression stack or the method stack.
+ *
+ * The verifier also computes how deep both stacks can get: the maximum over
+ * all call chains, which is unbounded if the program is recursive.
+ */
+public final class Verifier {
+
+	/** Stack size of recursive programs. */
+	public static final int UNBOUNDED = -1;
+
+	private final byte[] code;
+	private final CodeAnalyzer analyzer;
+	private final int maxStackDepth, maxMethodStack;
+
+	/** Stack sizes of the methods checked so far, null while in progress. */
+	private final Map<Method, int[]> sizes = new HashMap<Method, int[]>();
+
+	/**
+	 * Verifies the code of a program.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the code cannot be verified
+	 */
+	public Verifier(byte[] code, int startPC, int dataSize)
+			throws IllegalArgumentException {
+		this.code = code;
+		analyzer = new CodeAnalyzer(code);
+		analyzer.analyze(startPC);
+		for (Method m : analyzer.methods()) {
+			for (int pc : m.pcs) {
+				if ((code[pc] == OpCode.getstatic.code()
+						|| code[pc] == OpCode.putstatic.code())
+						&& (get2(pc + 1) < 0 || get2(pc + 1) >= dataSize)) {
+					throw new IllegalArgumentException("global variable "
+							+ get2(pc + 1) + " out of data area at " + pc);
+				}
+			}
+		}
+		int[] main = sizes(analyzer.methodAt(startPC));
+		maxStackDepth = main == null ? UNBOUNDED : main[0];
+		// main has no return address on the method stack
+		maxMethodStack = main == null ? UNBOUNDED : main[1] - 1;
+	}
+
+	/** Maximum depth of the expression stack or UNBOUNDED. */
+	public int maxStackDepth() {
+		return maxStackDepth;
+	}
+
+	/** Maximum number of words on the method stack or UNBOUNDED. */
+	public int maxMethodStack() {
+		return maxMethodStack;
+	}
+
+	/**
+	 * Returns the words that m and its callees use on the expression stack
+	 * and on the method stack, or null if m is recursive.
+	 */
+	private int[] sizes(Method m) {
+		if (sizes.containsKey(m)) {
+			return sizes.get(m);
+		}
+		sizes.put(m, null);
+		int stack = m.maxDepth, frames = 0;
+		for (int pc : m.pcs) {
+			if (code[pc] == OpCode.call.code()) {
+				Method callee = analyzer.methodAt(analyzer.targetAt(pc));
+				int[] s = sizes(callee);
+				if (s == null) {
+					return null;
+				}
+				// the part of the callee starts below its arguments
+				stack = Math.max(stack,
+						analyzer.depthAt(pc) - callee.nPars + s[0]);
+				frames = Math.max(frames, s[1]);
+			}
+		}
+		// return address, fp and locals
+		int[] s = { stack, 2 + m.nLocals + frames };
+		sizes.put(m, s);
+		return s;
+	}
+
+	private int get2(int pos) {
+		return (code[pos] << 8) + (code[pos + 1] & 0xff);
+	}
+}
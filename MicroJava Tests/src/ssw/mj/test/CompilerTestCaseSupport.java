@@ -14,9 +14,11 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.rules.Timeout;
 
+import ssw.mj.ComparingIO;
 import ssw.mj.Errors;
 import ssw.mj.Interpreter;
 import ssw.mj.Token;
+import ssw.mj.codegen.Code.OpCode;
 import ssw.mj.codegen.Decoder;
 import ssw.mj.impl.ParserImpl;
 import ssw.mj.impl.ScannerImpl;
@@ -24,6 +26,7 @@ import ssw.mj.symtab.Obj;
 import ssw.mj.symtab.Scope;
 import ssw.mj.symtab.Struct;
 import ssw.mj.symtab.Tab;
+import ssw.mj.vm.Engine;
 
 /**
  * Base class for test cases with utility methods used by all tests.
@@ -174,16 +177,29 @@ public abstract class CompilerTestCaseSupport {
 		}
 
 		for (int i = 0; i < runInputs.size(); i++) {
-			Interpreter.BufferIO io = new Interpreter.BufferIO(
-					runInputs.get(i));
-			Interpreter inter = new Interpreter(parser.code.buf,
+			// compared while running, so that wrong output stops the run
+			ComparingIO io = new ComparingIO(runInputs.get(i),
+					new StringReader(expectedOutputs.get(i)));
+			Interpreter inter = Configuration.ENGINE.create(parser.code.buf,
 					parser.code.mainpc, parser.code.dataSize, io,
 					Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
-			inter.run();
-			String output = io.getOutput();
-			Assert.assertEquals("Unexpected result when input is \""
-					+ runInputs.get(i) + "\": ", expectedOutputs.get(i),
-					output);
+			try {
+				inter.run();
+				io.checkEnd();
+			} catch (ComparingIO.Mismatch e) {
+				// run again to show the whole output
+				Interpreter.BufferIO out = new Interpreter.BufferIO(
+						runInputs.get(i));
+				try {
+					create(Configuration.ENGINE, out).run();
+				} catch (IllegalStateException ex) {
+					// reported with the output below
+				}
+				Assert.assertEquals("Unexpected result when input is \""
+						+ runInputs.get(i) + "\" (" + e.getMessage() + ")",
+						expectedOutputs.get(i), out.getOutput());
+				Assert.fail(e.getMessage()); // if the output differs no more
+			}
 		}
 	}
 
@@ -247,6 +263,24 @@ public abstract class CompilerTestCaseSupport {
 		expectSymTab("  Local Variable 0: void[] arr");
 	}
 
+	/** Creates an interpreter of engine for the parsed program. */
+	protected Interpreter create(Engine engine, Interpreter.IO io) {
+		return engine.create(parser.code.buf, parser.code.mainpc,
+				parser.code.dataSize, io, false);
+	}
+
+	/** Returns the pc of the first instruction op in the parsed code. */
+	protected int find(OpCode op) {
+		for (int pc = 0; pc < parser.code.pc;) {
+			OpCode o = OpCode.get(parser.code.buf[pc]);
+			if (o == op) {
+				return pc;
+			}
+			pc += 1 + o.getOpsSize();
+		}
+		throw new AssertionError(op + " not found");
+	}
+
 	private static String dump(Tab tab) {
 		StringBuilder sb = new StringBuilder();
 		if (tab.curScope != null) {
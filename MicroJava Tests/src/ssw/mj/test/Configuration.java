@@ -1,6 +1,7 @@
 package ssw.mj.test;
 
 import ssw.mj.codegen.Decoder;
+import ssw.mj.vm.Engine;
 
 public class Configuration {
 	/**
@@ -27,6 +28,13 @@ public class Configuration {
 	public static final boolean PRINT_DECODED_BYTE_CODE = Boolean
 			.getBoolean("microjava.decodeBytecode");
 
+	/**
+	 * Execution engine used to run the compiled test programs. Default:
+	 * standard. Equal to "-engine" on the command line.
+	 */
+	public static final Engine ENGINE = Engine
+			.valueOf(System.getProperty("microjava.engine", "standard"));
+
 	/**
 	 * Determines the timeout after which a test case should fail automatically.
 	 * Default: 10000 (= 10 seconds). The default should work for all test cases
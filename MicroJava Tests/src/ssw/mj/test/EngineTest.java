@@ -0,0 +1,448 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.ExecutionListener;
+import ssw.mj.Interpreter;
+import ssw.mj.vm.ClosureInterpreter;
+import ssw.mj.vm.Engine;
+import ssw.mj.vm.JitInterpreter;
+import ssw.mj.vm.RegisterInterpreter;
+import ssw.mj.vm.TieredInterpreter;
+import ssw.mj.vm.TracingInterpreter;
+
+/**
+ * Runs programs on all execution engines and checks that they produce the
+ * same output and the same runtime errors.
+ */
+public class EngineTest extends CompilerTestCaseSupport {
+
+	private static final String FIB = "program Fib" + LF + //
+			"{" + LF + //
+			"  int fib(int n) {" + LF + //
+			"    if (n <= 1) return n;" + LF + //
+			"    return fib(n - 1) + fib(n - 2);" + LF + //
+			"  }" + LF + //
+			"  void main() int n; {" + LF + //
+			"    read(n);" + LF + //
+			"    print(fib(n));" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String SORT = "program Sort" + LF + //
+			"  int[] a;" + LF + //
+			"{" + LF + //
+			"  void sort() int i, j, t; {" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < len(a)) {" + LF + //
+			"      j = len(a) - 1;" + LF + //
+			"      while (j > i) {" + LF + //
+			"        if (a[j - 1] > a[j]) {" + LF + //
+			"          t = a[j]; a[j] = a[j - 1]; a[j - 1] = t;" + LF + //
+			"        }" + LF + //
+			"        j--;" + LF + //
+			"      }" + LF + //
+			"      i++;" + LF + //
+			"    }" + LF + //
+			"  }" + LF + //
+			"  void main() int n, i; {" + LF + //
+			"    read(n);" + LF + //
+			"    a = new int[n];" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { a[i] = (i * 7919) % 101 - 50; i++; }" + LF + //
+			"    sort();" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { print(a[i], 4); i += n / 5; }" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String ERRORS = "program Errors" + LF + //
+			"  class C { int x; }" + LF + //
+			"{" + LF + //
+			"  int noReturn() { }" + LF + //
+			"  void main() int n; int[] a; char[] s; C c; {" + LF + //
+			"    read(n);" + LF + //
+			"    a = new int[3]; s = new char[5];" + LF + //
+			"    if (n == 0) print(10 / (n - n));" + LF + //
+			"    if (n == 1) a[n + 2] = 1;" + LF + //
+			"    if (n == 2) print(s[n - 3]);" + LF + //
+			"    if (n == 3) print(c.x);" + LF + //
+			"    if (n == 4) print(noReturn());" + LF + //
+			"    if (n == 5) { s[4] = 'z'; print(s[4]); print(len(s)); }" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String RECURSION = "program Recursion" + LF + //
+			"{" + LF + //
+			"  int depth(int n, int max) {" + LF + //
+			"    if (n == max) return n;" + LF + //
+			"    return depth(n + 1, max);" + LF + //
+			"  }" + LF + //
+			"  void main() int max; {" + LF + //
+			"    read(max);" + LF + //
+			"    print(depth(0, max));" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String STACK = "program Stack" + LF + //
+			"{" + LF + //
+			"  int depth(int n) {" + LF + //
+			"    if (n == 0) return 0;" + LF + //
+			"    return 1 + depth(n - 1);" + LF + //
+			"  }" + LF + //
+			"  void main() int n; {" + LF + //
+			"    read(n);" + LF + //
+			"    print(depth(n));" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String INCREMENTS = "program Increments" + LF + //
+			"  class C { int x, y; }" + LF + //
+			"  int count;" + LF + //
+			"{" + LF + //
+			"  void main() int n, i, j; int[] a; char[] s; C c; {" + LF + //
+			"    read(n);" + LF + //
+			"    a = new int[4]; s = new char[4]; c = new C;" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) {" + LF + //
+			"      j = i % 4;" + LF + //
+			"      a[j]++; c.y += 3; count--;" + LF + //
+			"      if (i - j >= 8) a[j] += i + j;" + LF + //
+			"      i++;" + LF + //
+			"    }" + LF + //
+			"    print(a[0], 4); print(a[3], 4); print(c.y, 4); print(count, 4);"
+			+ LF + //
+			"    s[1] = 'a'; print(s[1], 2);" + LF + //
+			"    if (n < 0) c = null;" + LF + //
+			"    if (n == -1) c.x++;" + LF + //
+			"    if (n == -2) a[n + 6]++;" + LF + //
+			"    if (n == -3) a[n]--;" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String LOOPS = "program Loops" + LF + //
+			"  class Node { int val; Node next; }" + LF + //
+			"  class Cell { int x; }" + LF + //
+			"  class Box { int[] arr; int k; Box next; }" + LF + //
+			"  int[] g;" + LF + //
+			"{" + LF + //
+			"  int sum(Node p) int s; {" + LF + //
+			"    while (p != null) { s += p.val; p = p.next; }" + LF + //
+			"    return s;" + LF + //
+			"  }" + LF + //
+			"  void main() int n, i, s; int[] a; char[] c; Node p, q;" + LF + //
+			"      Cell[] cs; Box b; {" + LF + //
+			"    read(n);" + LF + //
+			"    a = new int[5]; c = new char[5]; g = new int[3];" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < len(a)) { a[i] = i; c[i] = 'a'; a[i]++; i++; }" + LF + //
+			"    i = 0;" + LF + //
+			"    while (len(g) > i) { g[i] = a[i] * 10; i = i + 1; }" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < len(a)) { s += a[i]; print(c[i]); i += 2; }" + LF + //
+			"    print(s, 3); print(g[2], 3);" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < 4) { q = new Node; q.val = a[i]; q.next = p; p = q; i++; }"
+			+ LF + //
+			"    print(sum(p), 3);" + LF + //
+			"    if (n == 1) { i = 0; while (i < len(a)) { s += a[i + 1]; i++; } }"
+			+ LF + //
+			"    if (n == 2) { i = n - 3; while (i < len(a)) { s += a[i]; i++; } }"
+			+ LF + //
+			"    if (n == 3) { i = 0; while (i < len(a)) { s += g[i]; i++; } }"
+			+ LF + //
+			"    if (n == 4) { while (p != null) { s += p.next.val; p = p.next; } }"
+			+ LF + //
+			// accesses whose operands the loop condition does not check
+			"    if (n == 5) { cs = new Cell[3]; i = 0;" + LF + //
+			"      while (i < len(cs)) { print(cs[i].x); i++; } }" + LF + //
+			"    if (n >= 6) { b = new Box; b.arr = new int[2]; b.k = 5; }" + LF + //
+			"    if (n == 6) { while (b != null) { print(b.arr[b.k]); b = b.next; } }"
+			+ LF + //
+			"    if (n == 7) { while (b != null) { b.arr[b.k] = 1; b = b.next; } }"
+			+ LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String TRACES = "program Traces" + LF + //
+			"  int[] g;" + LF + //
+			"{" + LF + //
+			"  int f(int v) int r; {" + LF + //
+			"    if (v > 7) { r = v % 3; g[r]++; return 10 + r; }" + LF + //
+			"    return v;" + LF + //
+			"  }" + LF + //
+			"  void main() int n, i, s; {" + LF + //
+			"    read(n);" + LF + //
+			"    g = new int[3];" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { s = s + 2 * f(i); i++; }" + LF + //
+			"    print(s, 4); print(g[0], 3); print(g[1], 3); print(g[2], 3);"
+			+ LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { s = s + 100 / f(i - n + 25); i++; }" + LF + //
+			"    print(s, 5);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String GARBAGE = "program Garbage" + LF + //
+			"  class Node { int val; Node next; }" + LF + //
+			"{" + LF + //
+			"  void main() int i, n; Node p, q; {" + LF + //
+			"    read(n);" + LF + //
+			"    while (i < n) { q = new Node; q.val = i; q.next = p; p = q;"
+			+ LF + //
+			"      if (i % 10 == 0) p = null;" + LF + //
+			"      i++; }" + LF + //
+			"    print(q.val);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private void verifyAllEngines(String input, String output) {
+		for (Engine engine : Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+			create(engine, io).run();
+			Assert.assertEquals(
+					"Engine " + engine + " with input \"" + input + "\"",
+					output, io.getOutput());
+		}
+	}
+
+	private void verifyCompiled() {
+		Assert.assertTrue("compiled by JIT",
+				new JitInterpreter(parser.code.buf, parser.code.mainpc,
+						parser.code.dataSize, new Interpreter.BufferIO(""),
+						false).isCompiled());
+		Assert.assertTrue("translated to register code",
+				new RegisterInterpreter(parser.code.buf, parser.code.mainpc,
+						parser.code.dataSize, new Interpreter.BufferIO(""),
+						false).isTranslated());
+		Assert.assertTrue("compiled to closures",
+				new ClosureInterpreter(parser.code.buf, parser.code.mainpc,
+						parser.code.dataSize, new Interpreter.BufferIO(""),
+						false).isCompiled());
+	}
+
+	/**
+	 * Runs the program in the tiered interpreter with thresholds that switch
+	 * tiers at many different points.
+	 */
+	private void verifyTiers(String input, String output) {
+		for (int threshold = 0; threshold <= 5; threshold++) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+			TieredInterpreter vm = new TieredInterpreter(parser.code.buf,
+					parser.code.mainpc, parser.code.dataSize, io, false);
+			vm.setThresholds(threshold, threshold * 3);
+			try {
+				vm.run();
+			} catch (IllegalStateException e) {
+				io.write('!');
+				for (char ch : e.getMessage().toCharArray()) {
+					io.write(ch);
+				}
+			}
+			Assert.assertEquals("Threshold " + threshold, output,
+					io.getOutput());
+		}
+	}
+
+	/**
+	 * Runs the program in the tracing interpreter with thresholds that record
+	 * loops in many different iterations and returns the number of traces
+	 * compiled with threshold 0.
+	 */
+	private int verifyTraces(String input, String output) {
+		int traces = 0;
+		for (int threshold = 5; threshold >= 0; threshold--) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+			TracingInterpreter vm = new TracingInterpreter(parser.code.buf,
+					parser.code.mainpc, parser.code.dataSize, io, false);
+			vm.setThreshold(threshold);
+			try {
+				vm.run();
+			} catch (IllegalStateException e) {
+				io.write('!');
+				for (char ch : e.getMessage().toCharArray()) {
+					io.write(ch);
+				}
+			}
+			Assert.assertEquals("Threshold " + threshold, output,
+					io.getOutput());
+			traces = vm.tracesCompiled();
+		}
+		return traces;
+	}
+
+	private void verifyAllEnginesFail(String input, String message) {
+		for (Engine engine : Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+			try {
+				create(engine, io).run();
+				Assert.fail("Engine " + engine + " with input \"" + input
+						+ "\" should fail with " + message);
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("Engine " + engine, message,
+						e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void fib() {
+		init(FIB);
+		addExpectedRun("20", "6765");
+		parseAndVerify();
+		verifyAllEngines("0", "0");
+		verifyAllEngines("1", "1");
+		verifyAllEngines("20", "6765");
+		verifyTiers("15", "610");
+		verifyCompiled();
+	}
+
+	@Test
+	public void sort() {
+		init(SORT);
+		parseAndVerify();
+		verifyAllEngines("10", " -50 -28  -9  13  32");
+		verifyAllEngines("100", " -50 -30 -10  11  31");
+		verifyTiers("10", " -50 -28  -9  13  32");
+		Assert.assertEquals(3, verifyTraces("10", " -50 -28  -9  13  32"));
+		verifyCompiled();
+	}
+
+	@Test
+	public void runtimeErrors() {
+		init(ERRORS);
+		parseAndVerify();
+		verifyAllEnginesFail("0", "division by zero");
+		verifyAllEnginesFail("1", "index out of bounds");
+		verifyAllEnginesFail("2", "index out of bounds");
+		verifyAllEnginesFail("3", "null reference used");
+		verifyAllEnginesFail("4", "trap(1)");
+		verifyAllEngines("5", "z5");
+		verifyAllEngines("6", "");
+		verifyCompiled();
+	}
+
+	@Test
+	public void methodStackOverflow() {
+		init(RECURSION);
+		parseAndVerify();
+		// frames of depth() take 4 words, main takes 2
+		verifyAllEngines("998", "998");
+		verifyAllEnginesFail("999", "method stack overflow");
+		verifyTiers("10", "10");
+		verifyTiers("999", "!method stack overflow");
+	}
+
+	@Test
+	public void superinstructions() {
+		init(INCREMENTS);
+		parseAndVerify();
+		verifyAllEngines("0", "   0   0   0   0 a");
+		verifyAllEngines("30", " 116 117  90 -30 a");
+		verifyAllEnginesFail("-1", "null reference used");
+		verifyAllEnginesFail("-2", "index out of bounds");
+		verifyAllEnginesFail("-3", "index out of bounds");
+		verifyTiers("30", " 116 117  90 -30 a");
+		Assert.assertEquals(1, verifyTraces("30", " 116 117  90 -30 a"));
+		verifyCompiled();
+	}
+
+	/**
+	 * Accesses in loops that are proven safe at load time behave as before,
+	 * those that cannot be proven keep their checks.
+	 */
+	@Test
+	public void checkElimination() {
+		init(LOOPS);
+		parseAndVerify();
+		verifyAllEngines("0", "aaa  9 30 10");
+		verifyAllEnginesFail("1", "index out of bounds");
+		verifyAllEnginesFail("2", "index out of bounds");
+		verifyAllEnginesFail("3", "index out of bounds");
+		verifyAllEnginesFail("4", "null reference used");
+		verifyAllEnginesFail("5", "null reference used");
+		verifyAllEnginesFail("6", "index out of bounds");
+		verifyAllEnginesFail("7", "index out of bounds");
+		verifyTiers("0", "aaa  9 30 10");
+		verifyTraces("0", "aaa  9 30 10");
+		verifyTraces("1", "aaa  9 30 10!index out of bounds");
+		verifyTraces("4", "aaa  9 30 10!null reference used");
+		verifyCompiled();
+	}
+
+	/**
+	 * Guards fail inside inlined calls, with operands of the caller on the
+	 * stack, and at runtime errors in traces.
+	 */
+	@Test
+	public void traces() {
+		init(TRACES);
+		parseAndVerify();
+		verifyAllEngines("5", "  20  0  0  0   65");
+		verifyAllEngines("20", " 320  4  4  4  523");
+		verifyAllEnginesFail("30", "division by zero");
+		Assert.assertEquals(2, verifyTraces("20", " 320  4  4  4  523"));
+		verifyTraces("30", " 542  7  7  8!division by zero");
+		verifyCompiled();
+	}
+
+	@Test
+	public void expressionStackOverflow() {
+		init(STACK);
+		parseAndVerify();
+		// every pending addition keeps a 1 on the expression stack
+		verifyAllEngines("28", "28");
+		verifyAllEnginesFail("29", "expression stack overflow");
+		verifyCompiled();
+	}
+
+	/**
+	 * Only the standard and the verified interpreter collect garbage, and
+	 * observed runs, which every engine executes with the standard loop.
+	 */
+	@Test
+	public void garbageCollection() {
+		init(GARBAGE);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			for (boolean observed : new boolean[] { false, true }) {
+				Interpreter.BufferIO io = new Interpreter.BufferIO("100000");
+				Interpreter vm = create(engine, io);
+				if (observed) {
+					vm.setListener(new ExecutionListener.Adapter());
+				}
+				boolean collects = observed || engine == Engine.standard
+						|| engine == Engine.verified;
+				try {
+					vm.run();
+					Assert.assertTrue("Engine " + engine + " collected",
+							collects);
+					Assert.assertEquals("Engine " + engine, "99999",
+							io.getOutput());
+				} catch (IllegalStateException e) {
+					Assert.assertFalse("Engine " + engine + ": " + e, collects);
+					Assert.assertEquals("heap overflow", e.getMessage());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void relops() {
+		initFile("relops.mj");
+		parseAndVerify();
+		verifyAllEngines("0", "!=,<,<=,");
+		verifyAllEngines("1", "==,<=,>=,");
+		verifyAllEngines("2", "!=,>,>=,");
+	}
+
+	@Test
+	public void animals() {
+		initFile("animals.mj");
+		parseAndVerify();
+		verifyAllEngines("0", "cat");
+		verifyAllEngines("2", "octopus");
+	}
+}
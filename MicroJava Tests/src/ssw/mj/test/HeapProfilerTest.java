@@ -0,0 +1,96 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.HeapProfiler;
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the allocation sites and the heap dump of the heap profiler, also
+ * after the collector moved the blocks.
+ */
+public class HeapProfilerTest extends CompilerTestCaseSupport {
+
+	private static final String GROW = "program Grow" + LF + //
+			"  class Node { int val; Node next; }" + LF + //
+			"  Node keep;" + LF + //
+			"{" + LF + //
+			"  void main() int i, n; Node p; int[] a; {" + LF + //
+			"    read(n);" + LF + //
+			"    i = 0;" + LF + //
+			"    while (n < 0 || i < n) {" + LF + //
+			"      p = new Node; p.val = i;" + LF + //
+			"      if (n < 0 || i % 100 == 0) { p.next = keep; keep = p; }"
+			+ LF + //
+			"      a = new int[10];" + LF + //
+			"      i++;" + LF + //
+			"    }" + LF + //
+			"  }" + LF + //
+			"}";
+
+	@Test
+	public void sites() {
+		init(GROW);
+		parseAndVerify();
+		int newNode = find(OpCode.new_), newArray = find(OpCode.newarray);
+		for (Engine engine : Engine.values()) {
+			for (boolean generational : new boolean[] { false, true }) {
+				String msg = "Engine " + engine + ", generational "
+						+ generational;
+				Interpreter inter = create(engine,
+						new Interpreter.BufferIO("20000"));
+				inter.setGenerational(generational);
+				HeapProfiler p = inter.profileHeap();
+				inter.run();
+				Assert.assertEquals(msg, 20000, p.allocations(newNode));
+				Assert.assertEquals(msg, 3 * 20000, p.allocatedWords(newNode));
+				Assert.assertEquals(msg, 20000, p.allocations(newArray));
+				Assert.assertEquals(msg, 12 * 20000,
+						p.allocatedWords(newArray));
+				Assert.assertEquals(msg, -1, p.failedSite());
+
+				// the kept nodes were moved by the collector with their sites
+				String dump = p.dump(5);
+				Assert.assertTrue(msg + ": " + dump, dump.startsWith(
+						"live heap: 200 blocks, 600 words\n"));
+				Assert.assertTrue(msg + ": " + dump, dump.matches("(?s).*\n\\s+"
+						+ newNode + ",\\s+3:\\s+200\\s+600 100.0%"));
+			}
+		}
+	}
+
+	/** The site of the allocation that overflows the heap is reported. */
+	@Test
+	public void overflow() {
+		init(GROW);
+		parseAndVerify();
+		Interpreter inter = create(Engine.standard,
+				new Interpreter.BufferIO("-1"));
+		HeapProfiler p = inter.profileHeap();
+		try {
+			inter.run();
+			Assert.fail("heap overflow expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("heap overflow", e.getMessage());
+		}
+		int site = p.failedSite();
+		Assert.assertTrue(site == find(OpCode.new_)
+				|| site == find(OpCode.newarray));
+		Assert.assertTrue(p.report(2), p.report(2).matches(
+				"allocations: \\d+ blocks, \\d+ words, heap overflow at "
+						+ site + " allocating \\d+ words\n(?s).*"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void heapLimit() {
+		init(GROW);
+		parseAndVerify();
+		Interpreter inter = create(Engine.standard,
+				new Interpreter.BufferIO("1"));
+		inter.profileHeap();
+		inter.setHeapLimit(1 << 20);
+	}
+}
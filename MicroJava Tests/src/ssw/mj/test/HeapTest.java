@@ -0,0 +1,293 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the garbage collector of the standard interpreter with programs that
+ * allocate far more than the heap holds.
+ */
+public class HeapTest extends CompilerTestCaseSupport {
+
+	private static final String LISTS = "program Lists" + LF + //
+			"  class Node { int val; char[] name; Node next; }" + LF + //
+			"  Node[] keep;" + LF + //
+			"{" + LF + //
+			"  Node list(int n) Node head, p; int i; {" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) {" + LF + //
+			"      p = new Node; p.val = i; p.next = head;" + LF + //
+			"      p.name = new char[3]; p.name[0] = 'a';" + LF + //
+			"      p.name[1] = chr(ord('a') + i % 26); p.name[2] = 'z';" + LF + //
+			"      head = p;" + LF + //
+			"      i++;" + LF + //
+			"    }" + LF + //
+			"    return head;" + LF + //
+			"  }" + LF + //
+			"  int sum(Node p) int s; {" + LF + //
+			"    while (p != null) {" + LF + //
+			"      s = s + p.val + ord(p.name[1]) - ord(p.name[0]);" + LF + //
+			"      p = p.next;" + LF + //
+			"    }" + LF + //
+			"    return s;" + LF + //
+			"  }" + LF + //
+			"  void main() int rounds, len, i, total; Node garbage; {" + LF + //
+			"    read(rounds); read(len);" + LF + //
+			"    keep = new Node[rounds];" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < rounds) {" + LF + //
+			"      garbage = list(len);" + LF + //
+			"      keep[i] = list(i % 4);" + LF + // keep is on the stack
+			"      total = total + sum(list(len)) - sum(keep[i]);" + LF + //
+			"      i++;" + LF + //
+			"    }" + LF + //
+			"    print(total); print(' ');" + LF + //
+			"    i = 0; total = 0;" + LF + //
+			"    while (i < rounds) { total = total + sum(keep[i]); i++; }"
+			+ LF + //
+			"    print(total);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String GROW = "program Grow" + LF + //
+			"  class Node { int[] data; Node next; }" + LF + //
+			"{" + LF + //
+			"  void main() Node head, p; int n; {" + LF + //
+			"    while (n >= 0) {" + LF + //
+			"      p = new Node; p.data = new int[100]; p.next = head;" + LF + //
+			"      head = p; n++;" + LF + //
+			"      if (n % 100 == 0) { print(n); print(' '); }" + LF + //
+			"    }" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String BIG = "program Big" + LF + //
+			"{" + LF + //
+			"  void main() int[] a; char[] s; int n, i, sum; {" + LF + //
+			"    read(n);" + LF + //
+			"    a = new int[n]; s = new char[n];" + LF + //
+			"    while (i < n) { a[i] = i % 1000; s[i] = 'x'; i++; }" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { sum = sum + a[i] + ord(s[i]) - 120; i++; }"
+			+ LF + //
+			"    print(sum);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private Interpreter run(Interpreter.BufferIO io) {
+		return run(io, false, 0);
+	}
+
+	private Interpreter run(Interpreter.BufferIO io, boolean generational) {
+		return run(io, generational, 0);
+	}
+
+	private Interpreter run(Interpreter.BufferIO io, boolean generational,
+			long heapLimit) {
+		Interpreter vm = new Interpreter(parser.code.buf, parser.code.mainpc,
+				parser.code.dataSize, io, false);
+		vm.setGenerational(generational);
+		if (heapLimit > 0) {
+			vm.setHeapLimit(heapLimit);
+		}
+		vm.run();
+		return vm;
+	}
+
+	@Test
+	public void garbage() {
+		init(LISTS);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("300 1000");
+		Interpreter vm = run(io);
+		Assert.assertEquals(expected(300, 1000), io.getOutput());
+		Assert.assertNotNull("garbage collected", vm.statistics());
+	}
+
+	@Test
+	public void noGarbage() {
+		init(LISTS);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("10 10");
+		Interpreter vm = run(io);
+		Assert.assertEquals(expected(10, 10), io.getOutput());
+		Assert.assertNull("no collection", vm.statistics());
+	}
+
+	@Test
+	public void heapOverflow() {
+		init(GROW);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		try {
+			run(io);
+			Assert.fail("heap overflow expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("heap overflow", e.getMessage());
+		}
+		// nodes take 2 + 1 + 102 words
+		Assert.assertTrue(io.getOutput().endsWith(" 900 "));
+	}
+
+	@Test
+	public void generational() {
+		init(LISTS);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("300 1000");
+		Interpreter vm = run(io, true);
+		Assert.assertEquals(expected(300, 1000), io.getOutput());
+		Assert.assertTrue(vm.statistics().startsWith("gc young: "));
+	}
+
+	@Test
+	public void generationalHeapOverflow() {
+		init(GROW);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		try {
+			run(io, true);
+			Assert.fail("heap overflow expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("heap overflow", e.getMessage());
+		}
+		Assert.assertTrue(io.getOutput().endsWith(" 900 "));
+	}
+
+	/** Old arrays that are filled with young nodes after every collection. */
+	@Test
+	public void writeBarrier() {
+		init(LISTS);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("3000 200");
+		Interpreter vm = run(io, true);
+		Assert.assertEquals(expected(3000, 200), io.getOutput());
+		Assert.assertNotNull(vm.statistics());
+	}
+
+	@Test
+	public void offHeap() {
+		init(LISTS);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("300 1000");
+		Interpreter vm = run(io, false, 400000);
+		Assert.assertEquals(expected(300, 1000), io.getOutput());
+		Assert.assertNotNull(vm.statistics());
+
+		io = new Interpreter.BufferIO("3000 200");
+		run(io, true, 400000);
+		Assert.assertEquals(expected(3000, 200), io.getOutput());
+	}
+
+	@Test
+	public void offHeapOverflow() {
+		init(GROW);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		try {
+			run(io, false, 400000);
+			Assert.fail("heap overflow expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("heap overflow", e.getMessage());
+		}
+		Assert.assertTrue(io.getOutput().endsWith(" 900 "));
+	}
+
+	@Test
+	public void largeArrays() {
+		init(BIG);
+		parseAndVerify();
+		int n = 3000000;
+		long sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += i % 1000;
+		}
+		Interpreter.BufferIO io = new Interpreter.BufferIO("" + n);
+		run(io, false, 64 << 20);
+		Assert.assertEquals("" + sum, io.getOutput());
+
+		io = new Interpreter.BufferIO("" + n);
+		try {
+			run(io, false, 0);
+			Assert.fail("heap overflow expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("heap overflow", e.getMessage());
+		}
+	}
+
+	private static final String HUGE = "program Huge" + LF + //
+			"{" + LF + //
+			"  void main() int[] a; char[] s; int n; {" + LF + //
+			"    read(n);" + LF + //
+			"    if (n > 0) { a = new int[n]; a[5] = 55; print(a[5]); }" + LF + //
+			"    else { s = new char[-n]; s[5] = 'x'; print(s[5]); }" + LF + //
+			"  }" + LF + //
+			"}";
+
+	/** The size of arrays near Integer.MAX_VALUE elements must not wrap. */
+	@Test
+	public void hugeArrays() {
+		init(HUGE);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			for (String n : new String[] { "2147483647", "2147483646",
+					"268435455", "-2147483647" }) {
+				for (long heapLimit : new long[] { 0, 1 << 20 }) {
+					Interpreter vm = create(engine,
+							new Interpreter.BufferIO(n));
+					if (heapLimit > 0) {
+						vm.setHeapLimit(heapLimit);
+					}
+					try {
+						vm.run();
+						Assert.fail("Engine " + engine + ", n " + n
+								+ ": heap overflow expected");
+					} catch (IllegalStateException e) {
+						Assert.assertEquals("heap overflow", e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void committedOnDemand() {
+		init(LISTS);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("10 10");
+		Interpreter vm = run(io);
+		Assert.assertEquals(expected(10, 10), io.getOutput());
+		Assert.assertTrue(vm.committedBytes() < 16 * 1024);
+
+		io = new Interpreter.BufferIO("300 1000");
+		vm = run(io);
+		Assert.assertEquals(expected(300, 1000), io.getOutput());
+		Assert.assertTrue(vm.committedBytes() >= 100000 * 4);
+		Assert.assertNotNull("garbage collected", vm.statistics());
+		// heap and forward addresses
+		Assert.assertTrue(vm.committedBytes() >= 2 * 100000 * 4);
+	}
+
+	/** Output of LISTS computed in Java. */
+	private static String expected(int rounds, int len) {
+		int total = 0;
+		for (int i = 0; i < rounds; i++) {
+			total += sum(len) - sum(i % 4);
+		}
+		int kept = 0;
+		for (int i = 0; i < rounds; i++) {
+			kept += sum(i % 4);
+		}
+		return total + " " + kept;
+	}
+
+	private static int sum(int n) {
+		int s = 0;
+		for (int i = 0; i < n; i++) {
+			s += i + i % 26;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,270 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.ComparisonFailure;
+import org.junit.Test;
+
+import ssw.mj.ChannelIO;
+import ssw.mj.ComparingIO;
+import ssw.mj.Interpreter;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the buffered and comparing I/O of the VM and formatted output of
+ * programs.
+ */
+public class IOTest extends CompilerTestCaseSupport {
+
+	private static final String PRINT = "program Print" + LF + //
+			"{" + LF + //
+			"  void main() int n, i; {" + LF + //
+			"    read(n);" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { print(i * 37 - 500, 5); print('x', 2); print(i); i++; }"
+			+ LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String FAIL = "program Fail" + LF + //
+			"{" + LF + //
+			"  void main() int n; {" + LF + //
+			"    read(n);" + LF + //
+			"    print(n, 3); print('!');" + LF + //
+			"    print(10 / n);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	/** Formats integers like Integer.toString with padding. */
+	private static String expected(int val, int width) {
+		String s = Integer.toString(val);
+		StringBuilder sb = new StringBuilder();
+		for (int i = s.length(); i < width; i++) {
+			sb.append(' ');
+		}
+		return sb.append(s).toString();
+	}
+
+	@Test
+	public void writeInt() {
+		int[] vals = { 0, 7, -7, 10, -10, 123456789, Integer.MAX_VALUE,
+				Integer.MIN_VALUE };
+		StringBuilder sb = new StringBuilder();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		for (int val : vals) {
+			for (int width = -1; width <= 12; width++) {
+				io.writeInt(val, width);
+				sb.append(expected(val, width));
+			}
+		}
+		Assert.assertEquals(sb.toString(), io.getOutput());
+
+		ComparingIO cmp = new ComparingIO("", new StringReader(sb.toString()));
+		for (int val : vals) {
+			for (int width = -1; width <= 12; width++) {
+				cmp.writeInt(val, width);
+			}
+		}
+		cmp.checkEnd();
+	}
+
+	@Test
+	public void largeOutput() {
+		StringBuilder sb = new StringBuilder();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		for (int i = 0; i < 5000; i++) {
+			io.writeInt(i, 3);
+			io.write('.');
+			sb.append(expected(i, 3)).append('.');
+		}
+		io.writeInt(42, 20000); // padding larger than the buffer
+		sb.append(expected(42, 20000));
+		char[] chars = new char[10000];
+		Arrays.fill(chars, 'c');
+		io.write(chars, 1, 9999);
+		sb.append(chars, 1, 9999);
+		Assert.assertEquals(sb.toString(), io.getOutput());
+	}
+
+	@Test
+	public void streams() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Interpreter.StreamIO io = new Interpreter.StreamIO(
+				new ByteArrayInputStream("ab".getBytes()), out);
+		io.writeInt(-12, 4);
+		Assert.assertEquals("output is buffered", 0, out.size());
+		Assert.assertEquals('a', io.read());
+		Assert.assertEquals("flushed before reading", " -12", out.toString());
+		io.write('!');
+		Assert.assertEquals('b', io.read());
+		Assert.assertEquals(0, io.read());
+		io.flush();
+		Assert.assertEquals(" -12!", out.toString());
+	}
+
+	private static void verifyMismatch(String output, String expected,
+			long limit, String message) {
+		ComparingIO io = new ComparingIO("", new StringReader(expected),
+				limit);
+		try {
+			for (char ch : output.toCharArray()) {
+				io.write(ch);
+			}
+			io.checkEnd();
+			Assert.fail("no mismatch for \"" + output + "\"");
+		} catch (ComparingIO.Mismatch e) {
+			Assert.assertEquals(message, e.getMessage());
+		}
+	}
+
+	@Test
+	public void comparing() {
+		ComparingIO io = new ComparingIO("", new StringReader("  42\nok"));
+		io.writeInt(42, 4);
+		io.write('\n');
+		io.write(new char[] { 'o', 'k' }, 0, 2);
+		io.checkEnd();
+		Assert.assertEquals(7, io.written());
+
+		verifyMismatch("ab\ncx", "ab\ncd", 100,
+				"expected 'd' but was 'x' at line 2, column 2 (offset 4)");
+		verifyMismatch("abc", "ab", 100,
+				"output longer than expected at line 1, column 3 (offset 2)");
+		verifyMismatch("a", "ab", 100,
+				"output shorter than expected at line 1, column 2 (offset 1)");
+		verifyMismatch("abcd", "abcd", 3, "output limit of 3 characters"
+				+ " exceeded at line 1, column 4 (offset 3)");
+	}
+
+	/** Every engine passes the output on when the run ends or fails. */
+	@Test
+	public void flushedAtEnd() {
+		init(FAIL);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			for (String input : new String[] { "5", "0" }) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				Interpreter inter = create(engine, new Interpreter.StreamIO(
+						new ByteArrayInputStream(input.getBytes()), out));
+				try {
+					inter.run();
+				} catch (IllegalStateException e) {
+					Assert.assertEquals("division by zero", e.getMessage());
+				}
+				Assert.assertEquals("Engine " + engine + " with input "
+						+ input, input.equals("5") ? "  5!2" : "  0!",
+						out.toString());
+			}
+		}
+	}
+
+	/** Wrong output of a test run is reported with the whole output. */
+	@Test
+	public void wrongOutput() {
+		init(PRINT);
+		addExpectedRun("2", " -500 x0 -463 y1");
+		try {
+			parseAndVerify();
+			Assert.fail("wrong output expected");
+		} catch (ComparisonFailure e) {
+			Assert.assertEquals(" -500 x0 -463 y1", e.getExpected());
+			Assert.assertEquals(" -500 x0 -463 x1", e.getActual());
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains(
+					"expected 'y' but was 'x' at line 1, column 15"));
+		}
+	}
+
+	/** A program that prints wrong output is stopped at the first error. */
+	@Test
+	public void earlyStop() {
+		init(PRINT);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			ComparingIO io = new ComparingIO("1000000",
+					new StringReader(" -500 x0 -463 x1 -426 x3"));
+			try {
+				create(engine, io).run();
+				Assert.fail("Engine " + engine + " should stop");
+			} catch (ComparingIO.Mismatch e) {
+				Assert.assertEquals("Engine " + engine, 23, e.offset);
+			}
+		}
+	}
+
+	/** A channel that returns at most three bytes per read. */
+	private static ReadableByteChannel trickle(String input) {
+		final ByteBuffer src = ByteBuffer.wrap(input.getBytes());
+		return new ReadableByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) {
+				if (!src.hasRemaining()) {
+					return -1;
+				}
+				int n = Math.min(3, Math.min(src.remaining(), dst.remaining()));
+				for (int i = 0; i < n; i++) {
+					dst.put(src.get());
+				}
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/** Reads ints and chars alternately, as read and bread would. */
+	private static String readAll(Interpreter.IO io) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 12; i++) {
+			sb.append(io.readInt()).append(',');
+			sb.append((int) io.read()).append(' ');
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void channelInput() throws IOException {
+		String input = "12 -5 --7 - 8 x-9 007\n2147483647 -2147483648 "
+				+ "abc12def 3000000000 -0 42";
+		String expected = readAll(new Interpreter.BufferIO(input));
+		Assert.assertEquals(expected, readAll(new ChannelIO(trickle(input),
+				new ByteArrayOutputStream())));
+
+		File file = File.createTempFile("input", ".txt");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(input.getBytes());
+			out.close();
+			Assert.assertEquals(expected, readAll(ChannelIO.map(
+					file.toPath(), new ByteArrayOutputStream())));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void print() {
+		init(PRINT);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 30; i++) {
+			sb.append(expected(i * 37 - 500, 5)).append(" x").append(i);
+		}
+		addExpectedRun("30", sb.toString());
+		parseAndVerify();
+	}
+}
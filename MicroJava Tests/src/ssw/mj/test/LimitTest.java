@@ -0,0 +1,186 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the fuel and time limits of runs and pausing at safepoints on all
+ * execution engines.
+ */
+public class LimitTest extends CompilerTestCaseSupport {
+
+	private static final String ENDLESS = "program Endless" + LF + //
+			"{" + LF + //
+			"  void main() int i; {" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i == i) { i++; }" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String SQUARES = "program Squares" + LF + //
+			"{" + LF + //
+			"  int sq(int x) { return x * x; }" + LF + //
+			"  void main() int n, i, s; {" + LF + //
+			"    read(n);" + LF + //
+			"    i = 0; s = 0;" + LF + //
+			"    while (i < n) { s = s + sq(i); i++; }" + LF + //
+			"    print(s);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	/** Runs inter and returns the limit that stopped it, null if none. */
+	private static Interpreter.Limit runLimited(Interpreter inter) {
+		try {
+			inter.run();
+			return null;
+		} catch (Interpreter.LimitExceeded e) {
+			return e.limit;
+		}
+	}
+
+	@Test
+	public void fuel() {
+		init(ENDLESS);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			Interpreter inter = create(engine, new Interpreter.BufferIO(""));
+			inter.setFuel(100000);
+			Assert.assertEquals("Engine " + engine, Interpreter.Limit.FUEL,
+					runLimited(inter));
+			Assert.assertEquals("Engine " + engine, 100001, inter.safepoints());
+		}
+	}
+
+	/** A run with as much fuel as it needs completes, one less stops it. */
+	@Test
+	public void exactFuel() {
+		init(SQUARES);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO("3000");
+			Interpreter inter = create(engine, io);
+			inter.setPausable(true); // counts the safepoints
+			inter.run();
+			long needed = inter.safepoints();
+			Assert.assertEquals("Engine " + engine, 6000, needed);
+			Assert.assertEquals("Engine " + engine, "405565908",
+					io.getOutput());
+
+			io = new Interpreter.BufferIO("3000");
+			inter = create(engine, io);
+			inter.setFuel(needed);
+			Assert.assertNull("Engine " + engine, runLimited(inter));
+			Assert.assertEquals("Engine " + engine, "405565908",
+					io.getOutput());
+
+			inter = create(engine, new Interpreter.BufferIO("3000"));
+			inter.setFuel(needed - 1);
+			Assert.assertEquals("Engine " + engine, Interpreter.Limit.FUEL,
+					runLimited(inter));
+		}
+	}
+
+	@Test
+	public void timeLimit() {
+		init(ENDLESS);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			Interpreter inter = create(engine, new Interpreter.BufferIO(""));
+			long start = System.currentTimeMillis();
+			inter.setTimeLimit(50);
+			Assert.assertEquals("Engine " + engine, Interpreter.Limit.TIME,
+					runLimited(inter));
+			Assert.assertTrue("Engine " + engine,
+					System.currentTimeMillis() - start >= 50);
+		}
+	}
+
+	/**
+	 * The timer of a run stops when the run ends and every run gets the whole
+	 * time limit.
+	 */
+	@Test
+	public void timeLimitPerRun() throws InterruptedException {
+		init(SQUARES);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO("3000 3000");
+			Interpreter inter = create(engine, io);
+			inter.setTimeLimit(200);
+			Assert.assertNull("Engine " + engine, runLimited(inter));
+			Thread.sleep(250); // the limit of the first run would be up
+			Assert.assertNull("Engine " + engine, runLimited(inter));
+			Assert.assertEquals("Engine " + engine, "405565908405565908",
+					io.getOutput());
+		}
+	}
+
+	/** Runs inter in a new thread. */
+	private static Thread start(final Interpreter inter,
+			final Interpreter.Limit[] result) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				result[0] = runLimited(inter);
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static void awaitPause(Interpreter inter)
+			throws InterruptedException {
+		for (int i = 0; i < 1000 && !inter.isPaused(); i++) {
+			Thread.sleep(5);
+		}
+		Assert.assertTrue("run not paused", inter.isPaused());
+	}
+
+	@Test
+	public void pauseAndResume() throws InterruptedException {
+		init(ENDLESS);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			Interpreter inter = create(engine, new Interpreter.BufferIO(""));
+			inter.setFuel(1000000);
+			inter.pause(); // at the first safepoint
+			Interpreter.Limit[] result = new Interpreter.Limit[1];
+			Thread t = start(inter, result);
+			awaitPause(inter);
+			Assert.assertEquals("Engine " + engine, 1, inter.safepoints());
+			Thread.sleep(10);
+			Assert.assertTrue("Engine " + engine, inter.isPaused());
+			Assert.assertEquals("Engine " + engine, 1, inter.safepoints());
+
+			inter.resume();
+			t.join();
+			Assert.assertFalse("Engine " + engine, inter.isPaused());
+			Assert.assertEquals("Engine " + engine, Interpreter.Limit.FUEL,
+					result[0]);
+			Assert.assertEquals("Engine " + engine, 1000001,
+					inter.safepoints());
+		}
+	}
+
+	/** Time spent paused does not count for the time limit. */
+	@Test
+	public void pauseKeepsTime() throws InterruptedException {
+		init(SQUARES);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("3000");
+		Interpreter inter = create(Engine.standard, io);
+		inter.setTimeLimit(250);
+		inter.pause();
+		Interpreter.Limit[] result = new Interpreter.Limit[1];
+		Thread t = start(inter, result);
+		awaitPause(inter);
+		Thread.sleep(500);
+		inter.resume();
+		t.join();
+		Assert.assertNull(result[0]);
+		Assert.assertEquals("405565908", io.getOutput());
+	}
+}
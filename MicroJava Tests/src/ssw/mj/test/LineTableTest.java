@@ -0,0 +1,133 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Profiler;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.codegen.LineTable;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the source positions of the code, their section in the object file
+ * and the positions of runtime errors and in profiles.
+ */
+public class LineTableTest extends CompilerTestCaseSupport {
+
+	private static final String FILL = "program Fill" + LF + // 1
+			"{" + LF + // 2
+			"  void main() int[] a; int i, n; {" + LF + // 3
+			"    read(n);" + LF + // 4
+			"    a = new int[3];" + LF + // 5
+			"    i = 0;" + LF + // 6
+			"    while (i < n) {" + LF + // 7
+			"      a[i] = i;" + LF + // 8
+			"      i++;" + LF + // 9
+			"    }" + LF + // 10
+			"  }" + LF + // 11
+			"}";
+
+	@Test
+	public void positions() {
+		init(FILL);
+		parseAndVerify();
+		LineTable lines = parser.code.lines;
+		Assert.assertEquals(3, lines.line(parser.code.mainpc));
+		Assert.assertEquals(4, lines.line(find(OpCode.read)));
+		Assert.assertEquals(5, lines.line(find(OpCode.newarray)));
+		Assert.assertEquals(8, lines.line(find(OpCode.astore)));
+		Assert.assertEquals(11, lines.line(find(OpCode.return_)));
+	}
+
+	@Test
+	public void section() throws IOException {
+		init(FILL);
+		parseAndVerify();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		parser.code.write(out);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				out.toByteArray()));
+		in.skipBytes(2 + 3 * 4 + parser.code.pc); // header and code
+		Assert.assertEquals('L', in.read());
+		Assert.assertEquals('T', in.read());
+		LineTable lines = LineTable.read(in, parser.code.pc);
+		Assert.assertEquals(-1, in.read());
+		Assert.assertEquals(parser.code.lines.size(), lines.size());
+		for (int pc = 0; pc < parser.code.pc; pc++) {
+			Assert.assertEquals(parser.code.lines.line(pc), lines.line(pc));
+			Assert.assertEquals(parser.code.lines.col(pc), lines.col(pc));
+		}
+	}
+
+	/** Positions go back and pcs and columns need several bytes. */
+	@Test
+	public void varInts() throws IOException {
+		LineTable lines = new LineTable();
+		lines.add(0, 1, 1);
+		lines.add(3, 1, 1); // same position, no entry
+		lines.add(5, 200000, 300);
+		lines.add(70000, 2, 1);
+		lines.add(70001, 0, 0);
+		Assert.assertEquals(4, lines.size());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		lines.write(new DataOutputStream(out));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				out.toByteArray()));
+		in.skipBytes(2);
+		LineTable read = LineTable.read(in, 70002);
+		Assert.assertEquals(-1, in.read());
+		for (int pc : new int[] { 0, 4, 5, 69999, 70000, 70001 }) {
+			Assert.assertEquals(lines.line(pc), read.line(pc));
+			Assert.assertEquals(lines.col(pc), read.col(pc));
+		}
+		Assert.assertEquals(200000, read.line(69999));
+	}
+
+	@Test
+	public void runtimeError() {
+		init(FILL);
+		parseAndVerify();
+		for (Engine engine : new Engine[] { Engine.standard,
+				Engine.verified }) {
+			Interpreter inter = create(engine, new Interpreter.BufferIO("5"));
+			inter.setLineTable(parser.code.lines);
+			try {
+				inter.run();
+				Assert.fail("index out of bounds expected");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("index out of bounds", e.getMessage());
+			}
+			Assert.assertEquals("Engine " + engine, find(OpCode.astore),
+					inter.failedPC());
+			Assert.assertEquals(8, inter.lineTable().line(inter.failedPC()));
+
+			inter = create(engine, new Interpreter.BufferIO("3"));
+			inter.run();
+			Assert.assertEquals(-1, inter.failedPC());
+		}
+	}
+
+	@Test
+	public void profile() {
+		init(FILL);
+		parseAndVerify();
+		Interpreter inter = new Interpreter(parser.code.buf,
+				parser.code.mainpc, parser.code.dataSize,
+				new Interpreter.BufferIO("3"), false);
+		inter.setLineTable(parser.code.lines);
+		Profiler p = inter.profile();
+		inter.run();
+		String report = p.report();
+		Assert.assertTrue(report,
+				report.matches("(?s).*\n\\s+main:\\s+1\\s[^\n]* line 3\n.*"));
+		Assert.assertTrue(report,
+				report.matches("(?s).*\n\\s+\\d+:\\s+3 line 8\n.*"));
+	}
+}
@@ -0,0 +1,144 @@
+package ssw.mj.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.DebugListener;
+import ssw.mj.ExecutionListener;
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the events that runs report to an execution listener on all engines
+ * and the debug output.
+ */
+public class ListenerTest extends CompilerTestCaseSupport {
+
+	private static final String EVENTS = "program Events" + LF + //
+			"  class Node { int val; Node next; }" + LF + //
+			"{" + LF + //
+			"  int sq(int x) { return x * x; }" + LF + //
+			"  void main() int n, i; Node p; int[] a; char c; {" + LF + //
+			"    read(n); read(c);" + LF + //
+			"    a = new int[n];" + LF + //
+			"    i = 0;" + LF + //
+			"    while (i < n) { p = new Node; p.val = sq(i); a[i] = p.val; i++; }"
+			+ LF + //
+			"    print(a[n - 1], 3); print(c);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	/** Logs all events but instructions, which are only counted. */
+	private static class Log implements ExecutionListener {
+		final StringBuilder sb = new StringBuilder();
+		final int[] executed = new int[OpCode.values().length];
+
+		@Override
+		public void instruction(int pc, OpCode op, int[] stack, int esp) {
+			executed[op.ordinal()]++;
+		}
+
+		@Override
+		public void call(int pc, int entry) {
+			sb.append("call ").append(entry).append(' ');
+		}
+
+		@Override
+		public void returned(int pc, int to) {
+			sb.append("return ").append(to).append(' ');
+		}
+
+		@Override
+		public void alloc(int pc, int adr, int words) {
+			sb.append("alloc ").append(adr).append(',').append(words).append(' ');
+		}
+
+		@Override
+		public void input(int pc, OpCode op, int val) {
+			sb.append(op).append(' ').append(val).append(' ');
+		}
+
+		@Override
+		public void output(int pc, OpCode op, int val, int width) {
+			sb.append(op).append(' ').append(val).append(',').append(width)
+					.append(' ');
+		}
+	}
+
+	@Test
+	public void events() {
+		init(EVENTS);
+		parseAndVerify();
+		int sq = 0; // entry of sq, the first method
+		String expected = null;
+		for (Engine engine : Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO("3 x");
+			Interpreter inter = create(engine, io);
+			Log log = new Log();
+			inter.setListener(log);
+			inter.run();
+			Assert.assertEquals("Engine " + engine, "  4x", io.getOutput());
+			Assert.assertEquals("Engine " + engine, 3,
+					log.executed[OpCode.call.ordinal()]);
+			Assert.assertEquals("Engine " + engine, 4,
+					log.executed[OpCode.return_.ordinal()]);
+			Assert.assertEquals("Engine " + engine, 3,
+					log.executed[OpCode.astore.ordinal()]);
+			if (expected == null) {
+				expected = log.sb.toString();
+				Assert.assertTrue(expected, expected.startsWith("read 3 bread "
+						+ (int) 'x' + " alloc 3,5 alloc 7,3 call " + sq
+						+ " return "));
+				Assert.assertTrue(expected, expected.endsWith(
+						" print 4,3 bprint " + (int) 'x' + ",0 return -1 "));
+			}
+			Assert.assertEquals("Engine " + engine, expected, log.sb.toString());
+		}
+	}
+
+	@Test
+	public void detach() {
+		init(EVENTS);
+		parseAndVerify();
+		Interpreter inter = create(Engine.jit, new Interpreter.BufferIO("3 x"));
+		Log log = new Log();
+		inter.setListener(log);
+		inter.setListener(null);
+		inter.run();
+		Assert.assertEquals("", log.sb.toString());
+	}
+
+	@Test
+	public void debugOutput() {
+		init("program P {" + LF + //
+				"  void main() int i; { i = 300; i++; print(i); }" + LF + //
+				"}");
+		parseAndVerify();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		Interpreter inter = new Interpreter(parser.code.buf,
+				parser.code.mainpc, parser.code.dataSize, io, false);
+		inter.setListener(new DebugListener(parser.code.buf, out));
+		inter.run();
+		out.flush();
+		String stack = LF + "     | ";
+		Assert.assertEquals(LF + "  pos: instruction operands" + LF
+				+ "     | expressionstack" + LF
+				+ "-----------------------------" + LF
+				+ "    0: enter 0 1 " + stack + LF
+				+ "    3: const 300 " + stack + "300 " + LF
+				+ "    8: store_0 " + stack + LF
+				+ "    9: inc 0 1 " + stack + LF
+				+ "   12: load_0 " + stack + "301 " + LF
+				+ "   13: const_0 " + stack + "301 0 " + LF
+				+ "   14: print " + stack + LF
+				+ "   15: exit " + stack + LF
+				+ "   16: return ", bytes.toString());
+		Assert.assertEquals("301", io.getOutput());
+	}
+}
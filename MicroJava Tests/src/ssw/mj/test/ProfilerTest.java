@@ -0,0 +1,85 @@
+package ssw.mj.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Profiler;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests the counts, the report and the collapsed stacks of the profiler on
+ * all execution engines.
+ */
+public class ProfilerTest extends CompilerTestCaseSupport {
+
+	private static final String FIB = "program Fib" + LF + //
+			"{" + LF + //
+			"  int fib(int n) {" + LF + //
+			"    if (n <= 1) return n;" + LF + //
+			"    return fib(n - 1) + fib(n - 2);" + LF + //
+			"  }" + LF + //
+			"  void main() int i, n, s; {" + LF + //
+			"    read(n);" + LF + //
+			"    i = 0; s = 0;" + LF + //
+			"    while (i < n) { s = s + fib(10); i++; }" + LF + //
+			"    print(s);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	@Test
+	public void counts() {
+		init(FIB);
+		parseAndVerify();
+		for (Engine engine : Engine.values()) {
+			Interpreter.BufferIO io = new Interpreter.BufferIO("3");
+			Interpreter inter = create(engine, io);
+			Profiler p = inter.profile();
+			inter.run();
+			Assert.assertEquals("Engine " + engine, "165", io.getOutput());
+			Assert.assertEquals("Engine " + engine, 3 * 177, p.calls(0));
+			Assert.assertEquals("Engine " + engine, 1,
+					p.calls(parser.code.mainpc));
+			Assert.assertEquals("Engine " + engine, 3 * 177,
+					p.executed(OpCode.call));
+			Assert.assertEquals("Engine " + engine, 3 * 177 + 1,
+					p.executed(OpCode.return_));
+			Assert.assertEquals("Engine " + engine, 3 * 177, p.blockCount(0));
+			boolean header = false; // the loop header is executed n + 1 times
+			for (int pc = parser.code.mainpc; pc < parser.code.pc; pc++) {
+				header |= p.blockCount(pc) == 4;
+			}
+			Assert.assertTrue("Engine " + engine, header);
+		}
+	}
+
+	@Test
+	public void report() throws IOException {
+		init(FIB);
+		parseAndVerify();
+		Interpreter inter = new Interpreter(parser.code.buf,
+				parser.code.mainpc, parser.code.dataSize,
+				new Interpreter.BufferIO("2"), false);
+		Profiler p = inter.profile();
+		inter.run();
+		String report = p.report();
+		Assert.assertTrue(report, report.matches("(?s)profile: \\d+ "
+				+ "instructions\n.*\n\\s+main:\\s+1\\s.*"));
+		Assert.assertTrue(report, report.matches("(?s).*\n\\s+m0:\\s+354\\s.*"));
+
+		StringWriter out = new StringWriter();
+		p.writeStacks(out);
+		String[] lines = out.toString().split("\n");
+		Assert.assertEquals("main", lines[0].split(" ")[0]);
+		Assert.assertEquals("main;m0", lines[1].split(" ")[0]);
+		Assert.assertEquals("main;m0;m0", lines[2].split(" ")[0]);
+		Assert.assertEquals(11, lines.length); // fib(10) is ten frames deep
+		for (String line : lines) {
+			Assert.assertTrue(line, line.matches("main(;m0)* \\d+"));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package ssw.mj.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.Sampler;
+import ssw.mj.vm.Engine;
+
+/**
+ * Tests that the sampler finds the methods and stacks of a running program.
+ */
+public class SamplerTest extends CompilerTestCaseSupport {
+
+	private static final String FIB = "program Fib" + LF + //
+			"{" + LF + //
+			"  int fib(int n) {" + LF + //
+			"    if (n <= 1) return n;" + LF + //
+			"    return fib(n - 1) + fib(n - 2);" + LF + //
+			"  }" + LF + //
+			"  void main() int n; {" + LF + //
+			"    read(n);" + LF + //
+			"    print(fib(n));" + LF + //
+			"  }" + LF + //
+			"}";
+
+	@Test
+	public void sample() throws IOException {
+		init(FIB);
+		parseAndVerify();
+		Interpreter.BufferIO io = new Interpreter.BufferIO("27");
+		Interpreter inter = create(Engine.jit, io);
+		Sampler s = inter.sample(100);
+		inter.run();
+		Assert.assertEquals("196418", io.getOutput());
+		Assert.assertTrue(s.samples() > 0);
+
+		String report = s.report(3);
+		Assert.assertTrue(report, report.startsWith("sampling: "
+				+ s.samples() + " samples every 100 us, "));
+		Assert.assertTrue(report, report.matches(
+				"(?s).*hottest methods \\(self, total\\):\n\\s+m0: .*"));
+
+		StringWriter out = new StringWriter();
+		s.writeStacks(out);
+		long sum = 0;
+		for (String line : out.toString().split("\n")) {
+			Assert.assertTrue(line, line.matches("main(;m0)* \\d+"));
+			Assert.assertTrue(line, line.split(";").length <= 28);
+			sum += Long.parseLong(line.substring(line.indexOf(' ') + 1));
+		}
+		Assert.assertEquals(s.samples(), sum);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void interval() {
+		init(FIB);
+		parseAndVerify();
+		new Interpreter(parser.code.buf, parser.code.mainpc,
+				parser.code.dataSize, new Interpreter.BufferIO("1"), false)
+				.sample(0);
+	}
+}
@@ -3,9 +3,19 @@ package ssw.mj.test;
 import static ssw.mj.Errors.Message.*;
 import static ssw.mj.Token.Kind.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
 import org.junit.Test;
 
+import ssw.mj.Token;
 import ssw.mj.Token.Kind;
+import ssw.mj.impl.ScannerImpl;
 
 /**
  * Test cases for the <code>Scanner</code> class.
@@ -77,6 +87,57 @@ public class ScannerTest extends CompilerTestCaseSupport {
 		scanAndVerify();
 	}
 
+	/** The scanner reads windows of 65536 characters. */
+	@Test
+	public void windowBoundaries() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 65533; i++) {
+			sb.append(' ');
+		}
+		sb.append("name_1" + CR + LF); // crosses the first boundary
+		while (sb.length() < 131070) {
+			sb.append(' ');
+		}
+		sb.append("12345"); // crosses the second boundary
+		initScanner(sb.toString());
+
+		expectToken(ident, 1, 65534, "name_1");
+		expectToken(number, 2, 65530, 12345);
+		expectToken(eof, 2, 65534);
+
+		scanAndVerify();
+	}
+
+	/** A mapped source file is scanned like one read by a FileReader. */
+	@Test
+	public void mappedSource() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("program P /* \u00e4\u20ac */ {" + CR + LF);
+		while (sb.length() < 65530) {
+			sb.append("\tx_1 = 'a' + '\\n' * 99999999999 ! y;" + CR + LF);
+		}
+		sb.append("name_1 \u00fc 12345 '" + LF + "}");
+		File file = File.createTempFile("mapped", ".mj");
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(sb.toString().getBytes(Charset.defaultCharset()));
+			} finally {
+				out.close();
+			}
+			ScannerImpl read = new ScannerImpl(new FileReader(file));
+			ScannerImpl mapped = ScannerImpl.map(file.toPath());
+			Token t;
+			do {
+				t = read.next();
+				Assert.assertEquals(t.toString(), mapped.next().toString());
+			} while (t.kind != eof);
+			Assert.assertEquals(read.errors.dump(), mapped.errors.dump());
+		} finally {
+			file.delete();
+		}
+	}
+
 	@Test
 	public void lFLineSeparators() {
 		initScanner(";" + LF + " ;" + LF + "  ; ");
@@ -0,0 +1,127 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.vm.Engine;
+import ssw.mj.vm.Verifier;
+import ssw.mj.vm.VerifiedInterpreter;
+
+/**
+ * Tests the load-time verifier and the interpreter that relies on it.
+ */
+public class VerifierTest extends CompilerTestCaseSupport {
+
+	private static final String CALLS = "program Calls" + LF + //
+			"{" + LF + //
+			"  int f(int a, int b) { return a + b; }" + LF + //
+			"  void main() int x; {" + LF + //
+			"    x = f(1, 2) * f(3, 4);" + LF + //
+			"    print(x);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	private static final String FIB = "program Fib" + LF + //
+			"{" + LF + //
+			"  int fib(int n) {" + LF + //
+			"    if (n <= 1) return n;" + LF + //
+			"    return fib(n - 1) + fib(n - 2);" + LF + //
+			"  }" + LF + //
+			"  void main() { print(fib(10)); }" + LF + //
+			"}";
+
+	@Test
+	public void stackSizes() {
+		init(CALLS);
+		parseAndVerify();
+		Verifier v = new Verifier(parser.code.buf, parser.code.mainpc,
+				parser.code.dataSize);
+		// 3 * f(3, 4): the result of the first call and both arguments
+		Assert.assertEquals(3, v.maxStackDepth());
+		// fp and x of main, return address, fp, a and b of f
+		Assert.assertEquals(6, v.maxMethodStack());
+
+		Interpreter.BufferIO io = new Interpreter.BufferIO("");
+		VerifiedInterpreter vm = new VerifiedInterpreter(parser.code.buf,
+				parser.code.mainpc, parser.code.dataSize, io, false);
+		Assert.assertTrue(vm.isVerified());
+		vm.run();
+		Assert.assertEquals("21", io.getOutput());
+
+		// the verifier of the loader is passed on instead of verifying again
+		io = new Interpreter.BufferIO("");
+		Interpreter r = Engine.verified.create(parser.code.buf,
+				parser.code.mainpc, parser.code.dataSize, io, false, v);
+		Assert.assertTrue(((VerifiedInterpreter) r).isVerified());
+		r.run();
+		Assert.assertEquals("21", io.getOutput());
+	}
+
+	@Test
+	public void recursion() {
+		init(FIB);
+		parseAndVerify();
+		Verifier v = new Verifier(parser.code.buf, parser.code.mainpc,
+				parser.code.dataSize);
+		Assert.assertEquals(Verifier.UNBOUNDED, v.maxStackDepth());
+		Assert.assertEquals(Verifier.UNBOUNDED, v.maxMethodStack());
+	}
+
+	@Test
+	public void underflow() {
+		byte[] code = code(OpCode.enter, 0, 0, OpCode.add, OpCode.exit,
+				OpCode.return_);
+		assertRejected(code, 0);
+		assertError(code, 0, "expression stack underflow");
+	}
+
+	@Test
+	public void dataArea() {
+		byte[] code = code(OpCode.enter, 0, 0, OpCode.getstatic, 0, 1,
+				OpCode.pop, OpCode.exit, OpCode.return_);
+		assertRejected(code, 1);
+		new Verifier(code, 0, 2);
+	}
+
+	@Test
+	public void jumpOutOfCode() {
+		assertRejected(code(OpCode.enter, 0, 0, OpCode.jmp, 0, 100), 0);
+	}
+
+	private static byte[] code(Object... items) {
+		byte[] code = new byte[items.length];
+		for (int i = 0; i < items.length; i++) {
+			code[i] = items[i] instanceof OpCode ? (byte) ((OpCode) items[i])
+					.code() : ((Integer) items[i]).byteValue();
+		}
+		return code;
+	}
+
+	private static void assertRejected(byte[] code, int dataSize) {
+		try {
+			new Verifier(code, 0, dataSize);
+			Assert.fail("code must not be verified");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/** Unverified code reports the same errors as in the standard engine. */
+	private static void assertError(byte[] code, int dataSize, String msg) {
+		Interpreter[] vms = {
+				new Interpreter(code, 0, dataSize,
+						new Interpreter.BufferIO(""), false),
+				new VerifiedInterpreter(code, 0, dataSize,
+						new Interpreter.BufferIO(""), false) };
+		for (Interpreter vm : vms) {
+			try {
+				vm.run();
+				Assert.fail(msg + " expected");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals(msg, e.getMessage());
+			}
+		}
+	}
+}
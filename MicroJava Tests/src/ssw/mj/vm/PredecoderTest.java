@@ -0,0 +1,56 @@
+package ssw.mj.vm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ssw.mj.Interpreter;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.test.CompilerTestCaseSupport;
+
+/**
+ * Tests the superinstructions that the {@link Predecoder} emits. Lives in the
+ * package of the predecoder to look at its instruction stream.
+ */
+public class PredecoderTest extends CompilerTestCaseSupport {
+
+	private static final String FIELDS = "program Fields" + LF + //
+			"  class C { int x, y; }" + LF + //
+			"{" + LF + //
+			"  void main() int n; C c; {" + LF + //
+			"    read(n);" + LF + //
+			"    c = new C;" + LF + //
+			"    while (c.x < n) c.x++;" + LF + //
+			"    if (n > 2) c.y++;" + LF + //
+			"    print(c.x); print(c.y);" + LF + //
+			"  }" + LF + //
+			"}";
+
+	/**
+	 * Field increments at the end of a loop body and of a branch are fused,
+	 * although no instruction of the window follows them.
+	 */
+	@Test
+	public void fieldIncrementsAtBlockEnd() {
+		init(FIELDS);
+		parseAndVerify();
+		byte[] code = parser.code.buf;
+		Predecoder decoder = new Predecoder(code, parser.code.mainpc);
+		decoder.decode(parser.code.mainpc, true);
+		int[] prog = decoder.program();
+		int dups = 0;
+		for (int pc = 0; pc < parser.code.pc;) {
+			OpCode op = OpCode.get(code[pc]);
+			if (op == OpCode.dup) {
+				Assert.assertEquals("dup at " + pc, Predecoder.INC_FIELD,
+						prog[decoder.pcToIndex[pc]]);
+				dups++;
+			}
+			pc += 1 + op.getOpsSize();
+		}
+		Assert.assertEquals(2, dups);
+
+		Interpreter.BufferIO io = new Interpreter.BufferIO("3");
+		create(Engine.predecoded, io).run();
+		Assert.assertEquals("31", io.getOutput());
+	}
+}